@@ -0,0 +1,164 @@
+package eu.number26.codechallenge.dao;
+
+import eu.number26.codechallenge.Application;
+import eu.number26.codechallenge.model.Transaction;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of {@link TransactionDao} operations over stores of different tree shapes and sizes.
+ * <p>
+ * DAO is taken from application context by bean name, so a new implementation is benchmarked by adding its bean
+ * name to {@link #dao} values (or with {@code -p dao=...}). Mongo DAOs run against embedded MongoDB.
+ * Every benchmark is run with each number of threads from {@code jmh.threads} system property with GC profiler:
+ * {@code mvn -Pjmh test-compile exec:exec}, see README for options.
+ *
+ * @author ikanievska
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionDaoBenchmark {
+    private static final String[] TYPES = {"car", "shopping", "book", "food", "travel", "rent", "salary", "other"};
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Shapes of stored trees
+     */
+    public enum Shape {
+        /**
+         * Single tree where every transaction is a parent of the next one
+         */
+        CHAIN,
+        /**
+         * Single tree where all transactions are children of the root
+         */
+        FAN_OUT,
+        /**
+         * Random trees, every 16th transaction on average is a root
+         */
+        FOREST
+    }
+
+    @Param({"transactionNoDbDao", "transactionPrimitiveDao", "transactionMappedFileDao",
+            "transactionMongoDao", "transactionMongoParentIdDao"})
+    public String dao;
+
+    @Param({"CHAIN", "FAN_OUT", "FOREST"})
+    public Shape shape;
+
+    @Param({"1000", "10000"})
+    public int size;
+
+    private ConfigurableApplicationContext context;
+    private TransactionDao transactionDao;
+    private Long[] parentIds;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        context = new SpringApplicationBuilder(Application.class)
+                .web(false)
+                .properties("mappedfile.directory=" + Files.createTempDirectory("transactions-benchmark"))
+                .run();
+        transactionDao = context.getBean(dao, TransactionDao.class);
+        transactionDao.clear();
+        parentIds = parentIds(shape, size);
+        List<Transaction> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < size; ++i) {
+            batch.add(transaction(i, ThreadLocalRandom.current()));
+            if (batch.size() == BATCH_SIZE || i == size - 1) {
+                transactionDao.mergeAll(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private static Long[] parentIds(Shape shape, int size) {
+        Random random = new Random(26);
+        Long[] parentIds = new Long[size];
+        for (int i = 1; i < size; ++i) {
+            switch (shape) {
+                case CHAIN:
+                    parentIds[i] = (long) i - 1;
+                    break;
+                case FAN_OUT:
+                    parentIds[i] = 0L;
+                    break;
+                default:
+                    parentIds[i] = random.nextInt(16) == 0 ? null : (long) random.nextInt(i);
+            }
+        }
+        return parentIds;
+    }
+
+    /**
+     * Transaction with the parent of its tree shape, so merges of existing ones don't change the shape.
+     */
+    private Transaction transaction(int transactionId, Random random) {
+        Transaction transaction = new Transaction();
+        transaction.setTransactionId((long) transactionId);
+        transaction.setParentId(parentIds[transactionId]);
+        transaction.setType(TYPES[transactionId % TYPES.length]);
+        transaction.setAmount((double) (random.nextInt(200000) - 100000) / 100);
+        return transaction;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        transactionDao.clear();
+        context.close();
+    }
+
+    @Benchmark
+    public Transaction merge() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return transactionDao.merge(transaction(random.nextInt(size), random));
+    }
+
+    @Benchmark
+    public Transaction getById() {
+        return transactionDao.getById((long) ThreadLocalRandom.current().nextInt(size));
+    }
+
+    @Benchmark
+    public Collection<Long> transactionIdsByType() {
+        return transactionDao.transactionIdsByType(TYPES[ThreadLocalRandom.current().nextInt(TYPES.length)]);
+    }
+
+    @Benchmark
+    public Double transactionTotalAmount() {
+        return transactionDao.transactionTotalAmount((long) ThreadLocalRandom.current().nextInt(size));
+    }
+
+    /**
+     * Run the benchmark for each number of threads from {@code jmh.threads} property (1,4,8 by default) with GC
+     * profiler, other JMH command line options are applied as is.
+     */
+    public static void main(String... args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        for (String threads : System.getProperty("jmh.threads", "1,4,8").split(",")) {
+            new Runner(new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .include(TransactionDaoBenchmark.class.getSimpleName())
+                    .threads(Integer.parseInt(threads.trim()))
+                    .addProfiler(GCProfiler.class)
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package eu.number26.codechallenge.dao;
+
+import eu.number26.codechallenge.model.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of total amount of a large subtree depending on parallelism of {@link TransactionPrimitiveDao}
+ * sum pool: parallelism 1 is the sequential baseline. Run with
+ * {@code mvn -Pjmh test-compile exec:exec -Dexec.args="-classpath %classpath org.openjdk.jmh.Main TransactionSumBenchmark"}.
+ *
+ * @author ikanievska
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionSumBenchmark {
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int parallelism;
+
+    @Param({"1000000"})
+    public int size;
+
+    /**
+     * Max children of a transaction, the lower the deeper the tree
+     */
+    @Param({"10", "1000"})
+    public int fanOut;
+
+    private TransactionPrimitiveDao transactionDao;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        transactionDao = new TransactionPrimitiveDao();
+        transactionDao.setParallelThreshold(parallelism == 1 ? Long.MAX_VALUE : 10000);
+        transactionDao.setSumParallelism(parallelism);
+        Random random = new Random(26);
+        List<Transaction> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < size; ++i) {
+            Transaction transaction = new Transaction();
+            transaction.setTransactionId((long) i);
+            // Parent of every transaction is a transaction added before, within fanOut positions from i / fanOut
+            transaction.setParentId(i == 0 ? null : (long) Math.min(i - 1, i / fanOut + random.nextInt(fanOut)));
+            transaction.setAmount((double) random.nextInt(1000));
+            batch.add(transaction);
+            if (batch.size() == BATCH_SIZE || i == size - 1) {
+                transactionDao.mergeAll(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @Benchmark
+    public Double transactionTotalAmount() {
+        return transactionDao.transactionTotalAmount(0L);
+    }
+}
@@ -0,0 +1,248 @@
+package eu.number26.codechallenge.rest.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.number26.codechallenge.Application;
+import eu.number26.codechallenge.rest.model.TransactionBatchItem;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load generator: starts {@link Application} on a random port for every datasource, loads a forest of
+ * transactions and drives a mix of PUT, GET, {@code /types} and {@code /sum} requests at constant rate.
+ * <p>
+ * Load model is open: requests are scheduled at fixed intervals regardless of responses and latency is measured from
+ * the scheduled time, so stalls of the service are not hidden by the generator waiting for them (coordinated
+ * omission). Arguments are {@code key=value} pairs, defaults:
+ * {@code rate=2000 duration=30 warmup=10 size=100000 connections=256 threads=platform
+ * datasources=transactionNoDbDao,transactionPrimitiveDao,transactionMappedFileDao,transactionMongoDao,
+ * transactionMongoParentIdDao}. With {@code threads=platform,virtual} every datasource is run with both request
+ * thread modes (virtual threads require Java 21+).
+ *
+ * @author ikanievska
+ */
+public class TransactionLoadHarness {
+    private static final String[] TYPES = {"car", "shopping", "book", "food", "travel", "rent", "salary", "other"};
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Endpoints with their shares of the traffic in percents
+     */
+    private enum Endpoint {
+        PUT(20), GET(40), TYPES(10), SUM(30);
+
+        private final int percent;
+
+        Endpoint(int percent) {
+            this.percent = percent;
+        }
+    }
+
+    private final int rate;
+    private final int size;
+    private final int connections;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<Endpoint, Histogram> histograms = new EnumMap<>(Endpoint.class);
+    private final AtomicLong errors = new AtomicLong();
+    private String baseUrl;
+    private Long[] parentIds;
+
+    private TransactionLoadHarness(int rate, int size, int connections) {
+        this.rate = rate;
+        this.size = size;
+        this.connections = connections;
+    }
+
+    public static void main(String... args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        options.put("rate", "2000");
+        options.put("duration", "30");
+        options.put("warmup", "10");
+        options.put("size", "100000");
+        options.put("connections", "256");
+        options.put("threads", "platform");
+        options.put("datasources", "transactionNoDbDao,transactionPrimitiveDao,transactionMappedFileDao,"
+                + "transactionMongoDao,transactionMongoParentIdDao");
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option[1]);
+        }
+        // Keep-alive connections of all request threads are reused
+        System.setProperty("http.maxConnections", options.get("connections"));
+        for (String datasource : options.get("datasources").split(",")) {
+            for (String threads : options.get("threads").split(",")) {
+                TransactionLoadHarness harness = new TransactionLoadHarness(Integer.parseInt(options.get("rate")),
+                        Integer.parseInt(options.get("size")), Integer.parseInt(options.get("connections")));
+                harness.run(datasource.trim(), "virtual".equals(threads.trim()),
+                        Integer.parseInt(options.get("warmup")), Integer.parseInt(options.get("duration")));
+            }
+        }
+    }
+
+    private void run(String datasource, boolean virtualThreads, int warmupSeconds, int durationSeconds)
+            throws Exception {
+        try (EmbeddedWebApplicationContext context = (EmbeddedWebApplicationContext)
+                new SpringApplicationBuilder(Application.class)
+                        .properties("server.port=0", "datasource=" + datasource, "threads.virtual=" + virtualThreads,
+                                "mappedfile.directory=" + Files.createTempDirectory("transactions-load"))
+                        .run()) {
+            baseUrl = "http://localhost:" + context.getEmbeddedServletContainer().getPort() + "/transactionservice";
+            request("GET", "/drop", null);
+            load();
+            drive(warmupSeconds);
+            for (Endpoint endpoint : Endpoint.values()) {
+                histograms.put(endpoint, new ConcurrentHistogram(3));
+            }
+            errors.set(0);
+            drive(durationSeconds);
+            report(datasource + (virtualThreads ? ", virtual threads" : ", platform threads"));
+        }
+    }
+
+    /**
+     * Load a forest of {@link #size} transactions, every 16th transaction on average is a root.
+     */
+    private void load() throws IOException {
+        Random random = new Random(26);
+        parentIds = new Long[size];
+        List<TransactionBatchItem> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < size; ++i) {
+            parentIds[i] = i == 0 || random.nextInt(16) == 0 ? null : (long) random.nextInt(i);
+            batch.add(item(i, random));
+            if (batch.size() == BATCH_SIZE || i == size - 1) {
+                request("PUT", "/transactions", objectMapper.writeValueAsBytes(batch));
+                batch.clear();
+            }
+        }
+    }
+
+    private TransactionBatchItem item(int transactionId, Random random) {
+        TransactionBatchItem item = new TransactionBatchItem();
+        item.setTransactionId((long) transactionId);
+        item.setParentId(parentIds[transactionId]);
+        item.setType(TYPES[transactionId % TYPES.length]);
+        item.setAmount((double) (random.nextInt(200000) - 100000) / 100);
+        return item;
+    }
+
+    /**
+     * Schedule requests at constant rate for the specified time and wait for all of them.
+     */
+    private void drive(int seconds) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long requests = (long) rate * seconds;
+        for (long i = 0; i < requests; ++i) {
+            long scheduled = start + i * interval;
+            long delay = scheduled - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            Endpoint endpoint = nextEndpoint();
+            executor.execute(() -> {
+                try {
+                    send(endpoint);
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+                Histogram histogram = histograms.get(endpoint);
+                if (histogram != null) {
+                    histogram.recordValue(System.nanoTime() - scheduled);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    private static Endpoint nextEndpoint() {
+        int percent = ThreadLocalRandom.current().nextInt(100);
+        for (Endpoint endpoint : Endpoint.values()) {
+            percent -= endpoint.percent;
+            if (percent < 0) {
+                return endpoint;
+            }
+        }
+        throw new IllegalStateException("Shares of endpoints don't sum up to 100%");
+    }
+
+    private void send(Endpoint endpoint) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int transactionId = random.nextInt(size);
+        switch (endpoint) {
+            case PUT:
+                // Update of an existing transaction keeps the shape of the forest
+                TransactionBatchItem item = item(transactionId, random);
+                request("PUT", "/transaction/" + transactionId, objectMapper.writeValueAsBytes(item));
+                break;
+            case GET:
+                request("GET", "/transaction/" + transactionId, null);
+                break;
+            case TYPES:
+                request("GET", "/types/" + TYPES[random.nextInt(TYPES.length)], null);
+                break;
+            case SUM:
+                request("GET", "/sum/" + transactionId, null);
+                break;
+        }
+    }
+
+    /**
+     * Send request and read the whole response, so the connection is reused.
+     */
+    private void request(String method, String path, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            byte[] buffer = new byte[8192];
+            while (in != null && in.read(buffer) >= 0) {
+                // drain
+            }
+        }
+        if (status >= 500) {
+            throw new IOException("Status " + status + " of " + method + " " + path);
+        }
+    }
+
+    private void report(String title) {
+        System.out.printf("%n%s, %d requests/s, %d transactions, %d errors%n", title, rate, size, errors.get());
+        System.out.printf("%-6s %10s %10s %10s %10s %10s %10s%n", "", "count", "p50 ms", "p90 ms", "p99 ms",
+                "p99.9 ms", "max ms");
+        for (Map.Entry<Endpoint, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            System.out.printf("%-6s %10d %10.2f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(),
+                    histogram.getTotalCount(), millis(histogram.getValueAtPercentile(50)),
+                    millis(histogram.getValueAtPercentile(90)), millis(histogram.getValueAtPercentile(99)),
+                    millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue()));
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
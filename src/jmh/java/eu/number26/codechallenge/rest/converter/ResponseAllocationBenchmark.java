@@ -0,0 +1,121 @@
+package eu.number26.codechallenge.rest.converter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.rest.model.TransactionSum;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of writing response bodies of hot GET endpoints by Jackson converter (as before) and by
+ * {@link TransactionJsonHttpMessageConverter}. Bodies are created as the controller creates them, so allocation of
+ * the sum map is counted as well. Bytes per response are reported by GC profiler as {@code gc.alloc.rate.norm}:
+ * {@code mvn -Pjmh test-compile exec:exec -Dexec.args="-classpath %classpath org.openjdk.jmh.Main ResponseAllocationBenchmark -prof gc"}.
+ *
+ * @author ikanievska
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseAllocationBenchmark {
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Hot GET endpoints
+     */
+    public enum Endpoint {
+        /**
+         * {@code /transaction/{id}}
+         */
+        TRANSACTION,
+        /**
+         * {@code /sum/{id}}
+         */
+        SUM,
+        /**
+         * {@code /types/{type}} with 100 ids
+         */
+        TYPES
+    }
+
+    @Param({"TRANSACTION", "SUM", "TYPES"})
+    public Endpoint endpoint;
+
+    @Param({"jackson", "direct"})
+    public String converter;
+
+    private final HttpHeaders headers = new HttpHeaders();
+    private final HttpOutputMessage outputMessage = new HttpOutputMessage() {
+        @Override
+        public OutputStream getBody() {
+            return DISCARD;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+    };
+    private HttpMessageConverter<Object> messageConverter;
+    private List<Long> ids;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        messageConverter = "direct".equals(converter)
+                ? new TransactionJsonHttpMessageConverter(objectMapper)
+                : new MappingJackson2HttpMessageConverter(objectMapper);
+        ids = new ArrayList<>();
+        for (long id = 0; id < 100; ++id) {
+            ids.add(id * 1000);
+        }
+    }
+
+    @Benchmark
+    public HttpHeaders write() throws IOException {
+        headers.clear();
+        messageConverter.write(body(), MediaType.APPLICATION_JSON, outputMessage);
+        return headers;
+    }
+
+    private Object body() {
+        switch (endpoint) {
+            case TRANSACTION:
+                Transaction transaction = new Transaction();
+                transaction.setTransactionId(10L);
+                transaction.setParentId(5L);
+                transaction.setType("shopping");
+                transaction.setAmount(10000.5);
+                return transaction;
+            case SUM:
+                // Controller returned a map before the direct converter
+                return "direct".equals(converter) ? new TransactionSum(15000.25) : new HashMap<String, Double>() {{
+                    this.put("sum", 15000.25);
+                }};
+            default:
+                return ids;
+        }
+    }
+}
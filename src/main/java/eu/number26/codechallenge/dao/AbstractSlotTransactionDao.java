@@ -0,0 +1,488 @@
+package eu.number26.codechallenge.dao;
+
+import eu.number26.codechallenge.metrics.Histogram;
+import eu.number26.codechallenge.metrics.MetricsRegistry;
+import eu.number26.codechallenge.model.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Base of DAOs storing every transaction in a numbered slot of primitive fields instead of an entity.
+ * <p>
+ * Slot holds id, amount and {@code int} links: parent slot, dictionary encoded type id and links of intrusive doubly
+ * linked lists of children of a transaction and of transactions of a type. So merge relinks a transaction in O(1)
+ * without touching its parents. Total amounts are not cached: they are calculated by subtree traversal, which is
+ * split between threads of a fork-join pool for large subtrees. For the same reason versions are not tracked per
+ * subtree: every transaction has the version of the whole storage, which is incremented by every merge. Paths to
+ * roots are indexed by {@link AncestorIndex} built on queries.
+ * <p>
+ * All operations are guarded by a single read-write lock, subclasses define how slots are stored.
+ * Returned entities are detached copies.
+ *
+ * @author ikanievska
+ */
+abstract class AbstractSlotTransactionDao implements TransactionDao {
+    static final int NONE = -1;
+
+    static final int PARENT = 0;
+    static final int TYPE = 1;
+    static final int FIRST_CHILD = 2;
+    static final int NEXT_SIBLING = 3;
+    static final int PREVIOUS_SIBLING = 4;
+    static final int NEXT_OF_TYPE = 5;
+    static final int PREVIOUS_OF_TYPE = 6;
+    /**
+     * Number of links of a slot
+     */
+    static final int LINKS = 7;
+
+    /**
+     * Slots walked by a task between checks for splitting
+     */
+    private static final int SPLIT_STEP = 1024;
+    /**
+     * Queued tasks of a worker, above which it doesn't split its walk
+     */
+    private static final int SPLIT_SURPLUS = 3;
+
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long version = TransactionDao.initialVersion();
+    private final AncestorIndex ancestorIndex = new AncestorIndex(this::parentId, this::slotsNumber);
+    private long parallelThreshold = 100000;
+    private ForkJoinPool sumPool = new ForkJoinPool();
+    private Histogram mergeLockWait;
+    private Histogram sumNodesVisited;
+
+    /**
+     * @return slot of the transaction or {@link #NONE} if it doesn't exist
+     */
+    abstract int slot(long transactionId);
+
+    /**
+     * Allocate slot for new transaction with all links set to {@link #NONE}.
+     */
+    abstract int newSlot(long transactionId);
+
+    abstract int slotsNumber();
+
+    abstract long id(int slot);
+
+    abstract double amount(int slot);
+
+    abstract void amount(int slot, double amount);
+
+    abstract int link(int slot, int link);
+
+    abstract void link(int slot, int link, int value);
+
+    /**
+     * @return dictionary id of the type or {@link #NONE} if there are no such type yet
+     */
+    abstract int typeId(String type);
+
+    /**
+     * Add type to dictionary with empty list of transactions.
+     */
+    abstract int newTypeId(String type);
+
+    abstract String type(int typeId);
+
+    /**
+     * @return first slot of transactions of the type
+     */
+    abstract int typeHead(int typeId);
+
+    abstract void typeHead(int typeId, int slot);
+
+    abstract void clearSlots();
+
+    @Autowired(required = false)
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.mergeLockWait = metricsRegistry.mergeLockWait(this);
+        this.sumNodesVisited = metricsRegistry.sumNodesVisited(this);
+    }
+
+    /**
+     * @param parallelThreshold transactions summed by the calling thread before the rest of the subtree is summed
+     *                          in parallel
+     */
+    @Value("${sum.parallel.threshold:100000}")
+    public void setParallelThreshold(long parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * @param sumParallelism threads of the pool summing large subtrees, 0 for the number of processors
+     */
+    @Value("${sum.parallel.parallelism:0}")
+    public void setSumParallelism(int sumParallelism) {
+        sumPool.shutdown();
+        sumPool = sumParallelism > 0 ? new ForkJoinPool(sumParallelism) : new ForkJoinPool();
+    }
+
+    private void lockForMerge() {
+        long start = System.nanoTime();
+        lock.writeLock().lock();
+        if (mergeLockWait != null) {
+            mergeLockWait.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Transaction merge(Transaction transaction) {
+        if (transaction.getTransactionId().equals(transaction.getParentId())) {
+            return null;
+        }
+        lockForMerge();
+        try {
+            return mergeLocked(transaction);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Takes the write lock once for the whole batch.
+     */
+    @Override
+    public List<Transaction> mergeAll(List<Transaction> transactions) {
+        lockForMerge();
+        try {
+            return TransactionDao.super.mergeAll(transactions);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Transaction mergeLocked(Transaction transaction) {
+        int slot = slot(transaction.getTransactionId());
+        int parentSlot = NONE;
+        if (transaction.getParentId() != null) {
+            parentSlot = slot(transaction.getParentId());
+            if (parentSlot == NONE || (slot != NONE && isAncestor(slot, parentSlot))) {
+                return null;
+            }
+        }
+        boolean created = slot == NONE;
+        if (created) {
+            slot = newSlot(transaction.getTransactionId());
+        }
+        if (link(slot, PARENT) != parentSlot) {
+            unlinkChild(slot);
+            linkChild(parentSlot, slot);
+            if (!created) {
+                ancestorIndex.invalidateSubtree(transaction.getTransactionId(), this::childIds);
+            }
+        }
+        int typeId = NONE;
+        if (transaction.getType() != null) {
+            typeId = typeId(transaction.getType());
+            if (typeId == NONE) {
+                typeId = newTypeId(transaction.getType());
+            }
+        }
+        if (link(slot, TYPE) != typeId) {
+            unlinkType(slot);
+            linkType(typeId, slot);
+        }
+        amount(slot, transaction.getAmount());
+        ++version;
+        return transaction;
+    }
+
+    private Long parentId(Long transactionId) {
+        int parentSlot = link(slot(transactionId), PARENT);
+        return parentSlot == NONE ? null : id(parentSlot);
+    }
+
+    private Collection<Long> childIds(Long transactionId) {
+        List<Long> childIds = new ArrayList<>();
+        for (int child = link(slot(transactionId), FIRST_CHILD); child != NONE; child = link(child, NEXT_SIBLING)) {
+            childIds.add(id(child));
+        }
+        return childIds;
+    }
+
+    /**
+     * Check whether the slot is the specified one or one of its parents transitively.
+     */
+    private boolean isAncestor(int ancestor, int slot) {
+        for (int current = slot; current != NONE; current = link(current, PARENT)) {
+            if (current == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void linkChild(int parentSlot, int slot) {
+        link(slot, PARENT, parentSlot);
+        if (parentSlot != NONE) {
+            int head = link(parentSlot, FIRST_CHILD);
+            link(slot, NEXT_SIBLING, head);
+            link(slot, PREVIOUS_SIBLING, NONE);
+            if (head != NONE) {
+                link(head, PREVIOUS_SIBLING, slot);
+            }
+            link(parentSlot, FIRST_CHILD, slot);
+        }
+    }
+
+    private void unlinkChild(int slot) {
+        int parentSlot = link(slot, PARENT);
+        if (parentSlot == NONE) {
+            return;
+        }
+        int previous = link(slot, PREVIOUS_SIBLING);
+        int next = link(slot, NEXT_SIBLING);
+        if (previous == NONE) {
+            link(parentSlot, FIRST_CHILD, next);
+        } else {
+            link(previous, NEXT_SIBLING, next);
+        }
+        if (next != NONE) {
+            link(next, PREVIOUS_SIBLING, previous);
+        }
+        link(slot, PARENT, NONE);
+        link(slot, NEXT_SIBLING, NONE);
+        link(slot, PREVIOUS_SIBLING, NONE);
+    }
+
+    private void linkType(int typeId, int slot) {
+        link(slot, TYPE, typeId);
+        if (typeId != NONE) {
+            int head = typeHead(typeId);
+            link(slot, NEXT_OF_TYPE, head);
+            link(slot, PREVIOUS_OF_TYPE, NONE);
+            if (head != NONE) {
+                link(head, PREVIOUS_OF_TYPE, slot);
+            }
+            typeHead(typeId, slot);
+        }
+    }
+
+    private void unlinkType(int slot) {
+        int typeId = link(slot, TYPE);
+        if (typeId == NONE) {
+            return;
+        }
+        int previous = link(slot, PREVIOUS_OF_TYPE);
+        int next = link(slot, NEXT_OF_TYPE);
+        if (previous == NONE) {
+            typeHead(typeId, next);
+        } else {
+            link(previous, NEXT_OF_TYPE, next);
+        }
+        if (next != NONE) {
+            link(next, PREVIOUS_OF_TYPE, previous);
+        }
+        link(slot, TYPE, NONE);
+        link(slot, NEXT_OF_TYPE, NONE);
+        link(slot, PREVIOUS_OF_TYPE, NONE);
+    }
+
+    @Override
+    public Transaction getById(Long transactionId) {
+        lock.readLock().lock();
+        try {
+            int slot = slot(transactionId);
+            if (slot == NONE) {
+                return null;
+            }
+            int parentSlot = link(slot, PARENT);
+            int typeId = link(slot, TYPE);
+            Transaction transaction = new Transaction();
+            transaction.setTransactionId(id(slot));
+            transaction.setParentId(parentSlot == NONE ? null : id(parentSlot));
+            transaction.setType(typeId == NONE ? null : type(typeId));
+            transaction.setAmount(amount(slot));
+            return transaction;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<Long> transactionIdsByType(String type) {
+        lock.readLock().lock();
+        try {
+            int typeId = type == null ? NONE : typeId(type);
+            if (typeId == NONE) {
+                return Collections.emptyList();
+            }
+            List<Long> transactionIds = new ArrayList<>();
+            for (int slot = typeHead(typeId); slot != NONE; slot = link(slot, NEXT_OF_TYPE)) {
+                transactionIds.add(id(slot));
+            }
+            return transactionIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sum amounts of the subtree walking it depth-first with a stack of slots. If the subtree has more than
+     * {@code sum.parallel.threshold} transactions, the rest of the walk is split between threads of the pool.
+     * The read lock of the calling thread keeps the storage unchanged until the pool finishes.
+     */
+    @Override
+    public Double transactionTotalAmount(Long transactionId) {
+        lock.readLock().lock();
+        try {
+            int slot = slot(transactionId);
+            if (slot == NONE) {
+                return null;
+            }
+            SubtreeWalk walk = new SubtreeWalk(new int[]{slot}, 1);
+            walk.walk(parallelThreshold);
+            if (walk.top > 0) {
+                walk = sumPool.invoke(new SubtreeSumTask(walk));
+            }
+            if (sumNodesVisited != null) {
+                sumNodesVisited.observe(walk.visited);
+            }
+            return walk.sum;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Depth-first walk of a part of a subtree: stack of slots to visit and sum of visited ones.
+     */
+    private class SubtreeWalk {
+        private int[] stack;
+        private int top;
+        private double sum;
+        private long visited;
+
+        private SubtreeWalk(int[] stack, int top) {
+            this.stack = stack;
+            this.top = top;
+        }
+
+        /**
+         * Visit up to specified number of slots.
+         */
+        private void walk(long limit) {
+            for (long i = 0; i < limit && top > 0; ++i) {
+                int current = stack[--top];
+                sum += amount(current);
+                ++visited;
+                for (int child = link(current, FIRST_CHILD); child != NONE; child = link(child, NEXT_SIBLING)) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[top++] = child;
+                }
+            }
+        }
+
+        /**
+         * Move the bottom half of the stack, which holds the slots closest to the root, to a new walk.
+         */
+        private SubtreeWalk split() {
+            int half = top / 2;
+            SubtreeWalk other = new SubtreeWalk(Arrays.copyOf(stack, Math.max(half, 16)), half);
+            System.arraycopy(stack, half, stack, 0, top - half);
+            top -= half;
+            return other;
+        }
+
+        private void add(SubtreeWalk other) {
+            sum += other.sum;
+            visited += other.visited;
+        }
+    }
+
+    /**
+     * Walks its part of the subtree in steps of {@link #SPLIT_STEP} slots, forking half of the pending slots after
+     * every step while other threads may take them.
+     */
+    private class SubtreeSumTask extends RecursiveTask<SubtreeWalk> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient SubtreeWalk walk;
+
+        private SubtreeSumTask(SubtreeWalk walk) {
+            this.walk = walk;
+        }
+
+        @Override
+        protected SubtreeWalk compute() {
+            List<SubtreeSumTask> forked = new ArrayList<>();
+            while (walk.top > 0) {
+                if (walk.top > 1 && getSurplusQueuedTaskCount() < SPLIT_SURPLUS) {
+                    SubtreeSumTask task = new SubtreeSumTask(walk.split());
+                    task.fork();
+                    forked.add(task);
+                }
+                walk.walk(SPLIT_STEP);
+            }
+            for (SubtreeSumTask task : forked) {
+                walk.add(task.join());
+            }
+            return walk;
+        }
+    }
+
+    @Override
+    public List<Long> ancestorIds(Long transactionId) {
+        lock.readLock().lock();
+        try {
+            return slot(transactionId) == NONE ? null : ancestorIndex.ancestorIds(transactionId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Long lowestCommonAncestor(Long transactionId, Long otherTransactionId) {
+        lock.readLock().lock();
+        try {
+            if (slot(transactionId) == NONE || slot(otherTransactionId) == NONE) {
+                return null;
+            }
+            return ancestorIndex.lowestCommonAncestor(transactionId, otherTransactionId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Long transactionVersion(Long transactionId) {
+        lock.readLock().lock();
+        try {
+            return slot(transactionId) == NONE ? null : version;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clearSlots();
+            ancestorIndex.clear();
+            ++version;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return slotsNumber();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package eu.number26.codechallenge.dao;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Binary lifting index of transaction trees: every indexed transaction knows its depth and its ancestors 1, 2, 4, ...
+ * levels above, so lowest common ancestor of two transactions is found in O(log depth) hops.
+ * <p>
+ * Jumps of a transaction are built on the first query from jumps of its parent, so merge of a new transaction costs
+ * nothing. Indexed transactions always include all their ancestors. Move of a stored transaction to another parent
+ * changes jumps of its subtree only, so only the subtree is removed from the index, which takes no time if it
+ * wasn't queried. Queries build and read jumps under the read lock and removal takes the write lock, so jumps built
+ * from parents read before the move are removed as well. Removal should be called after the move.
+ *
+ * @author ikanievska
+ */
+class AncestorIndex {
+    private final Function<Long, Long> parentIds;
+    private final LongSupplier size;
+    private final Map<Long, Jumps> jumps = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param parentIds parent id of stored transaction, {@code null} for roots
+     * @param size      number of stored transactions, which limits walks observing concurrently relinked trees
+     */
+    AncestorIndex(Function<Long, Long> parentIds, LongSupplier size) {
+        this.parentIds = parentIds;
+        this.size = size;
+    }
+
+    /**
+     * Depth and ancestors of a transaction: {@code up[k]} is the ancestor {@code 2^k} levels above.
+     */
+    private static final class Jumps {
+        private final long transactionId;
+        private final int depth;
+        private final Jumps[] up;
+
+        private Jumps(long transactionId, Jumps parent) {
+            this.transactionId = transactionId;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+            this.up = new Jumps[32 - Integer.numberOfLeadingZeros(depth)];
+            if (parent != null) {
+                up[0] = parent;
+                for (int k = 1; k < up.length; ++k) {
+                    up[k] = up[k - 1].up[k - 1];
+                }
+            }
+        }
+
+        private Jumps lift(int levels) {
+            Jumps current = this;
+            for (int k = 0; levels > 0; ++k, levels >>>= 1) {
+                if ((levels & 1) != 0) {
+                    current = current.up[k];
+                }
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Remove jumps of the subtree of a transaction moved to another parent.
+     *
+     * @param childIds ids of children of stored transaction
+     */
+    void invalidateSubtree(Long transactionId, Function<Long, Collection<Long>> childIds) {
+        lock.writeLock().lock();
+        try {
+            // Children of transactions without jumps aren't indexed either
+            if (!jumps.containsKey(transactionId)) {
+                return;
+            }
+            Deque<Long> stack = new ArrayDeque<>();
+            stack.push(transactionId);
+            while (!stack.isEmpty()) {
+                Long current = stack.pop();
+                if (jumps.remove(current) != null) {
+                    childIds.apply(current).forEach(stack::push);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            jumps.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find jumps of the transaction, building missing ones from the closest indexed ancestor down.
+     * It should be called under the read lock.
+     */
+    private Jumps jumps(Long transactionId) {
+        while (true) {
+            List<Long> path = new ArrayList<>();
+            Jumps indexed = null;
+            for (Long id = transactionId; id != null; id = parentIds.apply(id)) {
+                indexed = jumps.get(id);
+                if (indexed != null) {
+                    break;
+                }
+                path.add(id);
+                if (path.size() > size.getAsLong()) {
+                    // Concurrent move was observed halfway as a loop
+                    break;
+                }
+            }
+            if (path.size() > size.getAsLong()) {
+                continue;
+            }
+            for (int i = path.size() - 1; i >= 0; --i) {
+                indexed = new Jumps(path.get(i), indexed);
+                jumps.put(path.get(i), indexed);
+            }
+            return indexed;
+        }
+    }
+
+    /**
+     * @return ids of ancestors of stored transaction from its parent to the root
+     */
+    List<Long> ancestorIds(Long transactionId) {
+        lock.readLock().lock();
+        try {
+            Jumps transaction = jumps(transactionId);
+            List<Long> ancestorIds = new ArrayList<>(transaction.depth);
+            for (Jumps current = transaction; current.depth > 0; current = current.up[0]) {
+                ancestorIds.add(current.up[0].transactionId);
+            }
+            return ancestorIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lift the deeper transaction to the depth of the other one, then lift both by the longest jumps which don't
+     * reach common ancestors.
+     *
+     * @return id of the deepest transaction which is one of stored transactions or an ancestor of both, {@code null}
+     * if they are in different trees
+     */
+    Long lowestCommonAncestor(Long transactionId, Long otherTransactionId) {
+        lock.readLock().lock();
+        try {
+            Jumps first = jumps(transactionId);
+            Jumps second = jumps(otherTransactionId);
+            if (first.depth < second.depth) {
+                Jumps deeper = second;
+                second = first;
+                first = deeper;
+            }
+            first = first.lift(first.depth - second.depth);
+            if (first == second) {
+                return first.transactionId;
+            }
+            for (int k = first.up.length - 1; k >= 0; --k) {
+                // Lifted transactions have no jumps above the root
+                if (k < first.up.length && first.up[k] != second.up[k]) {
+                    first = first.up[k];
+                    second = second.up[k];
+                }
+            }
+            return first.depth > 0 && first.up[0] == second.up[0] ? first.up[0].transactionId : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package eu.number26.codechallenge.dao;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Declares caching DAOs in front of other DAOs.
+ *
+ * @author ikanievska
+ */
+@Configuration
+public class CachingDaoConfiguration {
+
+    @Bean
+    public TransactionDao transactionCachedMongoDao(@Qualifier("transactionMongoDao") TransactionDao transactionMongoDao,
+                                                    @Value("${cache.maximumSize:100000}") int maximumSize) {
+        return new CachingTransactionDao(transactionMongoDao, maximumSize);
+    }
+}
@@ -0,0 +1,195 @@
+package eu.number26.codechallenge.dao;
+
+import eu.number26.codechallenge.metrics.MetricsRegistry;
+import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.model.TypeStatistics;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of transactions, total amounts and versions in front of another DAO.
+ * <p>
+ * All caches are bounded and evict the least recently used entries. Merge invalidates the transaction and total
+ * amounts and versions of its old and new parents with all their ancestors. Merges of the same transaction are serialized, so
+ * the old parent is known for sure, if all merges go through the cache. Values loaded concurrently with an
+ * invalidation are not cached: every invalidation starts a new generation and a value is cached only if the
+ * generation is the same as before loading it.
+ * <p>
+ * Type queries and statistics are not cached. Cached entities are shared between callers and should not be changed.
+ *
+ * @author ikanievska
+ */
+public class CachingTransactionDao implements TransactionDao {
+    private final TransactionDao delegate;
+    private final LruCache<Long, Transaction> transactions;
+    private final LruCache<Long, Double> totalAmounts;
+    private final LruCache<Long, Long> versions;
+    private final StripedLock locks = new StripedLock(256);
+    private final AtomicLong generation = new AtomicLong();
+
+    public CachingTransactionDao(TransactionDao delegate, int maximumSize) {
+        this.delegate = delegate;
+        this.transactions = new LruCache<>(maximumSize);
+        this.totalAmounts = new LruCache<>(maximumSize);
+        this.versions = new LruCache<>(maximumSize);
+    }
+
+    /**
+     * Expose hit, miss and eviction counters of all caches.
+     */
+    @Autowired(required = false)
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        register(metricsRegistry, "transaction", transactions);
+        register(metricsRegistry, "totalAmount", totalAmounts);
+        register(metricsRegistry, "version", versions);
+    }
+
+    private static void register(MetricsRegistry metricsRegistry, String cache, LruCache<?, ?> lruCache) {
+        metricsRegistry.register("transaction_cache_hits_total", "Cache hits", lruCache.hits, "cache", cache);
+        metricsRegistry.register("transaction_cache_misses_total", "Cache misses", lruCache.misses, "cache", cache);
+        metricsRegistry.register("transaction_cache_evictions_total", "Cache evictions", lruCache.evictions,
+                "cache", cache);
+    }
+
+    private <V> V readThrough(LruCache<Long, V> cache, Long transactionId, Supplier<V> loader) {
+        V value = cache.get(transactionId);
+        if (value == null) {
+            long loadedGeneration = generation.get();
+            value = loader.get();
+            if (value != null) {
+                cache.put(transactionId, value);
+                // Drop the value if it could be loaded before an invalidation
+                if (generation.get() != loadedGeneration) {
+                    cache.remove(transactionId);
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Transaction getById(Long transactionId) {
+        return readThrough(transactions, transactionId, () -> delegate.getById(transactionId));
+    }
+
+    @Override
+    public Double transactionTotalAmount(Long transactionId) {
+        return readThrough(totalAmounts, transactionId, () -> delegate.transactionTotalAmount(transactionId));
+    }
+
+    @Override
+    public TypeStatistics typeStatistics(String type) {
+        return delegate.typeStatistics(type);
+    }
+
+    @Override
+    public List<Long> ancestorIds(Long transactionId) {
+        return delegate.ancestorIds(transactionId);
+    }
+
+    @Override
+    public Long lowestCommonAncestor(Long transactionId, Long otherTransactionId) {
+        return delegate.lowestCommonAncestor(transactionId, otherTransactionId);
+    }
+
+    @Override
+    public Long transactionVersion(Long transactionId) {
+        return readThrough(versions, transactionId, () -> delegate.transactionVersion(transactionId));
+    }
+
+    @Override
+    public Transaction merge(Transaction transaction) {
+        return mergeAll(Collections.singletonList(transaction)).get(0);
+    }
+
+    /**
+     * Current parents of the batch are taken from cached transactions, the rest is read from the delegate with
+     * a single {@link TransactionDao#getByIds(Collection)} call. Parents merged in the batch are known without reads.
+     */
+    @Override
+    public List<Transaction> mergeAll(List<Transaction> transactions) {
+        Long[] transactionIds = transactions.stream().map(Transaction::getTransactionId).toArray(Long[]::new);
+        try (StripedLock.Stripes ignored = locks.lock(transactionIds)) {
+            Map<Long, Long> currentParentIds = new HashMap<>();
+            Set<Long> uncachedIds = new HashSet<>();
+            for (Long transactionId : transactionIds) {
+                Transaction cached = transactionId == null ? null : this.transactions.get(transactionId);
+                if (cached != null) {
+                    currentParentIds.put(transactionId, cached.getParentId());
+                } else if (transactionId != null) {
+                    uncachedIds.add(transactionId);
+                }
+            }
+            if (!uncachedIds.isEmpty()) {
+                delegate.getByIds(uncachedIds).forEach((transactionId, current) ->
+                        currentParentIds.put(transactionId, current.getParentId()));
+            }
+            List<Transaction> merged = delegate.mergeAll(transactions);
+            generation.incrementAndGet();
+            Map<Long, Long> mergedParentIds = new HashMap<>();
+            for (int i = 0; i < transactions.size(); ++i) {
+                if (merged.get(i) != null) {
+                    mergedParentIds.put(transactionIds[i], transactions.get(i).getParentId());
+                }
+            }
+            Set<Long> invalidated = new HashSet<>();
+            for (Long transactionId : mergedParentIds.keySet()) {
+                this.transactions.remove(transactionId);
+                totalAmounts.remove(transactionId);
+                versions.remove(transactionId);
+                invalidateTotalAmounts(currentParentIds.get(transactionId), mergedParentIds, invalidated);
+                invalidateTotalAmounts(mergedParentIds.get(transactionId), mergedParentIds, invalidated);
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Invalidate total amounts and versions of the transaction and all its ancestors, skipping already invalidated
+     * ones.
+     *
+     * @param mergedParentIds parents of transactions merged in the batch, which are read only for other ones
+     */
+    private void invalidateTotalAmounts(Long transactionId, Map<Long, Long> mergedParentIds, Set<Long> invalidated) {
+        while (transactionId != null && invalidated.add(transactionId)) {
+            totalAmounts.remove(transactionId);
+            versions.remove(transactionId);
+            if (mergedParentIds.containsKey(transactionId)) {
+                transactionId = mergedParentIds.get(transactionId);
+            } else {
+                Transaction transaction = getById(transactionId);
+                transactionId = transaction == null ? null : transaction.getParentId();
+            }
+        }
+    }
+
+    @Override
+    public Collection<Long> transactionIdsByType(String type) {
+        return delegate.transactionIdsByType(type);
+    }
+
+    @Override
+    public List<Long> transactionIdsByType(String type, Long after, int limit) {
+        return delegate.transactionIdsByType(type, after, limit);
+    }
+
+    @Override
+    public void forEachTransactionIdByType(String type, Consumer<Long> action) {
+        delegate.forEachTransactionIdByType(type, action);
+    }
+
+    @Override
+    public void clear() {
+        try (StripedLock.Stripes ignored = locks.lockAll()) {
+            delegate.clear();
+            generation.incrementAndGet();
+            transactions.clear();
+            totalAmounts.clear();
+            versions.clear();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package eu.number26.codechallenge.dao;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) hash map from {@code long} keys to non-negative {@code int} values, which
+ * stores keys and values in two primitive arrays without boxing. Entries are never removed one by one.
+ * <p>
+ * Not thread safe.
+ *
+ * @author ikanievska
+ */
+class LongIntHashMap {
+    static final int NO_VALUE = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    LongIntHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        // Keep load factor at most 0.5 to keep probe sequences short
+        return Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) * 2;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+    }
+
+    private int index(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (values.length - 1);
+    }
+
+    /**
+     * @return value of the key or {@link #NO_VALUE} if there is no such key
+     */
+    int get(long key) {
+        int mask = values.length - 1;
+        for (int i = index(key); values[i] != NO_VALUE; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Associate non-negative value with the key, replacing its current value.
+     */
+    void put(long key, int value) {
+        int mask = values.length - 1;
+        int i = index(key);
+        for (; values[i] != NO_VALUE; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > values.length) {
+            resize(values.length * 2);
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldValues.length; ++i) {
+            if (oldValues[i] != NO_VALUE) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+        size = 0;
+    }
+}
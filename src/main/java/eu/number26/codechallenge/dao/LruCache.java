@@ -0,0 +1,87 @@
+package eu.number26.codechallenge.dao;
+
+import eu.number26.codechallenge.metrics.Counter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size-bounded map evicting the least recently used entry, with hit, miss and eviction counters.
+ * Guarded by a single lock, since every read reorders entries.
+ *
+ * @author ikanievska
+ */
+class LruCache<K, V> {
+    private final Lock lock = new ReentrantLock();
+    private final Map<K, V> entries;
+    final Counter hits = new Counter();
+    final Counter misses = new Counter();
+    final Counter evictions = new Counter();
+
+    LruCache(int maximumSize) {
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > maximumSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return cached value or {@code null} if there is no such key
+     */
+    V get(K key) {
+        lock.lock();
+        try {
+            V value = entries.get(key);
+            (value == null ? misses : hits).increment();
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void put(K key, V value) {
+        lock.lock();
+        try {
+            entries.put(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(K key) {
+        lock.lock();
+        try {
+            entries.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
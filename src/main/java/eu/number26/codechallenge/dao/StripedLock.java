@@ -0,0 +1,106 @@
+package eu.number26.codechallenge.dao;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks shared by transaction ids: each id is guarded by the stripe its hash falls into.
+ * <p>
+ * Stripes for several ids are always acquired in ascending order, so concurrent merges touching several trees
+ * can't deadlock each other.
+ *
+ * @author ikanievska
+ */
+class StripedLock {
+    private final ReentrantLock[] stripes;
+
+    StripedLock(int stripesNumber) {
+        if (Integer.bitCount(stripesNumber) != 1) {
+            throw new IllegalArgumentException("Stripes number should be a power of two: " + stripesNumber);
+        }
+        this.stripes = new ReentrantLock[stripesNumber];
+        for (int i = 0; i < stripesNumber; ++i) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    private int stripe(Long key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+    }
+
+    /**
+     * Lock stripes of all specified ids, {@code null} ids are ignored.
+     *
+     * @param keys ids to lock
+     * @return handle to check and release acquired stripes
+     */
+    Stripes lock(Long... keys) {
+        int[] indexes = new int[keys.length];
+        int size = 0;
+        for (Long key : keys) {
+            if (key != null) {
+                indexes[size++] = stripe(key);
+            }
+        }
+        Arrays.sort(indexes, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; ++i) {
+            if (unique == 0 || indexes[unique - 1] != indexes[i]) {
+                indexes[unique++] = indexes[i];
+            }
+        }
+        Stripes locked = new Stripes(Arrays.copyOf(indexes, unique));
+        for (int index : locked.indexes) {
+            stripes[index].lock();
+        }
+        return locked;
+    }
+
+    /**
+     * Lock all stripes, e.g. to modify the whole storage.
+     */
+    Stripes lockAll() {
+        int[] indexes = new int[stripes.length];
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i] = i;
+            stripes[i].lock();
+        }
+        return new Stripes(indexes);
+    }
+
+    /**
+     * Set of stripes held by current thread.
+     */
+    class Stripes implements AutoCloseable {
+        private int[] indexes;
+
+        private Stripes(int[] indexes) {
+            this.indexes = indexes;
+        }
+
+        /**
+         * @return {@code true} if all specified ids are guarded by held stripes ({@code null} ids are ignored)
+         */
+        boolean covers(Long... keys) {
+            for (Long key : keys) {
+                if (key != null && Arrays.binarySearch(indexes, stripe(key)) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void unlock() {
+            for (int i = indexes.length - 1; i >= 0; --i) {
+                stripes[indexes[i]].unlock();
+            }
+            indexes = new int[0];
+        }
+
+        @Override
+        public void close() {
+            unlock();
+        }
+    }
+}
@@ -1,8 +1,17 @@
 package eu.number26.codechallenge.dao;
 
 import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.model.TypeStatistics;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * @author ikanievska
@@ -16,9 +25,73 @@ public interface TransactionDao {
      */
     Transaction merge(Transaction transaction);
 
+    /**
+     * Merge transactions one by one in specified order, so transaction may refer to a parent merged earlier
+     * in the same batch.
+     *
+     * @param transactions to merge
+     * @return results of {@link #merge(Transaction)} in the order of specified transactions
+     */
+    default List<Transaction> mergeAll(List<Transaction> transactions) {
+        List<Transaction> merged = new ArrayList<>(transactions.size());
+        for (Transaction transaction : transactions) {
+            merged.add(merge(transaction));
+        }
+        return merged;
+    }
+
     Transaction getById(Long transactionId);
 
-    Collection<Transaction> transactionsByType(String type);
+    /**
+     * Find stored transactions by ids. By default they are read one by one, DAOs able to read them at once override it.
+     *
+     * @param transactionIds ids of transactions
+     * @return found transactions by their ids, inexistent ones are omitted
+     */
+    default Map<Long, Transaction> getByIds(Collection<Long> transactionIds) {
+        Map<Long, Transaction> found = new HashMap<>();
+        for (Long transactionId : transactionIds) {
+            Transaction transaction = getById(transactionId);
+            if (transaction != null) {
+                found.put(transactionId, transaction);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find ids of all transactions of specified type
+     *
+     * @param type of transactions
+     * @return ids of transactions of specified type or empty collection if there are no such transactions
+     */
+    Collection<Long> transactionIdsByType(String type);
+
+    /**
+     * Find page of ids of transactions of specified type in ascending order
+     *
+     * @param type  of transactions
+     * @param after id the page starts after or {@code null} for the first page
+     * @param limit max number of ids in the page
+     * @return ids of transactions of specified type greater than {@code after}
+     */
+    default List<Long> transactionIdsByType(String type, Long after, int limit) {
+        return transactionIdsByType(type).stream()
+                .filter(transactionId -> after == null || transactionId > after)
+                .sorted()
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Pass ids of all transactions of specified type to the action while reading them, without collecting them
+     *
+     * @param type   of transactions
+     * @param action to perform for every id
+     */
+    default void forEachTransactionIdByType(String type, Consumer<Long> action) {
+        transactionIdsByType(type).forEach(action);
+    }
 
     /**
      * Calculate total amount of specified transaction and its children transitively
@@ -28,5 +101,91 @@ public interface TransactionDao {
      */
     Double transactionTotalAmount(Long transactionId);
 
+    /**
+     * Find number, total, minimum and maximum of amounts of transactions of specified type. By default they are
+     * calculated from all transactions of the type, DAOs maintaining them on merge override it.
+     *
+     * @param type of transactions
+     * @return statistics of the type, zeros if there are no such transactions
+     */
+    default TypeStatistics typeStatistics(String type) {
+        TypeStatistics statistics = new TypeStatistics(type);
+        if (type == null) {
+            return statistics;
+        }
+        forEachTransactionIdByType(type, transactionId -> {
+            Transaction transaction = getById(transactionId);
+            if (transaction != null && type.equals(transaction.getType())) {
+                statistics.add(transaction.getAmount());
+            }
+        });
+        return statistics;
+    }
+
+    /**
+     * Find ids of parents of specified transaction transitively. By default parents are read one by one, DAOs
+     * indexing paths of transactions override it.
+     *
+     * @param transactionId id of the transaction
+     * @return ids from the parent of the transaction to the root of its tree or {@code null} if transaction doesn't
+     * exist
+     */
+    default List<Long> ancestorIds(Long transactionId) {
+        Transaction transaction = getById(transactionId);
+        if (transaction == null) {
+            return null;
+        }
+        List<Long> ancestorIds = new ArrayList<>();
+        for (Long parentId = transaction.getParentId(); parentId != null; ) {
+            ancestorIds.add(parentId);
+            Transaction parent = getById(parentId);
+            parentId = parent == null ? null : parent.getParentId();
+        }
+        return ancestorIds;
+    }
+
+    /**
+     * Find the lowest common ancestor of two transactions: the deepest transaction which is one of them or a parent
+     * of both transitively.
+     *
+     * @param transactionId      id of the first transaction
+     * @param otherTransactionId id of the second transaction
+     * @return id of the common ancestor or {@code null} if transactions are in different trees or one of them
+     * doesn't exist
+     */
+    default Long lowestCommonAncestor(Long transactionId, Long otherTransactionId) {
+        List<Long> ancestorIds = ancestorIds(transactionId);
+        List<Long> otherAncestorIds = ancestorIds(otherTransactionId);
+        if (ancestorIds == null || otherAncestorIds == null) {
+            return null;
+        }
+        Set<Long> path = new HashSet<>(ancestorIds);
+        path.add(transactionId);
+        if (path.contains(otherTransactionId)) {
+            return otherTransactionId;
+        }
+        return otherAncestorIds.stream().filter(path::contains).findFirst().orElse(null);
+    }
+
+    /**
+     * Find version of specified transaction and its children transitively. It changes on every merge of the
+     * transaction or a transaction below it, so it tells whether the transaction or its total amount has changed.
+     *
+     * @param transactionId id of the parent transaction
+     * @return version or {@code null} if transaction doesn't exist or versions aren't tracked by the DAO
+     */
+    default Long transactionVersion(Long transactionId) {
+        return null;
+    }
+
+    /**
+     * Version of new transaction: millisecond clock scaled by 1000, so versions don't collide across restarts and
+     * {@link #clear()}: a transaction created again starts above the old one unless it had more than 1000 merges
+     * per millisecond passed since its creation.
+     */
+    static long initialVersion() {
+        return System.currentTimeMillis() * 1000;
+    }
+
     void clear();
 }
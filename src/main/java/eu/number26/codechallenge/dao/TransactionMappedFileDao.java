@@ -0,0 +1,343 @@
+package eu.number26.codechallenge.dao;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Provides access to storage in memory-mapped files, which survives restarts.
+ * <p>
+ * Storage directory (property {@code mappedfile.directory}) holds three files:
+ * <ul>
+ * <li>{@code transactions.dat} - fixed-width slots: id, amount and links (see {@link AbstractSlotTransactionDao})</li>
+ * <li>{@code index.dat} - open addressing (linear probing) hash table from ids to slots</li>
+ * <li>{@code types.dat} - type dictionary: head of transactions list and name of every type</li>
+ * </ul>
+ * Files are used in place, so opening the storage reads only the type dictionary.
+ * <p>
+ * Changes reach the files through OS page cache, so completed merges survive JVM crash, but may be lost on OS crash:
+ * files are forced to disk on {@link #close()} only. Merge changes several slots without atomicity or recovery, so
+ * a crash in the middle of a merge may leave inconsistent links or amounts of the slots it changes.
+ * A single file is mapped as a whole and mapping is limited by 2 GB, so storage holds up to {@value #MAX_SLOTS}
+ * transactions, merge of a new transaction beyond it throws {@link IllegalStateException}.
+ *
+ * @author ikanievska
+ */
+@Component("transactionMappedFileDao")
+@Lazy
+public class TransactionMappedFileDao extends AbstractSlotTransactionDao implements AutoCloseable {
+    private static final int MAGIC = 0x4e323654;
+    private static final int HEADER_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Slot: id, amount and links
+     */
+    private static final int SLOT_SIZE = 48;
+    private static final int AMOUNT_OFFSET = 8;
+    /**
+     * Slots fitting into the largest mappable file
+     */
+    private static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+    private static final int LINKS_OFFSET = 16;
+
+    /**
+     * Index entry: id and slot + 1, so zero filled entry is empty
+     */
+    private static final int ENTRY_SIZE = 12;
+
+    private final Path directory;
+    private MappedByteBuffer slots;
+    private MappedByteBuffer index;
+    private MappedByteBuffer types;
+    private int size;
+    private int indexSize;
+
+    private final Map<String, Integer> typeIds = new HashMap<>();
+    private final List<String> typeNames = new ArrayList<>();
+    /**
+     * Offsets of type records in types file
+     */
+    private int[] typeOffsets = new int[16];
+    private int typesEnd;
+
+    @Autowired
+    public TransactionMappedFileDao(@Value("${mappedfile.directory:data}") String directory) {
+        this.directory = Paths.get(directory);
+        try {
+            Files.createDirectories(this.directory);
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void open() throws IOException {
+        slots = map("transactions.dat", HEADER_SIZE + (long) SLOT_SIZE * INITIAL_CAPACITY);
+        index = map("index.dat", HEADER_SIZE + (long) ENTRY_SIZE * INITIAL_CAPACITY * 2);
+        types = map("types.dat", HEADER_SIZE + 1024);
+        size = slots.getInt(8);
+        indexSize = index.getInt(8);
+        int typesNumber = types.getInt(8);
+        typesEnd = HEADER_SIZE;
+        for (int typeId = 0; typeId < typesNumber; ++typeId) {
+            byte[] name = new byte[types.getInt(typesEnd + 4)];
+            for (int i = 0; i < name.length; ++i) {
+                name[i] = types.get(typesEnd + 8 + i);
+            }
+            addType(new String(name, StandardCharsets.UTF_8), typesEnd);
+            typesEnd += 8 + name.length;
+        }
+    }
+
+    /**
+     * Map the whole file, creating it with specified size and header if it doesn't exist.
+     */
+    private MappedByteBuffer map(String fileName, long initialSize) throws IOException {
+        Path file = directory.resolve(fileName);
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE, CREATE)) {
+            boolean created = channel.size() == 0;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    created ? initialSize : channel.size());
+            if (created) {
+                buffer.putInt(0, MAGIC);
+            } else if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a transactions storage file: " + file);
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Remap the file with the new size, keeping its content.
+     */
+    private MappedByteBuffer grow(String fileName, long newSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(fileName), READ, WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+        }
+    }
+
+    private static int capacity(MappedByteBuffer buffer, int itemSize) {
+        return (buffer.capacity() - HEADER_SIZE) / itemSize;
+    }
+
+    private static int firstEntry(long transactionId, int mask) {
+        long hash = transactionId * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static int entryOffset(int entry) {
+        return HEADER_SIZE + entry * ENTRY_SIZE;
+    }
+
+    @Override
+    int slot(long transactionId) {
+        int mask = capacity(index, ENTRY_SIZE) - 1;
+        for (int entry = firstEntry(transactionId, mask); ; entry = (entry + 1) & mask) {
+            int offset = entryOffset(entry);
+            int slot = index.getInt(offset + 8) - 1;
+            if (slot == NONE) {
+                return NONE;
+            }
+            if (index.getLong(offset) == transactionId) {
+                // Skip entry of a slot which wasn't committed before crash
+                return slot < size && id(slot) == transactionId ? slot : NONE;
+            }
+        }
+    }
+
+    private void putIndexEntry(MappedByteBuffer index, long transactionId, int slot) {
+        int mask = capacity(index, ENTRY_SIZE) - 1;
+        for (int entry = firstEntry(transactionId, mask); ; entry = (entry + 1) & mask) {
+            int offset = entryOffset(entry);
+            if (index.getInt(offset + 8) == 0 || index.getLong(offset) == transactionId) {
+                index.putLong(offset, transactionId);
+                index.putInt(offset + 8, slot + 1);
+                return;
+            }
+        }
+    }
+
+    @Override
+    int newSlot(long transactionId) {
+        try {
+            if (size == capacity(slots, SLOT_SIZE)) {
+                if (size == MAX_SLOTS) {
+                    throw new IllegalStateException("Storage is full: " + MAX_SLOTS + " transactions");
+                }
+                slots = grow("transactions.dat", HEADER_SIZE + (long) SLOT_SIZE * Math.min(2L * size, MAX_SLOTS));
+            }
+            int slot = size;
+            int offset = HEADER_SIZE + slot * SLOT_SIZE;
+            slots.putLong(offset, transactionId);
+            slots.putDouble(offset + AMOUNT_OFFSET, 0);
+            for (int link = 0; link < LINKS; ++link) {
+                slots.putInt(offset + LINKS_OFFSET + link * 4, NONE);
+            }
+            if ((indexSize + 1) * 2 > capacity(index, ENTRY_SIZE)) {
+                rehashIndex(capacity(index, ENTRY_SIZE) * 2);
+            }
+            putIndexEntry(index, transactionId, slot);
+            index.putInt(8, ++indexSize);
+            // Slot is committed by the size in the header
+            slots.putInt(8, ++size);
+            return slot;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Build index with the new capacity in a temporary file and replace the current index with it.
+     */
+    private void rehashIndex(int capacity) throws IOException {
+        Path temporary = directory.resolve("index.dat.tmp");
+        Files.deleteIfExists(temporary);
+        MappedByteBuffer rehashed;
+        try (FileChannel channel = FileChannel.open(temporary, READ, WRITE, CREATE)) {
+            rehashed = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) ENTRY_SIZE * capacity);
+        }
+        for (int slot = 0; slot < size; ++slot) {
+            putIndexEntry(rehashed, id(slot), slot);
+        }
+        rehashed.putInt(0, MAGIC);
+        rehashed.putInt(8, size);
+        rehashed.force();
+        Files.move(temporary, directory.resolve("index.dat"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = rehashed;
+        indexSize = size;
+    }
+
+    @Override
+    int slotsNumber() {
+        return size;
+    }
+
+    @Override
+    long id(int slot) {
+        return slots.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    @Override
+    double amount(int slot) {
+        return slots.getDouble(HEADER_SIZE + slot * SLOT_SIZE + AMOUNT_OFFSET);
+    }
+
+    @Override
+    void amount(int slot, double amount) {
+        slots.putDouble(HEADER_SIZE + slot * SLOT_SIZE + AMOUNT_OFFSET, amount);
+    }
+
+    @Override
+    int link(int slot, int link) {
+        return slots.getInt(HEADER_SIZE + slot * SLOT_SIZE + LINKS_OFFSET + link * 4);
+    }
+
+    @Override
+    void link(int slot, int link, int value) {
+        slots.putInt(HEADER_SIZE + slot * SLOT_SIZE + LINKS_OFFSET + link * 4, value);
+    }
+
+    private int addType(String type, int offset) {
+        int typeId = typeNames.size();
+        typeNames.add(type);
+        typeIds.put(type, typeId);
+        if (typeId == typeOffsets.length) {
+            typeOffsets = Arrays.copyOf(typeOffsets, typeOffsets.length * 2);
+        }
+        typeOffsets[typeId] = offset;
+        return typeId;
+    }
+
+    @Override
+    int typeId(String type) {
+        Integer typeId = typeIds.get(type);
+        return typeId == null ? NONE : typeId;
+    }
+
+    @Override
+    int newTypeId(String type) {
+        byte[] name = type.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (typesEnd + 8 + name.length > types.capacity()) {
+                types = grow("types.dat", Math.max(types.capacity() * 2L, typesEnd + 8L + name.length));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int offset = typesEnd;
+        types.putInt(offset, NONE);
+        types.putInt(offset + 4, name.length);
+        for (int i = 0; i < name.length; ++i) {
+            types.put(offset + 8 + i, name[i]);
+        }
+        typesEnd += 8 + name.length;
+        int typeId = addType(type, offset);
+        // Type is committed by the number of types in the header
+        types.putInt(8, typeNames.size());
+        return typeId;
+    }
+
+    @Override
+    String type(int typeId) {
+        return typeNames.get(typeId);
+    }
+
+    @Override
+    int typeHead(int typeId) {
+        return types.getInt(typeOffsets[typeId]);
+    }
+
+    @Override
+    void typeHead(int typeId, int slot) {
+        types.putInt(typeOffsets[typeId], slot);
+    }
+
+    @Override
+    void clearSlots() {
+        try {
+            for (String fileName : new String[]{"transactions.dat", "index.dat", "types.dat"}) {
+                Files.deleteIfExists(directory.resolve(fileName));
+            }
+            typeIds.clear();
+            typeNames.clear();
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Force all changes to disk.
+     */
+    @Override
+    @PreDestroy
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            slots.force();
+            index.force();
+            types.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
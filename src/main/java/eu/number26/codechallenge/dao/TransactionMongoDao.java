@@ -1,16 +1,50 @@
 package eu.number26.codechallenge.dao;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import eu.number26.codechallenge.metrics.Histogram;
+import eu.number26.codechallenge.metrics.MetricsRegistry;
 import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.model.TypeStatistics;
 import eu.number26.codechallenge.repository.TransactionRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.BasicUpdate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 
-import java.util.Collection;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 /**
  * DAO for Transactions Mongo Repository.
  * <p>
  * Handles transactions and cascade operations during merge, since Spring Data MongoDB doesn't provide such functionality.
+ * <p>
+ * Every transaction document stores ids of all its parents ({@code ancestors}, from the root) and precomputed total
+ * amount of its subtree ({@code subtreeSum}), so merge updates sums of all parents with a single {@code $inc} and
+ * total amount is read from a single document. Merge increments {@code version} of all parents with the same update.
+ * <p>
+ * Merge locks (within this JVM) roots of the trees it modifies, so writes to unrelated trees run in parallel.
+ * <p>
+ * Statistics of amounts per type are kept in {@code type_stats} collection: merge changes count and sum with
+ * {@code $inc} and extends minimum and maximum with {@code $min} and {@code $max}. Only removal of the minimum or
+ * maximum amount of a type recalculates them from its transactions. Statistics of a type are changed under its lock
+ * (within this JVM) after transactions are written, so recalculated minimum and maximum can't overwrite amounts
+ * added concurrently.
  *
  * @author ikanievska
  */
@@ -18,62 +52,468 @@ import java.util.Collection;
 public class TransactionMongoDao implements TransactionDao {
     @Autowired
     private TransactionRepository transactionRepository;
+    @Autowired
+    private MongoOperations mongoOperations;
+    private final StripedLock locks = new StripedLock(256);
+    private final StripedLock typeLocks = new StripedLock(64);
+    private Histogram mergeLockWait;
+
+    @Autowired(required = false)
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.mergeLockWait = metricsRegistry.mergeLockWait(this);
+    }
+
+    private void observeLockWait(long start) {
+        if (mergeLockWait != null) {
+            mergeLockWait.observeNanos(System.nanoTime() - start);
+        }
+    }
 
     @Override
-    public synchronized Transaction merge(Transaction transaction) {
-        if (transaction.getTransactionId() != null
-                && transaction.getTransactionId().equals(transaction.getParentId())) {
+    public Transaction merge(Transaction transaction) {
+        if (isOwnParent(transaction)) {
             return null;
         }
-        Transaction currentTransaction = transactionRepository.findOne(transaction.getTransactionId());
-        if (currentTransaction != null) {
-            transaction.setChildTransactions(currentTransaction.getChildTransactions());
+        List<Transaction> batch = Collections.singletonList(transaction);
+        while (true) {
+            Long[] treeIds = treeIds(batch, findLinked(batch));
+            long start = System.nanoTime();
+            try (StripedLock.Stripes stripes = locks.lock(treeIds)) {
+                observeLockWait(start);
+                // Trees could be relinked while waiting for locks
+                Map<Long, Transaction> linked = findLinked(batch);
+                if (stripes.covers(treeIds(batch, linked))) {
+                    return mergeLocked(transaction,
+                            linked.get(transaction.getTransactionId()),
+                            transaction.getParentId() == null ? null : linked.get(transaction.getParentId()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Locks trees of the whole batch at once and writes consecutive new transactions with a single ordered bulk
+     * write, while updates of stored transactions are merged one by one.
+     */
+    @Override
+    public List<Transaction> mergeAll(List<Transaction> transactions) {
+        List<Transaction> merged = new ArrayList<>(transactions.size());
+        while (merged.size() < transactions.size()) {
+            List<Transaction> pending = transactions.subList(merged.size(), transactions.size());
+            Long[] treeIds = treeIds(pending, findLinked(pending));
+            long start = System.nanoTime();
+            try (StripedLock.Stripes stripes = locks.lock(treeIds)) {
+                observeLockWait(start);
+                // Trees could be relinked while waiting for locks
+                Map<Long, Transaction> linked = findLinked(pending);
+                if (stripes.covers(treeIds(pending, linked))) {
+                    mergeAllLocked(pending, linked, merged);
+                }
+            }
+        }
+        return merged;
+    }
+
+    private void mergeAllLocked(List<Transaction> transactions, Map<Long, Transaction> linked, List<Transaction> merged) {
+        BatchInsert batchInsert = new BatchInsert();
+        for (int i = 0; i < transactions.size(); ++i) {
+            Transaction transaction = transactions.get(i);
+            if (isOwnParent(transaction)) {
+                merged.add(null);
+            } else if (linked.containsKey(transaction.getTransactionId())) {
+                // Stored transaction could be moved with its subtree, so merge it on top of already written batch
+                batchInsert.execute();
+                Map<Long, Transaction> current = findLinked(Collections.singletonList(transaction));
+                merged.add(mergeLocked(transaction,
+                        current.get(transaction.getTransactionId()),
+                        transaction.getParentId() == null ? null : current.get(transaction.getParentId())));
+                // Moved subtree stays in the locked trees, but ancestors of the rest of the batch could change
+                linked = findLinked(transactions.subList(i + 1, transactions.size()));
+            } else {
+                merged.add(batchInsert.add(transaction, linked));
+            }
+        }
+        batchInsert.execute();
+    }
+
+    /**
+     * Load stored transactions and their new parents in one query, without children references.
+     */
+    private Map<Long, Transaction> findLinked(List<Transaction> transactions) {
+        Set<Long> transactionIds = new HashSet<>();
+        for (Transaction transaction : transactions) {
+            transactionIds.add(transaction.getTransactionId());
+            if (transaction.getParentId() != null) {
+                transactionIds.add(transaction.getParentId());
+            }
+        }
+        Query query = query(where("_id").in(transactionIds));
+        query.fields().include("parentId").include("type").include("amount").include("ancestors").include("subtreeSum");
+        Map<Long, Transaction> linked = new HashMap<>();
+        for (Transaction linkedTransaction : mongoOperations.find(query, Transaction.class)) {
+            linked.put(linkedTransaction.getTransactionId(), linkedTransaction);
         }
-        // Register in parent transaction
+        return linked;
+    }
+
+    /**
+     * Ids of roots of the trees of the transactions and of their new parents (or their own ids if they don't exist yet).
+     */
+    private static Long[] treeIds(List<Transaction> transactions, Map<Long, Transaction> linked) {
+        Long[] treeIds = new Long[transactions.size() * 2];
+        for (int i = 0; i < transactions.size(); ++i) {
+            treeIds[2 * i] = rootId(transactions.get(i).getTransactionId(), linked);
+            treeIds[2 * i + 1] = rootId(transactions.get(i).getParentId(), linked);
+        }
+        return treeIds;
+    }
+
+    private static Long rootId(Long transactionId, Map<Long, Transaction> linked) {
+        Transaction transaction = transactionId == null ? null : linked.get(transactionId);
+        if (transaction == null || transaction.getAncestors().isEmpty()) {
+            return transactionId;
+        }
+        return transaction.getAncestors().get(0);
+    }
+
+    private static boolean isOwnParent(Transaction transaction) {
+        return transaction.getTransactionId() != null
+                && transaction.getTransactionId().equals(transaction.getParentId());
+    }
+
+    private Transaction mergeLocked(Transaction transaction, Transaction currentTransaction, Transaction parentTransaction) {
+        Long transactionId = transaction.getTransactionId();
+        List<Long> ancestors = new ArrayList<>();
         if (transaction.getParentId() != null) {
-            Transaction parentTransaction = transactionRepository.findOne(transaction.getParentId());
-            if (parentTransaction == null || transaction.getChildTransactions().contains(parentTransaction)) {
+            if (parentTransaction == null || parentTransaction.getAncestors().contains(transactionId)) {
                 return null;
-            } else if (currentTransaction == null
-                    || !transaction.getParentId().equals(currentTransaction.getParentId())) {
-                parentTransaction.getChildTransactions().add(transaction);
-                transactionRepository.save(parentTransaction);
             }
+            ancestors.addAll(parentTransaction.getAncestors());
+            ancestors.add(parentTransaction.getTransactionId());
         }
-        // Unregister from current parent transaction if transaction already exists
-        if (currentTransaction != null) {
-            if (currentTransaction.getParentId() != null &&
-                    !currentTransaction.getParentId().equals(transaction.getParentId())) {
-                Transaction currentParrent = transactionRepository.findOne(currentTransaction.getParentId());
-                currentParrent.getChildTransactions().remove(currentTransaction);
-                transactionRepository.save(currentParrent);
+        double currentSubtreeSum = currentTransaction == null ? 0 : currentTransaction.getSubtreeSum();
+        double subtreeSum = currentTransaction == null
+                ? transaction.getAmount()
+                : currentSubtreeSum - currentTransaction.getAmount() + transaction.getAmount();
+        Long currentParentId = currentTransaction == null ? null : currentTransaction.getParentId();
+        boolean parentChanged = !Objects.equals(currentParentId, transaction.getParentId());
+
+        transaction.setAncestors(ancestors);
+        transaction.setSubtreeSum(subtreeSum);
+        Update update = new Update().set("parentId", transaction.getParentId())
+                .set("type", transaction.getType())
+                .set("amount", transaction.getAmount())
+                .set("ancestors", ancestors)
+                .set("subtreeSum", subtreeSum);
+        mongoOperations.upsert(query(where("_id").is(transactionId)),
+                currentTransaction == null
+                        ? update.set("version", TransactionDao.initialVersion())
+                        : update.inc("version", 1),
+                Transaction.class);
+        if (currentTransaction == null) {
+            addTypeAmounts(Collections.singletonList(transaction));
+        } else if (!Objects.equals(currentTransaction.getType(), transaction.getType())
+                || currentTransaction.getAmount() != transaction.getAmount()) {
+            try (StripedLock.Stripes ignored = typeLocks.lock(typeKey(currentTransaction.getType()),
+                    typeKey(transaction.getType()))) {
+                // Added first, so recalculation on removal accounts the new amount already
+                addTypeAmountsLocked(Collections.singletonList(transaction));
+                removeTypeAmountLocked(currentTransaction.getType(), currentTransaction.getAmount());
             }
         }
-        return transactionRepository.save(transaction);
+
+        if (currentTransaction != null && parentChanged) {
+            if (currentParentId != null) {
+                // Unregister from current parent transaction and move subtree sum out of its parents
+                mongoOperations.updateFirst(query(where("_id").is(currentParentId)),
+                        new Update().pull("childTransactions", transaction),
+                        Transaction.class);
+                mongoOperations.updateMulti(query(where("_id").in(currentTransaction.getAncestors())),
+                        new Update().inc("subtreeSum", -currentSubtreeSum).inc("version", 1),
+                        Transaction.class);
+                mongoOperations.updateMulti(query(where("ancestors").is(transactionId)),
+                        new Update().pullAll("ancestors", currentTransaction.getAncestors().toArray()),
+                        Transaction.class);
+            }
+            if (!ancestors.isEmpty()) {
+                mongoOperations.updateMulti(query(where("ancestors").is(transactionId)),
+                        new Update().push("ancestors").atPosition(Update.Position.FIRST).each(ancestors.toArray()),
+                        Transaction.class);
+            }
+        }
+        if (parentTransaction != null) {
+            if (parentChanged) {
+                // Register in parent transaction
+                mongoOperations.updateFirst(query(where("_id").is(parentTransaction.getTransactionId())),
+                        new Update().addToSet("childTransactions", transaction),
+                        Transaction.class);
+            }
+            double delta = parentChanged ? subtreeSum : subtreeSum - currentSubtreeSum;
+            Update ancestorsUpdate = new Update().inc("version", 1);
+            if (delta != 0) {
+                ancestorsUpdate.inc("subtreeSum", delta);
+            }
+            mongoOperations.updateMulti(query(where("_id").in(ancestors)), ancestorsUpdate, Transaction.class);
+        }
+        return transaction;
     }
 
+    /**
+     * Ordered bulk write of new transactions: their documents, their registration in parents and increments of
+     * subtree sums of their parents, summed up per parent, with a single increment of versions of the parents.
+     */
+    private class BatchInsert {
+        private final List<Transaction> inserted = new ArrayList<>();
+        private final Map<Long, Double> subtreeSumDeltas = new LinkedHashMap<>();
+
+        /**
+         * Add new transaction to the batch.
+         *
+         * @param linked stored transactions and transactions of the batch by ids, new transaction is added to it
+         * @return {@code null} if parent transaction doesn't exist else - added transaction
+         */
+        Transaction add(Transaction transaction, Map<Long, Transaction> linked) {
+            List<Long> ancestors = new ArrayList<>();
+            if (transaction.getParentId() != null) {
+                Transaction parentTransaction = linked.get(transaction.getParentId());
+                if (parentTransaction == null) {
+                    return null;
+                }
+                ancestors.addAll(parentTransaction.getAncestors());
+                ancestors.add(parentTransaction.getTransactionId());
+            }
+            transaction.setAncestors(ancestors);
+            transaction.setSubtreeSum(transaction.getAmount());
+            for (Long ancestorId : ancestors) {
+                subtreeSumDeltas.merge(ancestorId, transaction.getAmount(), Double::sum);
+            }
+            inserted.add(transaction);
+            linked.put(transaction.getTransactionId(), transaction);
+            return transaction;
+        }
+
+        void execute() {
+            if (inserted.isEmpty()) {
+                return;
+            }
+            String collectionName = mongoOperations.getCollectionName(Transaction.class);
+            BulkWriteOperation bulkWrite = mongoOperations.getCollection(collectionName).initializeOrderedBulkOperation();
+            for (Transaction transaction : inserted) {
+                bulkWrite.insert(new BasicDBObject("_id", transaction.getTransactionId())
+                        .append("parentId", transaction.getParentId())
+                        .append("type", transaction.getType())
+                        .append("amount", transaction.getAmount())
+                        .append("ancestors", transaction.getAncestors())
+                        .append("subtreeSum", transaction.getSubtreeSum())
+                        .append("version", TransactionDao.initialVersion()));
+                if (transaction.getParentId() != null) {
+                    bulkWrite.find(new BasicDBObject("_id", transaction.getParentId())).updateOne(
+                            new Update().addToSet("childTransactions",
+                                    new DBRef(collectionName, transaction.getTransactionId())).getUpdateObject());
+                }
+            }
+            for (Map.Entry<Long, Double> subtreeSumDelta : subtreeSumDeltas.entrySet()) {
+                Update update = new Update().inc("version", 1);
+                if (subtreeSumDelta.getValue() != 0) {
+                    update.inc("subtreeSum", subtreeSumDelta.getValue());
+                }
+                bulkWrite.find(new BasicDBObject("_id", subtreeSumDelta.getKey())).updateOne(update.getUpdateObject());
+            }
+            bulkWrite.execute();
+            addTypeAmounts(inserted);
+            inserted.clear();
+            subtreeSumDeltas.clear();
+        }
+    }
+
+    private static Long typeKey(String type) {
+        return type == null ? null : (long) type.hashCode();
+    }
+
+    private void addTypeAmounts(List<Transaction> transactions) {
+        try (StripedLock.Stripes ignored = typeLocks.lock(transactions.stream()
+                .map(transaction -> typeKey(transaction.getType()))
+                .toArray(Long[]::new))) {
+            addTypeAmountsLocked(transactions);
+        }
+    }
+
+    /**
+     * Add amounts of written transactions to statistics of their types with a single update per type.
+     */
+    private void addTypeAmountsLocked(List<Transaction> transactions) {
+        Map<String, TypeStatistics> added = new LinkedHashMap<>();
+        for (Transaction transaction : transactions) {
+            if (transaction.getType() != null) {
+                added.computeIfAbsent(transaction.getType(), TypeStatistics::new).add(transaction.getAmount());
+            }
+        }
+        for (TypeStatistics statistics : added.values()) {
+            mongoOperations.upsert(query(where("_id").is(statistics.getType())),
+                    new BasicUpdate(new BasicDBObject()
+                            .append("$inc", new BasicDBObject("count", statistics.getCount())
+                                    .append("sum", statistics.getSum()))
+                            .append("$min", new BasicDBObject("min", statistics.getMin()))
+                            .append("$max", new BasicDBObject("max", statistics.getMax()))),
+                    TypeStatistics.class);
+        }
+    }
+
+    /**
+     * Remove amount of rewritten transaction from statistics of its former type, recalculating minimum and maximum
+     * from transactions of the type if it was one of them.
+     */
+    private void removeTypeAmountLocked(String type, double amount) {
+        if (type == null) {
+            return;
+        }
+        TypeStatistics statistics = mongoOperations.findAndModify(query(where("_id").is(type)),
+                new Update().inc("count", -1).inc("sum", -amount),
+                new FindAndModifyOptions().returnNew(true),
+                TypeStatistics.class);
+        if (statistics == null) {
+            return;
+        }
+        if (statistics.getCount() <= 0) {
+            mongoOperations.remove(query(where("_id").is(type).and("count").lte(0)), TypeStatistics.class);
+        } else if (amount <= statistics.getMin() || amount >= statistics.getMax()) {
+            List<DBObject> extremes = mongoOperations.aggregate(Aggregation.newAggregation(
+                    Aggregation.match(where("type").is(type)),
+                    Aggregation.group().min("amount").as("min").max("amount").as("max")),
+                    Transaction.class, DBObject.class).getMappedResults();
+            if (!extremes.isEmpty()) {
+                mongoOperations.updateFirst(query(where("_id").is(type)),
+                        new Update().set("min", extremes.get(0).get("min")).set("max", extremes.get(0).get("max")),
+                        TypeStatistics.class);
+            }
+        }
+    }
+
+    @Override
+    public TypeStatistics typeStatistics(String type) {
+        TypeStatistics statistics = type == null
+                ? null
+                : mongoOperations.findOne(query(where("_id").is(type)), TypeStatistics.class);
+        return statistics == null ? new TypeStatistics(type) : statistics;
+    }
+
+    /**
+     * Load transaction with its own fields only: neither children references nor tree bookkeeping are read.
+     */
     @Override
     public Transaction getById(Long transactionId) {
-        return transactionRepository.findOne(transactionId);
+        Query query = query(where("_id").is(transactionId));
+        query.fields().include("parentId").include("type").include("amount");
+        return mongoOperations.findOne(query, Transaction.class);
     }
 
+    /**
+     * Load transactions with their own fields only with a single query.
+     */
     @Override
-    public Collection<Transaction> transactionsByType(String type) {
-        return transactionRepository.findByType(type);
+    public Map<Long, Transaction> getByIds(Collection<Long> transactionIds) {
+        Query query = query(where("_id").in(transactionIds));
+        query.fields().include("parentId").include("type").include("amount");
+        return mongoOperations.find(query, Transaction.class).stream()
+                .collect(Collectors.toMap(Transaction::getTransactionId, Function.identity(),
+                        (first, second) -> first));
+    }
+
+    @Override
+    public Collection<Long> transactionIdsByType(String type) {
+        return transactionRepository.findIdsByType(type)
+                .stream()
+                .map(Transaction::getTransactionId)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Long> transactionIdsByType(String type, Long after, int limit) {
+        return transactionRepository.findIdsByTypeAfter(type,
+                after == null ? Long.MIN_VALUE : after,
+                new PageRequest(0, limit, Sort.Direction.ASC, "_id"))
+                .stream()
+                .map(Transaction::getTransactionId)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void forEachTransactionIdByType(String type, Consumer<Long> action) {
+        try (Stream<Transaction> transactions = transactionRepository.streamIdsByType(type)) {
+            transactions.map(Transaction::getTransactionId).forEach(action);
+        }
     }
 
     @Override
     public Double transactionTotalAmount(Long transactionId) {
-        Transaction transaction = transactionRepository.findOne(transactionId);
+        Query query = query(where("_id").is(transactionId));
+        query.fields().include("subtreeSum");
+        Transaction transaction = mongoOperations.findOne(query, Transaction.class);
+        if (transaction == null) {
+            return null;
+        }
+        return transaction.getSubtreeSum();
+    }
+
+    /**
+     * Path of the transaction is stored in its document, so it is read with a single query.
+     */
+    @Override
+    public List<Long> ancestorIds(Long transactionId) {
+        Query query = query(where("_id").is(transactionId));
+        query.fields().include("ancestors");
+        Transaction transaction = mongoOperations.findOne(query, Transaction.class);
         if (transaction == null) {
             return null;
         }
-        return transaction.getTotalAmount();
+        List<Long> ancestorIds = new ArrayList<>(transaction.getAncestors());
+        Collections.reverse(ancestorIds);
+        return ancestorIds;
+    }
+
+    /**
+     * Both paths are read with a single query. Paths from the root coincide down to the common ancestor and differ
+     * below it, so the length of their common prefix is found by binary search.
+     */
+    @Override
+    public Long lowestCommonAncestor(Long transactionId, Long otherTransactionId) {
+        Query query = query(where("_id").in(transactionId, otherTransactionId));
+        query.fields().include("ancestors");
+        Map<Long, Transaction> transactions = mongoOperations.find(query, Transaction.class).stream()
+                .collect(Collectors.toMap(Transaction::getTransactionId, Function.identity(),
+                        (first, second) -> first));
+        if (!transactions.containsKey(transactionId) || !transactions.containsKey(otherTransactionId)) {
+            return null;
+        }
+        List<Long> path = new ArrayList<>(transactions.get(transactionId).getAncestors());
+        path.add(transactionId);
+        List<Long> otherPath = new ArrayList<>(transactions.get(otherTransactionId).getAncestors());
+        otherPath.add(otherTransactionId);
+        int low = 0;
+        int high = Math.min(path.size(), otherPath.size());
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (path.get(middle - 1).equals(otherPath.get(middle - 1))) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low == 0 ? null : path.get(low - 1);
+    }
+
+    @Override
+    public Long transactionVersion(Long transactionId) {
+        Query query = query(where("_id").is(transactionId));
+        query.fields().include("version");
+        Transaction transaction = mongoOperations.findOne(query, Transaction.class);
+        return transaction == null ? null : transaction.getVersion();
     }
 
     @Override
     public void clear() {
         transactionRepository.deleteAll();
+        mongoOperations.remove(new Query(), TypeStatistics.class);
     }
 
     public long size() {
@@ -0,0 +1,314 @@
+package eu.number26.codechallenge.dao;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import eu.number26.codechallenge.metrics.Histogram;
+import eu.number26.codechallenge.metrics.MetricsRegistry;
+import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.model.TypeStatistics;
+import eu.number26.codechallenge.repository.TransactionRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * DAO for Transactions Mongo Repository storing only parent id of every transaction.
+ * <p>
+ * Unlike {@link TransactionMongoDao} it neither keeps children references nor precomputed sums, so merge writes
+ * the single transaction document. Children are linked only by the indexed {@code parentId}
+ * (see {@link TransactionRepository#findByParentId(Long)}) and total amount is calculated on the server with
+ * {@code $graphLookup} (MongoDB 3.4+). Since {@code $graphLookup} collects the whole subtree into one document,
+ * it fails on subtrees exceeding MongoDB document or aggregation memory limits, then the subtree is walked level by
+ * level with {@link TransactionRepository#findAmountsByParentIdIn(Collection)} instead. Ancestors are read the same
+ * way and walked parent by parent if the path doesn't fit.
+ * <p>
+ * Documents written by this DAO and by {@link TransactionMongoDao} are not interchangeable, the collection should
+ * be dropped when switching between them.
+ *
+ * @author ikanievska
+ */
+@Component("transactionMongoParentIdDao")
+public class TransactionMongoParentIdDao implements TransactionDao {
+    /**
+     * Maximum number of parents queried at once by subtree walk.
+     */
+    private static final int WALK_BATCH_SIZE = 1000;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+    @Autowired
+    private MongoOperations mongoOperations;
+    private final StripedLock locks = new StripedLock(256);
+    /**
+     * Serializes parent changes of existing transactions, the only merges which could link trees in a loop.
+     */
+    private final Lock relinkLock = new ReentrantLock();
+    private Histogram sumNodesVisited;
+    private Histogram mergeLockWait;
+
+    @Autowired(required = false)
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.sumNodesVisited = metricsRegistry.sumNodesVisited(this);
+        this.mergeLockWait = metricsRegistry.mergeLockWait(this);
+    }
+
+    private void observeLockWait(long start) {
+        if (mergeLockWait != null) {
+            mergeLockWait.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("try")
+    public Transaction merge(Transaction transaction) {
+        Long transactionId = transaction.getTransactionId();
+        Long parentId = transaction.getParentId();
+        if (transactionId != null && transactionId.equals(parentId)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try (StripedLock.Stripes ignored = locks.lock(transactionId)) {
+            observeLockWait(start);
+            Transaction currentTransaction = parentIdOf(transactionId);
+            if (parentId == null
+                    || (currentTransaction != null && parentId.equals(currentTransaction.getParentId()))) {
+                return save(transaction);
+            }
+            if (currentTransaction == null) {
+                // New transaction has no children yet, so any existent parent is valid
+                return mongoOperations.exists(query(where("_id").is(parentId)), Transaction.class)
+                        ? save(transaction)
+                        : null;
+            }
+            long relinkStart = System.nanoTime();
+            relinkLock.lock();
+            observeLockWait(relinkStart);
+            try {
+                List<Long> parentAncestors = ancestorIds(parentId);
+                if (parentAncestors == null || parentAncestors.contains(transactionId)) {
+                    return null;
+                }
+                return save(transaction);
+            } finally {
+                relinkLock.unlock();
+            }
+        }
+    }
+
+    private Transaction save(Transaction transaction) {
+        mongoOperations.upsert(query(where("_id").is(transaction.getTransactionId())),
+                new Update().set("parentId", transaction.getParentId())
+                        .set("type", transaction.getType())
+                        .set("amount", transaction.getAmount()),
+                Transaction.class);
+        return transaction;
+    }
+
+    /**
+     * Find ids of all parents of the transaction transitively with a single aggregation. {@code $graphLookup} doesn't
+     * keep the order of found documents, so they are sorted by depth of the lookup.
+     */
+    @Override
+    public List<Long> ancestorIds(Long transactionId) {
+        DBObject ancestorsLookup = graphLookup("$parentId", "parentId", "_id", "ancestors");
+        ((DBObject) ancestorsLookup.get("$graphLookup")).put("depthField", "depth");
+        DBObject result;
+        try {
+            result = aggregateOne(
+                    new BasicDBObject("$match", new BasicDBObject("_id", transactionId)),
+                    ancestorsLookup,
+                    new BasicDBObject("$project", new BasicDBObject("ancestors._id", 1).append("ancestors.depth", 1)));
+        } catch (DataAccessException e) {
+            // Path exceeds aggregation limits
+            return walkAncestorIds(transactionId);
+        }
+        if (result == null) {
+            return null;
+        }
+        return ((Collection<?>) result.get("ancestors")).stream()
+                .map(ancestor -> (DBObject) ancestor)
+                .sorted(Comparator.comparingLong(ancestor -> ((Number) ancestor.get("depth")).longValue()))
+                .map(ancestor -> ((Number) ancestor.get("_id")).longValue())
+                .collect(Collectors.toList());
+    }
+
+    private List<Long> walkAncestorIds(Long transactionId) {
+        Transaction transaction = parentIdOf(transactionId);
+        if (transaction == null) {
+            return null;
+        }
+        List<Long> ancestorIds = new ArrayList<>();
+        while (transaction != null && transaction.getParentId() != null) {
+            ancestorIds.add(transaction.getParentId());
+            transaction = parentIdOf(transaction.getParentId());
+        }
+        return ancestorIds;
+    }
+
+    private Transaction parentIdOf(Long transactionId) {
+        Query query = query(where("_id").is(transactionId));
+        query.fields().include("parentId");
+        return mongoOperations.findOne(query, Transaction.class);
+    }
+
+    @Override
+    public Transaction getById(Long transactionId) {
+        return transactionRepository.findOne(transactionId);
+    }
+
+    @Override
+    public Collection<Long> transactionIdsByType(String type) {
+        return transactionRepository.findIdsByType(type)
+                .stream()
+                .map(Transaction::getTransactionId)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Long> transactionIdsByType(String type, Long after, int limit) {
+        return transactionRepository.findIdsByTypeAfter(type,
+                after == null ? Long.MIN_VALUE : after,
+                new PageRequest(0, limit, Sort.Direction.ASC, "_id"))
+                .stream()
+                .map(Transaction::getTransactionId)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void forEachTransactionIdByType(String type, Consumer<Long> action) {
+        try (Stream<Transaction> transactions = transactionRepository.streamIdsByType(type)) {
+            transactions.map(Transaction::getTransactionId).forEach(action);
+        }
+    }
+
+    @Override
+    public Double transactionTotalAmount(Long transactionId) {
+        DBObject result;
+        try {
+            result = aggregateOne(
+                    new BasicDBObject("$match", new BasicDBObject("_id", transactionId)),
+                    graphLookup("$_id", "_id", "parentId", "descendants"),
+                    new BasicDBObject("$project", new BasicDBObject("sum",
+                            new BasicDBObject("$add", Arrays.asList("$amount",
+                                    new BasicDBObject("$sum", "$descendants.amount"))))
+                            .append("descendants", new BasicDBObject("$size", "$descendants"))));
+        } catch (DataAccessException e) {
+            // Subtree exceeds aggregation limits
+            return walkTotalAmount(transactionId);
+        }
+        if (result == null) {
+            return null;
+        }
+        if (sumNodesVisited != null && result.get("descendants") != null) {
+            sumNodesVisited.observe(((Number) result.get("descendants")).doubleValue() + 1);
+        }
+        return ((Number) result.get("sum")).doubleValue();
+    }
+
+    /**
+     * Sum the subtree breadth-first, querying children of up to {@value #WALK_BATCH_SIZE} transactions of a level at
+     * once, so only ids of a single level are kept in memory.
+     */
+    private Double walkTotalAmount(Long transactionId) {
+        Transaction transaction = transactionRepository.findOne(transactionId);
+        if (transaction == null) {
+            return null;
+        }
+        double sum = transaction.getAmount();
+        long visited = 1;
+        List<Long> level = Collections.singletonList(transactionId);
+        while (!level.isEmpty()) {
+            List<Long> nextLevel = new ArrayList<>();
+            for (int from = 0; from < level.size(); from += WALK_BATCH_SIZE) {
+                List<Long> parentIds = level.subList(from, Math.min(from + WALK_BATCH_SIZE, level.size()));
+                for (Transaction child : transactionRepository.findAmountsByParentIdIn(parentIds)) {
+                    sum += child.getAmount();
+                    nextLevel.add(child.getTransactionId());
+                }
+            }
+            visited += nextLevel.size();
+            level = nextLevel;
+        }
+        if (sumNodesVisited != null) {
+            sumNodesVisited.observe(visited);
+        }
+        return sum;
+    }
+
+    /**
+     * Statistics are not maintained on merge, they are calculated on the server with a single aggregation.
+     */
+    @Override
+    public TypeStatistics typeStatistics(String type) {
+        DBObject result = type == null ? null : aggregateOne(
+                new BasicDBObject("$match", new BasicDBObject("type", type)),
+                new BasicDBObject("$group", new BasicDBObject("_id", null)
+                        .append("count", new BasicDBObject("$sum", 1))
+                        .append("sum", new BasicDBObject("$sum", "$amount"))
+                        .append("min", new BasicDBObject("$min", "$amount"))
+                        .append("max", new BasicDBObject("$max", "$amount"))));
+        if (result == null) {
+            return new TypeStatistics(type);
+        }
+        return new TypeStatistics(type, ((Number) result.get("count")).longValue(),
+                ((Number) result.get("sum")).doubleValue(),
+                ((Number) result.get("min")).doubleValue(),
+                ((Number) result.get("max")).doubleValue());
+    }
+
+    private DBObject graphLookup(String startWith, String connectFromField, String connectToField, String as) {
+        String collectionName = mongoOperations.getCollectionName(Transaction.class);
+        return new BasicDBObject("$graphLookup", new BasicDBObject("from", collectionName)
+                .append("startWith", startWith)
+                .append("connectFromField", connectFromField)
+                .append("connectToField", connectToField)
+                .append("as", as));
+    }
+
+    /**
+     * Run raw aggregation pipeline on transactions collection, since Spring Data MongoDB doesn't support all stages.
+     *
+     * @return first result document or {@code null} if there are no results
+     */
+    private DBObject aggregateOne(DBObject... stages) {
+        List<AggregationOperation> operations = new ArrayList<>(stages.length);
+        for (DBObject stage : stages) {
+            operations.add(context -> stage);
+        }
+        List<DBObject> results = mongoOperations.aggregate(Aggregation.newAggregation(operations),
+                mongoOperations.getCollectionName(Transaction.class),
+                DBObject.class).getMappedResults();
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    @Override
+    public void clear() {
+        transactionRepository.deleteAll();
+    }
+
+    public long size() {
+        return transactionRepository.count();
+    }
+}
@@ -1,67 +1,459 @@
 package eu.number26.codechallenge.dao;
 
+import eu.number26.codechallenge.metrics.Histogram;
+import eu.number26.codechallenge.metrics.MetricsRegistry;
 import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.model.TypeStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.Collection;
-import java.util.Map;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
  * Provides access to in-memory storage.
  * <p>
- * NOTE: all changes on returned entities reflect on storage
+ * Merges lock only the trees they modify (see {@link #treeIds(Transaction)}), so writes to unrelated trees
+ * run in parallel, while reads are lock-free.
+ * <p>
+ * Statistics of amounts per type are maintained on merge, so they are read in constant time.
+ * <p>
+ * Storage is durable if {@code nodb.wal.directory} property is set: every merge is written to
+ * {@link TransactionWriteAheadLog} before it returns and every {@code nodb.wal.snapshotInterval} merges a snapshot
+ * of the storage is taken in background to bound recovery time. Merges are blocked only while the log is rolled
+ * and references to stored transactions are copied.
+ * <p>
+ * NOTE: all changes on returned entities reflect on storage (but not on write-ahead log)
  *
  * @author ikanievska
  */
 @Component("transactionNoDbDao")
 public class TransactionNoDbDao implements TransactionDao {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionNoDbDao.class);
+
     private final Map<Long, Transaction> transactions = new ConcurrentHashMap<>();
+    /**
+     * Ids of transactions by type, sorted to page them.
+     */
+    private final Map<String, NavigableSet<Long>> transactionIdsByType = new ConcurrentHashMap<>();
+    private final Map<String, TypeAmounts> typeAmounts = new ConcurrentHashMap<>();
+    private final StripedLock locks = new StripedLock(256);
+    private final AncestorIndex ancestorIndex = new AncestorIndex(this::parentIdOf, transactions::size);
+    private final TransactionWriteAheadLog writeAheadLog;
+    private final int snapshotInterval;
+    private final AtomicLong mergesSinceSnapshot = new AtomicLong();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final ExecutorService snapshotExecutor =
+            Executors.newSingleThreadExecutor(TransactionNoDbDao::newSnapshotThread);
+    private Histogram mergeLockWait;
+
+    public TransactionNoDbDao() {
+        this.writeAheadLog = null;
+        this.snapshotInterval = 0;
+    }
+
+    /**
+     * @param walDirectory     directory of write-ahead log and snapshots, empty to keep transactions in memory only
+     * @param snapshotInterval number of merges between snapshots
+     */
+    @Autowired
+    public TransactionNoDbDao(@Value("${nodb.wal.directory:}") String walDirectory,
+                              @Value("${nodb.wal.snapshotInterval:100000}") int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+        if (walDirectory.isEmpty()) {
+            this.writeAheadLog = null;
+            return;
+        }
+        try {
+            TransactionWriteAheadLog log = new TransactionWriteAheadLog(Paths.get(walDirectory));
+            // Recovered merges aren't logged again, since the log isn't assigned yet
+            log.recover(this::merge, this::clear);
+            this.writeAheadLog = log;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Thread newSnapshotThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "nodb-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    @Autowired(required = false)
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.mergeLockWait = metricsRegistry.mergeLockWait(this);
+    }
+
+    private void observeLockWait(long start) {
+        if (mergeLockWait != null) {
+            mergeLockWait.observeNanos(System.nanoTime() - start);
+        }
+    }
 
     @Override
-    public synchronized Transaction merge(Transaction transaction) {
-        if (transaction.getTransactionId() != null
-                && transaction.getTransactionId().equals(transaction.getParentId())) {
+    public Transaction merge(Transaction transaction) {
+        if (isOwnParent(transaction)) {
             return null;
         }
+        while (true) {
+            Long[] treeIds = treeIds(transaction);
+            Transaction merged;
+            long sequence;
+            long start = System.nanoTime();
+            try (StripedLock.Stripes stripes = locks.lock(treeIds)) {
+                observeLockWait(start);
+                // Trees could be relinked while waiting for locks
+                if (!stripes.covers(treeIds(transaction))) {
+                    continue;
+                }
+                merged = mergeLocked(transaction);
+                sequence = log(merged);
+            }
+            sync(sequence, 1);
+            return merged;
+        }
+    }
+
+    /**
+     * Locks trees of the whole batch at once instead of locking them for every transaction.
+     */
+    @Override
+    public List<Transaction> mergeAll(List<Transaction> transactions) {
+        List<Transaction> merged = new ArrayList<>(transactions.size());
+        long sequence = 0;
+        while (merged.size() < transactions.size()) {
+            List<Transaction> pending = transactions.subList(merged.size(), transactions.size());
+            Long[] treeIds = pending.stream()
+                    .flatMap(transaction -> Arrays.stream(treeIds(transaction)))
+                    .toArray(Long[]::new);
+            long start = System.nanoTime();
+            try (StripedLock.Stripes stripes = locks.lock(treeIds)) {
+                observeLockWait(start);
+                for (Transaction transaction : pending) {
+                    if (isOwnParent(transaction)) {
+                        merged.add(null);
+                    } else if (stripes.covers(treeIds(transaction))) {
+                        Transaction mergedTransaction = mergeLocked(transaction);
+                        sequence = Math.max(sequence, log(mergedTransaction));
+                        merged.add(mergedTransaction);
+                    } else {
+                        // Trees were relinked while waiting for locks, lock the rest of the batch again
+                        break;
+                    }
+                }
+            }
+        }
+        sync(sequence, transactions.size());
+        return merged;
+    }
+
+    /**
+     * Append merged transaction to the log, it is called under locks of its trees to keep order of merges.
+     *
+     * @return sequence number of the record or 0 if there is nothing to log
+     */
+    private long log(Transaction merged) {
+        return writeAheadLog == null || merged == null ? 0 : writeAheadLog.appendMerge(merged);
+    }
+
+    /**
+     * Wait until logged merges are durable and start a snapshot if it is time to. It is called out of tree locks,
+     * so merges of other threads could join the same group commit.
+     */
+    private void sync(long sequence, int merges) {
+        if (sequence == 0) {
+            return;
+        }
+        writeAheadLog.sync(sequence);
+        if (mergesSinceSnapshot.addAndGet(merges) >= snapshotInterval && snapshotting.compareAndSet(false, true)) {
+            snapshotExecutor.execute(() -> {
+                try {
+                    snapshot();
+                } catch (RuntimeException | IOException e) {
+                    // Merges are durable in the log anyway, the snapshot is taken again after the next interval
+                    LOGGER.warn("Snapshot of transactions failed", e);
+                } finally {
+                    snapshotting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Start a new log segment and copy references to all transactions while merges are blocked, then order them
+     * parents first and write them out of locks. Merge replaces stored entities instead of changing them, so copied
+     * ones are not affected by later merges.
+     */
+    private void snapshot() throws IOException {
+        List<Transaction> copy;
+        long segment;
+        try (StripedLock.Stripes ignored = locks.lockAll()) {
+            mergesSinceSnapshot.set(0);
+            segment = writeAheadLog.roll();
+            copy = new ArrayList<>(transactions.values());
+        }
+        Map<Long, List<Transaction>> children = new HashMap<>();
+        List<Transaction> snapshot = new ArrayList<>(copy.size());
+        for (Transaction transaction : copy) {
+            if (transaction.getParentId() == null) {
+                snapshot.add(transaction);
+            } else {
+                children.computeIfAbsent(transaction.getParentId(), parentId -> new ArrayList<>()).add(transaction);
+            }
+        }
+        for (int i = 0; i < snapshot.size(); ++i) {
+            snapshot.addAll(children.getOrDefault(snapshot.get(i).getTransactionId(), Collections.emptyList()));
+        }
+        writeAheadLog.writeSnapshot(segment, snapshot);
+    }
+
+    private static boolean isOwnParent(Transaction transaction) {
+        return transaction.getTransactionId() != null
+                && transaction.getTransactionId().equals(transaction.getParentId());
+    }
+
+    /**
+     * Ids of roots of all trees modified by merge of the transaction: tree of the transaction itself (or its id if
+     * it is new) and tree of its new parent.
+     * <p>
+     * Any change in a tree is done under lock of its root, so holding these locks keeps both trees stable.
+     */
+    private Long[] treeIds(Transaction transaction) {
+        return new Long[]{rootId(transaction.getTransactionId()), rootId(transaction.getParentId())};
+    }
+
+    private Long rootId(Long transactionId) {
+        Transaction root = transactionId == null ? null : transactions.get(transactionId);
+        if (root == null) {
+            return transactionId;
+        }
+        // Unlocked walk may observe concurrently relinked transactions in a loop, limit it by storage size
+        for (int hops = transactions.size(); hops > 0; --hops) {
+            Transaction parent = parentOf(root);
+            if (parent == null) {
+                break;
+            }
+            root = parent;
+        }
+        return root.getTransactionId();
+    }
+
+    private Transaction mergeLocked(Transaction transaction) {
         Transaction currentTransaction = transactions.get(transaction.getTransactionId());
         if (currentTransaction != null) {
             transaction.setChildTransactions(currentTransaction.getChildTransactions());
         }
+        transaction.setVersion(currentTransaction == null
+                ? TransactionDao.initialVersion()
+                : currentTransaction.getVersion() + 1);
+        Transaction parentTransaction = null;
         if (transaction.getParentId() != null) {
-            // Register in parent transaction
-            Transaction parentTransaction = transactions.get(transaction.getParentId());
+            parentTransaction = transactions.get(transaction.getParentId());
             if (parentTransaction == null
-                    || transaction.getChildTransactions().contains(parentTransaction)) {
+                    || (currentTransaction != null && isAncestor(transaction, parentTransaction))) {
                 return null;
-            } else {
-                if (currentTransaction == null
-                        || !transaction.getParentId().equals(currentTransaction.getParentId())) {
-                    parentTransaction.getChildTransactions().add(transaction);
-                }
             }
         }
-        if (currentTransaction != null) {
-            if (currentTransaction.getParentId() != null
-                    && !currentTransaction.getParentId().equals(transaction.getParentId())) {
+        double currentSubtreeSum = currentTransaction == null ? 0 : currentTransaction.getSubtreeSum();
+        double subtreeSum = transaction.getAmount();
+        for (Transaction child : transaction.getChildTransactions()) {
+            subtreeSum += child.getSubtreeSum();
+        }
+        transaction.setSubtreeSum(subtreeSum);
+
+        // Subtree sum of the transaction already accounted in sums of its new parents
+        double registeredSubtreeSum = 0;
+        if (currentTransaction != null && currentTransaction.getParentId() != null) {
+            if (currentTransaction.getParentId().equals(transaction.getParentId())) {
+                registeredSubtreeSum = currentSubtreeSum;
+            } else {
                 // Unregister from current parent transaction if transaction already exists
                 Transaction currentParent = transactions.get(currentTransaction.getParentId());
                 currentParent.getChildTransactions().remove(currentTransaction);
+                addToSubtreeSums(currentParent, -currentSubtreeSum);
             }
         }
+        if (parentTransaction != null) {
+            // Register in parent transaction, replacing the stale entity if it is already registered
+            parentTransaction.getChildTransactions().remove(currentTransaction);
+            parentTransaction.getChildTransactions().add(transaction);
+            addToSubtreeSums(parentTransaction, subtreeSum - registeredSubtreeSum);
+        }
+        if (currentTransaction != null && !Objects.equals(currentTransaction.getType(), transaction.getType())) {
+            unindexType(currentTransaction.getType(), currentTransaction.getTransactionId());
+        }
+        indexType(transaction.getType(), transaction.getTransactionId());
+        if (currentTransaction == null || !Objects.equals(currentTransaction.getType(), transaction.getType())
+                || currentTransaction.getAmount() != transaction.getAmount()) {
+            if (currentTransaction != null) {
+                changeTypeAmount(currentTransaction.getType(), currentTransaction.getAmount(), -1);
+            }
+            changeTypeAmount(transaction.getType(), transaction.getAmount(), 1);
+        }
         transactions.put(transaction.getTransactionId(), transaction);
+        if (currentTransaction != null && !Objects.equals(currentTransaction.getParentId(), transaction.getParentId())) {
+            ancestorIndex.invalidateSubtree(transaction.getTransactionId(), this::childIdsOf);
+        }
         return transactions.get(transaction.getTransactionId());
     }
 
+    /**
+     * Check whether transaction is the specified one or one of its parents transitively.
+     */
+    private boolean isAncestor(Transaction ancestor, Transaction transaction) {
+        for (Transaction current = transaction; current != null; current = parentOf(current)) {
+            if (current.equals(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Long parentIdOf(Long transactionId) {
+        Transaction transaction = transactions.get(transactionId);
+        return transaction == null ? null : transaction.getParentId();
+    }
+
+    private Collection<Long> childIdsOf(Long transactionId) {
+        return transactions.get(transactionId).getChildTransactions().stream()
+                .map(Transaction::getTransactionId)
+                .collect(Collectors.toList());
+    }
+
+    private Transaction parentOf(Transaction transaction) {
+        return transaction.getParentId() == null ? null : transactions.get(transaction.getParentId());
+    }
+
+    /**
+     * Push subtree sum delta up from specified transaction to its root, incrementing versions on the way.
+     */
+    private void addToSubtreeSums(Transaction transaction, double delta) {
+        for (Transaction current = transaction; current != null; current = parentOf(current)) {
+            if (delta != 0) {
+                current.setSubtreeSum(current.getSubtreeSum() + delta);
+            }
+            current.setVersion(current.getVersion() + 1);
+        }
+    }
+
+    private void indexType(String type, Long transactionId) {
+        if (type == null) {
+            return;
+        }
+        transactionIdsByType.compute(type, (key, transactionIds) -> {
+            NavigableSet<Long> ids = transactionIds == null ? new ConcurrentSkipListSet<>() : transactionIds;
+            ids.add(transactionId);
+            return ids;
+        });
+    }
+
+    private void unindexType(String type, Long transactionId) {
+        if (type == null) {
+            return;
+        }
+        transactionIdsByType.computeIfPresent(type, (key, transactionIds) -> {
+            transactionIds.remove(transactionId);
+            return transactionIds.isEmpty() ? null : transactionIds;
+        });
+    }
+
+    private void changeTypeAmount(String type, double amount, int number) {
+        if (type == null) {
+            return;
+        }
+        typeAmounts.compute(type, (key, amounts) -> {
+            TypeAmounts changed = amounts == null ? new TypeAmounts(type) : amounts;
+            changed.change(amount, number);
+            return changed.count == 0 ? null : changed;
+        });
+    }
+
+    /**
+     * Amounts of transactions of a type with their numbers, sorted to find new minimum or maximum when the current
+     * one is removed. It is changed inside {@link ConcurrentHashMap#compute} only and is read through immutable
+     * snapshot of its statistics.
+     */
+    private static class TypeAmounts {
+        private final String type;
+        private final NavigableMap<Double, Integer> amounts = new TreeMap<>();
+        private long count;
+        private double sum;
+        private volatile TypeStatistics statistics;
+
+        private TypeAmounts(String type) {
+            this.type = type;
+        }
+
+        private void change(double amount, int number) {
+            amounts.merge(amount, number, (current, added) -> current + added == 0 ? null : current + added);
+            count += number;
+            sum += amount * number;
+            statistics = count == 0
+                    ? new TypeStatistics(type)
+                    : new TypeStatistics(type, count, sum, amounts.firstKey(), amounts.lastKey());
+        }
+    }
+
     @Override
     public Transaction getById(Long transactionId) {
         return transactions.get(transactionId);
     }
 
     @Override
-    public Collection<Transaction> transactionsByType(String type) {
-        return transactions.values().stream().filter(transaction -> type.equals(transaction.getType())).collect(Collectors.toList());
+    public Collection<Long> transactionIdsByType(String type) {
+        Set<Long> transactionIds = type == null ? null : transactionIdsByType.get(type);
+        if (transactionIds == null) {
+            return Collections.emptyList();
+        }
+        return transactionIds.stream()
+                .filter(transactionId -> hasType(transactionId, type))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Long> transactionIdsByType(String type, Long after, int limit) {
+        NavigableSet<Long> transactionIds = type == null ? null : transactionIdsByType.get(type);
+        if (transactionIds == null) {
+            return Collections.emptyList();
+        }
+        return (after == null ? transactionIds : transactionIds.tailSet(after, false)).stream()
+                .filter(transactionId -> hasType(transactionId, type))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void forEachTransactionIdByType(String type, Consumer<Long> action) {
+        Set<Long> transactionIds = type == null ? null : transactionIdsByType.get(type);
+        if (transactionIds != null) {
+            transactionIds.stream()
+                    .filter(transactionId -> hasType(transactionId, type))
+                    .forEach(action);
+        }
+    }
+
+    /**
+     * Skip ids left behind by entities which type was changed in place, bypassing merge.
+     */
+    private boolean hasType(Long transactionId, String type) {
+        Transaction transaction = transactions.get(transactionId);
+        return transaction != null && type.equals(transaction.getType());
     }
 
     @Override
@@ -70,12 +462,67 @@ public class TransactionNoDbDao implements TransactionDao {
         if (transaction == null) {
             return null;
         }
-        return transaction.getTotalAmount();
+        return transaction.getSubtreeSum();
+    }
+
+    @Override
+    public TypeStatistics typeStatistics(String type) {
+        TypeAmounts amounts = type == null ? null : typeAmounts.get(type);
+        return amounts == null ? new TypeStatistics(type) : amounts.statistics;
+    }
+
+    @Override
+    public List<Long> ancestorIds(Long transactionId) {
+        return transactions.containsKey(transactionId) ? ancestorIndex.ancestorIds(transactionId) : null;
+    }
+
+    /**
+     * Answered by binary lifting over {@link AncestorIndex} in O(log depth) hops.
+     */
+    @Override
+    public Long lowestCommonAncestor(Long transactionId, Long otherTransactionId) {
+        if (!transactions.containsKey(transactionId) || !transactions.containsKey(otherTransactionId)) {
+            return null;
+        }
+        return ancestorIndex.lowestCommonAncestor(transactionId, otherTransactionId);
+    }
+
+    @Override
+    public Long transactionVersion(Long transactionId) {
+        Transaction transaction = transactions.get(transactionId);
+        return transaction == null ? null : transaction.getVersion();
     }
 
     @Override
     public void clear() {
-        transactions.clear();
+        long sequence = 0;
+        try (StripedLock.Stripes ignored = locks.lockAll()) {
+            transactions.clear();
+            transactionIdsByType.clear();
+            typeAmounts.clear();
+            ancestorIndex.clear();
+            if (writeAheadLog != null) {
+                sequence = writeAheadLog.appendClear();
+            }
+        }
+        sync(sequence, 1);
+    }
+
+    /**
+     * Wait for the running snapshot and force the rest of the write-ahead log to disk.
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        snapshotExecutor.shutdown();
+        try {
+            // Let the running snapshot finish with the log it rolled
+            snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
     }
 
     public long size() {
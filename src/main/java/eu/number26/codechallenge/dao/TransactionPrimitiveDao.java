@@ -0,0 +1,142 @@
+package eu.number26.codechallenge.dao;
+
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * Provides access to in-memory storage with compact primitive layout.
+ * <p>
+ * Slots are stored in parallel primitive arrays (ids, amounts and one array per link) and are found by ids with
+ * {@link LongIntHashMap}. So a transaction takes tens of bytes instead of hundreds taken by entity, boxed keys and
+ * children set of {@link TransactionNoDbDao}.
+ *
+ * @author ikanievska
+ */
+@Component("transactionPrimitiveDao")
+public class TransactionPrimitiveDao extends AbstractSlotTransactionDao {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final LongIntHashMap slots = new LongIntHashMap(INITIAL_CAPACITY);
+    private final Map<String, Integer> typeIds = new HashMap<>();
+    private final List<String> types = new ArrayList<>();
+    private int[] typeHeads;
+    private int size;
+
+    private long[] ids;
+    private double[] amounts;
+    private final int[][] links = new int[LINKS][];
+
+    public TransactionPrimitiveDao() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        ids = new long[capacity];
+        amounts = new double[capacity];
+        for (int link = 0; link < LINKS; ++link) {
+            links[link] = new int[capacity];
+        }
+        typeHeads = new int[16];
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        for (int link = 0; link < LINKS; ++link) {
+            links[link] = Arrays.copyOf(links[link], capacity);
+        }
+    }
+
+    @Override
+    int slot(long transactionId) {
+        return slots.get(transactionId);
+    }
+
+    @Override
+    int newSlot(long transactionId) {
+        if (size == ids.length) {
+            grow();
+        }
+        int slot = size++;
+        ids[slot] = transactionId;
+        for (int link = 0; link < LINKS; ++link) {
+            links[link][slot] = NONE;
+        }
+        slots.put(transactionId, slot);
+        return slot;
+    }
+
+    @Override
+    int slotsNumber() {
+        return size;
+    }
+
+    @Override
+    long id(int slot) {
+        return ids[slot];
+    }
+
+    @Override
+    double amount(int slot) {
+        return amounts[slot];
+    }
+
+    @Override
+    void amount(int slot, double amount) {
+        amounts[slot] = amount;
+    }
+
+    @Override
+    int link(int slot, int link) {
+        return links[link][slot];
+    }
+
+    @Override
+    void link(int slot, int link, int value) {
+        links[link][slot] = value;
+    }
+
+    @Override
+    int typeId(String type) {
+        Integer typeId = typeIds.get(type);
+        return typeId == null ? NONE : typeId;
+    }
+
+    @Override
+    int newTypeId(String type) {
+        int typeId = types.size();
+        types.add(type);
+        typeIds.put(type, typeId);
+        if (typeId == typeHeads.length) {
+            typeHeads = Arrays.copyOf(typeHeads, typeHeads.length * 2);
+        }
+        typeHeads[typeId] = NONE;
+        return typeId;
+    }
+
+    @Override
+    String type(int typeId) {
+        return types.get(typeId);
+    }
+
+    @Override
+    int typeHead(int typeId) {
+        return typeHeads[typeId];
+    }
+
+    @Override
+    void typeHead(int typeId, int slot) {
+        typeHeads[typeId] = slot;
+    }
+
+    @Override
+    void clearSlots() {
+        slots.clear(INITIAL_CAPACITY);
+        typeIds.clear();
+        types.clear();
+        size = 0;
+        allocate(INITIAL_CAPACITY);
+    }
+}
@@ -0,0 +1,347 @@
+package eu.number26.codechallenge.dao;
+
+import eu.number26.codechallenge.model.Transaction;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only log of merged transactions with snapshots, which makes in-memory storage durable.
+ * <p>
+ * Log is split into segments {@code wal-N.log}, snapshot {@code snapshot-N.dat} holds the whole storage as it was
+ * before segment N. Every record is framed with its length and CRC32, so a torn record at the tail is detected and
+ * dropped on recovery.
+ * <p>
+ * Appended records are made durable by {@link #sync(long)} with group commit: the first waiting thread writes and
+ * forces records appended by all threads so far, while the others wait for it. If the write fails, the segment may
+ * end with a torn record, which would hide records written after it on recovery, so the log is failed for good:
+ * every sync of a record which isn't durable yet throws. The same applies to writes of {@link #roll()} and
+ * {@link #close()}.
+ *
+ * @author ikanievska
+ */
+class TransactionWriteAheadLog implements AutoCloseable {
+    private static final byte MERGE = 1;
+    private static final byte CLEAR = 2;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended;
+    private long durable;
+    private boolean syncing;
+    private RuntimeException failure;
+    private FileChannel segment;
+    private long segmentNumber;
+
+    TransactionWriteAheadLog(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Restore the storage from the latest snapshot and log segments written after it, then start a new segment.
+     *
+     * @param merge to apply merged transaction
+     * @param clear to apply clearing of the storage
+     */
+    void recover(Consumer<Transaction> merge, Runnable clear) throws IOException {
+        List<Long> snapshots = fileNumbers("snapshot-", ".dat");
+        long firstSegment = 0;
+        if (!snapshots.isEmpty()) {
+            firstSegment = snapshots.get(snapshots.size() - 1);
+            readRecords(snapshotFile(firstSegment), merge, clear);
+        }
+        long lastSegment = firstSegment - 1;
+        for (long number : fileNumbers("wal-", ".log")) {
+            if (number >= firstSegment) {
+                readRecords(segmentFile(number), merge, clear);
+                lastSegment = number;
+            }
+        }
+        segmentNumber = Math.max(firstSegment, lastSegment + 1);
+        segment = FileChannel.open(segmentFile(segmentNumber), WRITE, CREATE, TRUNCATE_EXISTING);
+    }
+
+    private List<Long> fileNumbers(String prefix, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+                    .map(name -> Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path segmentFile(long number) {
+        return directory.resolve(String.format("wal-%020d.log", number));
+    }
+
+    private Path snapshotFile(long number) {
+        return directory.resolve(String.format("snapshot-%020d.dat", number));
+    }
+
+    private static void readRecords(Path file, Consumer<Transaction> merge, Runnable clear) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                // Torn record at the tail, written partially before crash, ends the file
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    long checksum = in.readInt() & 0xFFFFFFFFL;
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        return;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if (crc.getValue() != checksum) {
+                        return;
+                    }
+                } catch (EOFException e) {
+                    return;
+                }
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                if (recordIn.readByte() == CLEAR) {
+                    clear.run();
+                } else {
+                    merge.accept(readTransaction(recordIn));
+                }
+            }
+        }
+    }
+
+    private static Transaction readTransaction(DataInputStream in) throws IOException {
+        Transaction transaction = new Transaction();
+        transaction.setTransactionId(in.readLong());
+        transaction.setParentId(in.readBoolean() ? in.readLong() : null);
+        if (in.readBoolean()) {
+            byte[] type = new byte[in.readInt()];
+            in.readFully(type);
+            transaction.setType(new String(type, StandardCharsets.UTF_8));
+        }
+        transaction.setAmount(in.readDouble());
+        return transaction;
+    }
+
+    private static void writeMerge(DataOutputStream out, Transaction transaction) throws IOException {
+        out.writeByte(MERGE);
+        out.writeLong(transaction.getTransactionId());
+        out.writeBoolean(transaction.getParentId() != null);
+        if (transaction.getParentId() != null) {
+            out.writeLong(transaction.getParentId());
+        }
+        out.writeBoolean(transaction.getType() != null);
+        if (transaction.getType() != null) {
+            byte[] type = transaction.getType().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(type.length);
+            out.write(type);
+        }
+        out.writeDouble(transaction.getAmount());
+    }
+
+    /**
+     * Frame the record with its length and checksum.
+     */
+    private static void writeFramed(OutputStream out, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        DataOutputStream framedOut = new DataOutputStream(out);
+        framedOut.writeInt(record.length);
+        framedOut.writeInt((int) crc.getValue());
+        framedOut.write(record);
+    }
+
+    /**
+     * Append merge of the transaction, it should be called in the order of merges of the same transactions.
+     *
+     * @return sequence number to wait for with {@link #sync(long)}
+     */
+    long appendMerge(Transaction transaction) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        try {
+            writeMerge(new DataOutputStream(record), transaction);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return append(record.toByteArray());
+    }
+
+    long appendClear() {
+        return append(new byte[]{CLEAR});
+    }
+
+    private long append(byte[] record) {
+        lock.lock();
+        try {
+            writeFramed(pending, record);
+            return ++appended;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until record with specified sequence number and all previous ones are forced to disk.
+     */
+    void sync(long sequence) {
+        lock.lock();
+        try {
+            while (durable < sequence) {
+                if (failure != null) {
+                    throw new UncheckedIOException(new IOException("Write-ahead log has failed", failure));
+                }
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                // Become a leader of the group: write records of all threads appended so far
+                syncing = true;
+                ByteArrayOutputStream batch = pending;
+                long batchEnd = appended;
+                pending = new ByteArrayOutputStream();
+                FileChannel channel = segment;
+                boolean written = false;
+                lock.unlock();
+                try {
+                    write(channel, batch);
+                    written = true;
+                } catch (RuntimeException e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    lock.lock();
+                    syncing = false;
+                    if (written) {
+                        durable = batchEnd;
+                    }
+                    synced.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void write(FileChannel channel, ByteArrayOutputStream records) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write and force pending records under the lock, failing the log if the write fails.
+     */
+    private void writePending() {
+        try {
+            write(segment, pending);
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        }
+        pending = new ByteArrayOutputStream();
+        durable = appended;
+    }
+
+    /**
+     * Force all appended records and start a new segment. It should be called while appends are blocked to take a
+     * snapshot of the state matching all records appended so far.
+     *
+     * @return number of the new segment, snapshot of the current state should be written with it
+     */
+    long roll() throws IOException {
+        lock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new IOException("Write-ahead log has failed", failure);
+            }
+            writePending();
+            synced.signalAll();
+            segment.close();
+            segment = FileChannel.open(segmentFile(++segmentNumber), WRITE, CREATE, TRUNCATE_EXISTING);
+            return segmentNumber;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write snapshot of the storage before specified segment and remove files it replaces.
+     *
+     * @param transactions all stored transactions, parents before their children
+     */
+    void writeSnapshot(long number, List<Transaction> transactions) throws IOException {
+        Path temporary = directory.resolve("snapshot.tmp");
+        try (FileChannel channel = FileChannel.open(temporary, WRITE, CREATE, TRUNCATE_EXISTING);
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16)) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+            for (Transaction transaction : transactions) {
+                record.reset();
+                writeMerge(new DataOutputStream(record), transaction);
+                writeFramed(out, record.toByteArray());
+            }
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(temporary, snapshotFile(number), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long segment : fileNumbers("wal-", ".log")) {
+            if (segment < number) {
+                Files.delete(segmentFile(segment));
+            }
+        }
+        for (long snapshot : fileNumbers("snapshot-", ".dat")) {
+            if (snapshot < number) {
+                Files.delete(snapshotFile(snapshot));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            try {
+                if (failure == null) {
+                    writePending();
+                }
+            } finally {
+                segment.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
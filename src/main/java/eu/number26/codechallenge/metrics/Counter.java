@@ -0,0 +1,27 @@
+package eu.number26.codechallenge.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter, written in Prometheus text format.
+ *
+ * @author ikanievska
+ */
+public class Counter implements Metric {
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    @Override
+    public void write(Writer out, String name, String labels) throws IOException {
+        out.write(name + (labels.isEmpty() ? " " : "{" + labels + "} ") + count.sum() + "\n");
+    }
+}
@@ -0,0 +1,67 @@
+package eu.number26.codechallenge.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with fixed upper bounds of buckets, written in Prometheus text format.
+ * Observations are lock-free, so it may be updated by request threads concurrently.
+ *
+ * @author ikanievska
+ */
+public class Histogram implements Metric {
+    private final double[] bounds;
+    /**
+     * Observations per bucket, the last one is above all bounds
+     */
+    private final LongAdder[] buckets;
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram(double[] bounds) {
+        this.bounds = bounds;
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void observe(double value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            ++bucket;
+        }
+        buckets[bucket].increment();
+        sum.add(value);
+    }
+
+    public void observeNanos(long nanos) {
+        observe(nanos / 1e9);
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Write cumulative buckets, sum and count of the histogram.
+     */
+    @Override
+    public void write(Writer out, String name, String labels) throws IOException {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; ++i) {
+            cumulative += buckets[i].sum();
+            String bound = i < bounds.length ? Double.toString(bounds[i]) : "+Inf";
+            out.write(name + "_bucket{" + prefix + "le=\"" + bound + "\"} " + cumulative + "\n");
+        }
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.write(name + "_sum" + suffix + sum.sum() + "\n");
+        out.write(name + "_count" + suffix + cumulative + "\n");
+    }
+}
@@ -0,0 +1,16 @@
+package eu.number26.codechallenge.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Metric written in Prometheus text format.
+ *
+ * @author ikanievska
+ */
+interface Metric {
+    /**
+     * @param labels labels of the metric in Prometheus format without braces, may be empty
+     */
+    void write(Writer out, String name, String labels) throws IOException;
+}
@@ -0,0 +1,99 @@
+package eu.number26.codechallenge.metrics;
+
+import eu.number26.codechallenge.dao.TransactionDao;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Wraps beans with proxies recording metrics:
+ * <ul>
+ * <li>{@link TransactionDao} - latency of every operation per DAO</li>
+ * <li>{@link MongoOperations} - latency of every operation and number of calls per request</li>
+ * </ul>
+ *
+ * @author ikanievska
+ */
+@Component
+public class MetricsBeanPostProcessor implements BeanPostProcessor {
+    /**
+     * Operations not reaching MongoDB
+     */
+    private static final Set<String> LOCAL_MONGO_OPERATIONS = new HashSet<>(Arrays.asList(
+            "getCollectionName", "getConverter", "getDb"));
+
+    private final MetricsRegistry metricsRegistry;
+
+    @Autowired
+    public MetricsBeanPostProcessor(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        return bean;
+    }
+
+    /**
+     * Find histogram of the key, looking it up in the registry on the first call only, since the lookup builds
+     * the labels string. Plain get goes first, since {@code computeIfAbsent} may lock the bin even if it is present.
+     */
+    static <K, V> V cached(Map<K, V> histograms, K key, Function<K, V> lookup) {
+        V histogram = histograms.get(key);
+        return histogram != null ? histogram : histograms.computeIfAbsent(key, lookup);
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof TransactionDao) {
+            ProxyFactory proxyFactory = new ProxyFactory(bean);
+            Map<Method, Histogram> latencies = new ConcurrentHashMap<>();
+            proxyFactory.addAdvice((MethodInterceptor) invocation -> {
+                Histogram latency = cached(latencies, invocation.getMethod(), method -> metricsRegistry.histogram(
+                        "transaction_dao_operation_seconds", "Latency of TransactionDao operations",
+                        MetricsRegistry.LATENCY_BUCKETS, "dao", beanName, "operation", method.getName()));
+                long start = System.nanoTime();
+                try {
+                    return invocation.proceed();
+                } finally {
+                    latency.observeNanos(System.nanoTime() - start);
+                }
+            });
+            return proxyFactory.getProxy();
+        }
+        if (bean instanceof MongoOperations) {
+            // Proxy the class, since template may be injected as MongoTemplate
+            ProxyFactory proxyFactory = new ProxyFactory(bean);
+            proxyFactory.setProxyTargetClass(true);
+            Map<Method, Histogram> latencies = new ConcurrentHashMap<>();
+            proxyFactory.addAdvice((MethodInterceptor) invocation -> {
+                if (LOCAL_MONGO_OPERATIONS.contains(invocation.getMethod().getName())) {
+                    return invocation.proceed();
+                }
+                metricsRegistry.countMongoCall();
+                Histogram latency = cached(latencies, invocation.getMethod(), method -> metricsRegistry.histogram(
+                        "mongo_operation_seconds", "Latency of MongoOperations calls",
+                        MetricsRegistry.LATENCY_BUCKETS, "operation", method.getName()));
+                long start = System.nanoTime();
+                try {
+                    return invocation.proceed();
+                } finally {
+                    latency.observeNanos(System.nanoTime() - start);
+                }
+            });
+            return proxyFactory.getProxy();
+        }
+        return bean;
+    }
+}
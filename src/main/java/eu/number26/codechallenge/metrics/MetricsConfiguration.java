@@ -0,0 +1,22 @@
+package eu.number26.codechallenge.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+/**
+ * Registers {@link MetricsInterceptor} for all endpoints.
+ *
+ * @author ikanievska
+ */
+@Configuration
+public class MetricsConfiguration extends WebMvcConfigurerAdapter {
+    @Autowired
+    private MetricsInterceptor metricsInterceptor;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(metricsInterceptor);
+    }
+}
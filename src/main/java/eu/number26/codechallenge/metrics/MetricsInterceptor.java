@@ -0,0 +1,97 @@
+package eu.number26.codechallenge.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records latency and number of MongoDB calls of every request per endpoint (method and path pattern) and status.
+ * Latency includes reading the request and writing the response. MongoDB calls made by executors of asynchronous
+ * requests are not counted.
+ *
+ * @author ikanievska
+ */
+@Component
+public class MetricsInterceptor extends HandlerInterceptorAdapter {
+    private static final String START_ATTRIBUTE = MetricsInterceptor.class.getName() + ".start";
+    private static final String UNMAPPED = "unmapped";
+    private static final int MAX_STATUS = 599;
+
+    @Autowired
+    private MetricsRegistry metricsRegistry;
+    /**
+     * Histograms of endpoints by HTTP method and path pattern, so requests don't build endpoint and labels strings.
+     */
+    private final Map<String, Map<String, EndpointHistograms>> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * Histograms of an endpoint, latencies are looked up in the registry on the first request with each status.
+     */
+    private final class EndpointHistograms {
+        private final String endpoint;
+        private final Histogram mongoCalls;
+        private final AtomicReferenceArray<Histogram> latencies = new AtomicReferenceArray<>(MAX_STATUS + 1);
+
+        private EndpointHistograms(String endpoint) {
+            this.endpoint = endpoint;
+            this.mongoCalls = metricsRegistry.histogram("http_request_mongo_calls", "MongoDB calls per HTTP request",
+                    MetricsRegistry.COUNT_BUCKETS, "endpoint", endpoint);
+        }
+
+        private Histogram latency(int status) {
+            Histogram latency = status >= 0 && status <= MAX_STATUS ? latencies.get(status) : null;
+            if (latency == null) {
+                latency = metricsRegistry.histogram("http_request_seconds", "Latency of HTTP requests",
+                        MetricsRegistry.LATENCY_BUCKETS, "endpoint", endpoint, "status", String.valueOf(status));
+                if (status >= 0 && status <= MAX_STATUS) {
+                    latencies.set(status, latency);
+                }
+            }
+            return latency;
+        }
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // Asynchronous request is dispatched again to complete it, keep the time of the first dispatch
+        if (request.getAttribute(START_ATTRIBUTE) == null) {
+            request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        }
+        metricsRegistry.startRequest();
+        return true;
+    }
+
+    /**
+     * Stop counting MongoDB calls of the request thread, which is released while asynchronous request is processed.
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+                                               Object handler) {
+        metricsRegistry.finishRequest();
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        long mongoCalls = metricsRegistry.finishRequest();
+        Long start = (Long) request.getAttribute(START_ATTRIBUTE);
+        if (start == null) {
+            return;
+        }
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        String method = request.getMethod();
+        EndpointHistograms histograms = MetricsBeanPostProcessor.cached(
+                MetricsBeanPostProcessor.cached(endpoints, method, key -> new ConcurrentHashMap<>()),
+                pattern == null ? UNMAPPED : pattern.toString(),
+                key -> new EndpointHistograms(method + " " + key));
+        histograms.latency(ex == null ? response.getStatus() : 500).observeNanos(System.nanoTime() - start);
+        histograms.mongoCalls.observe(mongoCalls);
+    }
+}
@@ -0,0 +1,136 @@
+package eu.number26.codechallenge.metrics;
+
+import org.springframework.stereotype.Component;
+
+import java.beans.Introspector;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of histograms and counters exposed in Prometheus text format.
+ * <p>
+ * Metrics are grouped in families by name, every family has its own label values. Besides, the registry counts
+ * MongoDB calls made by the current request thread.
+ *
+ * @author ikanievska
+ */
+@Component
+public class MetricsRegistry {
+    /**
+     * Bounds of latency buckets in seconds
+     */
+    public static final double[] LATENCY_BUCKETS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    /**
+     * Bounds of buckets of counts, like visited nodes or calls
+     */
+    public static final double[] COUNT_BUCKETS = {0, 1, 2, 5, 10, 20, 50, 100, 1000, 10000, 100000, 1000000};
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+    private final ThreadLocal<long[]> mongoCalls = new ThreadLocal<>();
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final double[] bounds;
+        private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<>();
+
+        private Family(String help, String type, double[] bounds) {
+            this.help = help;
+            this.type = type;
+            this.bounds = bounds;
+        }
+    }
+
+    /**
+     * Get or create histogram of the family.
+     *
+     * @param labels label names and values in turn
+     */
+    public Histogram histogram(String name, String help, double[] bounds, String... labels) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, "histogram", bounds));
+        return (Histogram) family.metrics.computeIfAbsent(labels(labels), key -> new Histogram(family.bounds));
+    }
+
+    /**
+     * Register counter owned by another component, replacing the one registered with the same labels.
+     *
+     * @param labels label names and values in turn
+     */
+    public void register(String name, String help, Counter counter, String... labels) {
+        families.computeIfAbsent(name, key -> new Family(help, "counter", null)).metrics.put(labels(labels), counter);
+    }
+
+    /**
+     * @param dao DAO labelled with its bean name, derived from its class
+     */
+    public Histogram mergeLockWait(Object dao) {
+        return histogram("transaction_dao_merge_lock_wait_seconds", "Time merge waits for storage locks",
+                LATENCY_BUCKETS, "dao", Introspector.decapitalize(dao.getClass().getSimpleName()));
+    }
+
+    /**
+     * @param dao DAO labelled with its bean name, derived from its class
+     */
+    public Histogram sumNodesVisited(Object dao) {
+        return histogram("transaction_dao_sum_nodes_visited", "Transactions visited to calculate total amount",
+                COUNT_BUCKETS, "dao", Introspector.decapitalize(dao.getClass().getSimpleName()));
+    }
+
+    private static String labels(String... labels) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Start counting MongoDB calls of the current thread.
+     */
+    public void startRequest() {
+        mongoCalls.set(new long[1]);
+    }
+
+    public void countMongoCall() {
+        long[] calls = mongoCalls.get();
+        if (calls != null) {
+            ++calls[0];
+        }
+    }
+
+    /**
+     * Stop counting MongoDB calls of the current thread.
+     *
+     * @return number of calls since {@link #startRequest()}
+     */
+    public long finishRequest() {
+        long[] calls = mongoCalls.get();
+        mongoCalls.remove();
+        return calls == null ? 0 : calls[0];
+    }
+
+    /**
+     * Write all metrics in Prometheus text format.
+     */
+    public void write(Writer out) throws IOException {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.write("# HELP " + name + " " + family.help + "\n");
+            out.write("# TYPE " + name + " " + family.type + "\n");
+            for (Map.Entry<String, Metric> metric : new ConcurrentSkipListMap<>(family.metrics).entrySet()) {
+                metric.getValue().write(out, name, metric.getKey());
+            }
+        }
+    }
+}
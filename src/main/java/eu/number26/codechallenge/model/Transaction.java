@@ -3,28 +3,45 @@ package eu.number26.codechallenge.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.DBRef;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * @author ikanievska
  */
 @Document
+@CompoundIndex(name = "type_id", def = "{ 'type' : 1, '_id' : 1 }")
 public class Transaction {
     @Id
     @JsonIgnore
     private Long transactionId;
+    @Indexed
     private Long parentId;
     @Indexed
     private String type;
     private double amount;
-    @DBRef
+    /**
+     * Children are resolved on first access only, so reading a transaction doesn't load its whole subtree.
+     */
+    @DBRef(lazy = true)
     @JsonIgnore
     private Set<Transaction> childTransactions;
+    @Indexed
+    @JsonIgnore
+    private List<Long> ancestors;
+    @JsonIgnore
+    private volatile double subtreeSum;
+    @JsonIgnore
+    private volatile long version;
 
     public Transaction() {
     }
@@ -72,15 +89,84 @@ public class Transaction {
         this.childTransactions = childTransactions;
     }
 
+    /**
+     * Ids of all parent transactions transitively, starting from the root (maintained by Mongo DAO only).
+     *
+     * @return ids of parents from the root to the direct parent
+     */
+    public List<Long> getAncestors() {
+        if (this.ancestors == null) {
+            this.ancestors = new ArrayList<>();
+        }
+        return this.ancestors;
+    }
+
+    public void setAncestors(List<Long> ancestors) {
+        this.ancestors = ancestors;
+    }
+
+    /**
+     * Cached total amount of this transaction and its children transitively, maintained by the DAO on merge.
+     *
+     * @return cached subtree total
+     */
+    public double getSubtreeSum() {
+        return subtreeSum;
+    }
+
+    public void setSubtreeSum(double subtreeSum) {
+        this.subtreeSum = subtreeSum;
+    }
+
+    /**
+     * Version of this transaction and its children transitively, incremented by the DAO on merge.
+     *
+     * @return subtree version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Sum amounts of the subtree walking it depth-first with an explicit stack, so deep chains don't overflow the
+     * call stack. Children are pushed with {@link Set#forEach}, which doesn't create an iterator per node. Fields of
+     * children are read through accessors, so lazy {@code @DBRef} proxies of children loaded from MongoDB resolve.
+     */
     @JsonIgnore
     @Transient
     public double getTotalAmount() {
-        if (childTransactions == null || childTransactions.isEmpty()) {
-            return amount;
-        } else {
-            return childTransactions.stream()
-                    .map(Transaction::getTotalAmount)
-                    .reduce(this.amount, (sum, subAmount) -> sum + subAmount);
+        SubtreeStack stack = new SubtreeStack();
+        stack.accept(this);
+        double sum = 0;
+        while (stack.size > 0) {
+            Transaction current = stack.transactions[--stack.size];
+            stack.transactions[stack.size] = null;
+            sum += current.getAmount();
+            Set<Transaction> children = current.getChildTransactions();
+            if (children != null) {
+                children.forEach(stack);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Growable array stack of transactions to visit.
+     */
+    private static class SubtreeStack implements Consumer<Transaction> {
+        private Transaction[] transactions = new Transaction[16];
+        private int size;
+
+        @Override
+        public void accept(Transaction transaction) {
+            if (size == transactions.length) {
+                transactions = Arrays.copyOf(transactions, size * 2);
+            }
+            transactions[size++] = transaction;
         }
     }
 
@@ -0,0 +1,87 @@
+package eu.number26.codechallenge.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Number, total, minimum and maximum of amounts of transactions of a type.
+ *
+ * @author ikanievska
+ */
+@Document(collection = "type_stats")
+public class TypeStatistics {
+    @Id
+    private String type;
+    private long count;
+    private double sum;
+    private double min;
+    private double max;
+
+    public TypeStatistics() {
+    }
+
+    /**
+     * Statistics of a type without transactions
+     */
+    public TypeStatistics(String type) {
+        this.type = type;
+    }
+
+    public TypeStatistics(String type, long count, double sum, double min, double max) {
+        this.type = type;
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Account amount of one more transaction of the type.
+     */
+    public void add(double amount) {
+        min = count == 0 ? amount : Math.min(min, amount);
+        max = count == 0 ? amount : Math.max(max, amount);
+        sum += amount;
+        ++count;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public void setSum(double sum) {
+        this.sum = sum;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public void setMin(double min) {
+        this.min = min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public void setMax(double max) {
+        this.max = max;
+    }
+}
@@ -1,10 +1,13 @@
 package eu.number26.codechallenge.repository;
 
 import eu.number26.codechallenge.model.Transaction;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Transaction Mongo Repository
@@ -14,5 +17,23 @@ import java.util.List;
 public interface TransactionRepository extends MongoRepository<Transaction, Long> {
     List<Transaction> findByType(String type);
 
+    @Query(value = "{ 'type' : ?0 }", fields = "{ '_id' : 1 }")
+    List<Transaction> findIdsByType(String type);
+
+    @Query(value = "{ 'type' : ?0, '_id' : { '$gt' : ?1 } }", fields = "{ '_id' : 1 }")
+    List<Transaction> findIdsByTypeAfter(String type, Long after, Pageable pageable);
+
+    /**
+     * Stream ids of transactions of specified type from the cursor, stream should be closed after use.
+     */
+    @Query(value = "{ 'type' : ?0 }", fields = "{ '_id' : 1 }")
+    Stream<Transaction> streamIdsByType(String type);
+
     Collection<Transaction> findByParentId(Long parentId);
+
+    /**
+     * Ids and amounts of children of several transactions, to walk subtrees level by level.
+     */
+    @Query(value = "{ 'parentId' : { '$in' : ?0 } }", fields = "{ '_id' : 1, 'amount' : 1 }")
+    List<Transaction> findAmountsByParentIdIn(Collection<Long> parentIds);
 }
@@ -0,0 +1,57 @@
+package eu.number26.codechallenge.rest.controller;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executors running DAO calls of {@link AsyncTransactionController}: reads and writes have separate
+ * threads and queues, so slow merges don't block reads. A full queue rejects new calls. With {@code threads.virtual}
+ * the threads are virtual, so the thread limits bound concurrency of DAO calls only.
+ *
+ * @author ikanievska
+ */
+@Configuration
+@ConditionalOnProperty(name = "async.enabled", havingValue = "true")
+public class AsyncConfiguration {
+
+    @Value("${threads.virtual:false}")
+    private boolean virtualThreads;
+
+    @Bean(destroyMethod = "shutdown")
+    public ThreadPoolExecutor daoReadExecutor(@Value("${async.read.threads:16}") int threads,
+                                              @Value("${async.read.queue:1000}") int queueSize) {
+        return boundedExecutor(threadFactory("dao-read-"), threads, queueSize);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ThreadPoolExecutor daoWriteExecutor(@Value("${async.write.threads:8}") int threads,
+                                               @Value("${async.write.queue:1000}") int queueSize) {
+        return boundedExecutor(threadFactory("dao-write-"), threads, queueSize);
+    }
+
+    private ThreadFactory threadFactory(String namePrefix) {
+        return virtualThreads ? VirtualThreads.factory(namePrefix) : daemonThreadFactory(namePrefix);
+    }
+
+    static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger number = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    static ThreadPoolExecutor boundedExecutor(ThreadFactory threadFactory, int threads, int queueSize) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+}
@@ -0,0 +1,100 @@
+package eu.number26.codechallenge.rest.controller;
+
+import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.rest.model.TransactionBatchItem;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous variant of {@link TransactionController} endpoints under {@code /transactionservice/async}.
+ * <p>
+ * Handlers return {@link DeferredResult} and run DAO calls on bounded executors of {@link AsyncConfiguration},
+ * so request threads are released while DAO is working. If executor queue is full or the call doesn't finish in
+ * {@code async.timeout} milliseconds, the request fails fast with 503 (Service Unavailable). Calls which expired
+ * in the queue are skipped.
+ *
+ * @author ikanievska
+ */
+@RestController
+@RequestMapping("/transactionservice/async")
+@ConditionalOnProperty(name = "async.enabled", havingValue = "true")
+public class AsyncTransactionController {
+    @Autowired
+    private TransactionController transactionController;
+    @Resource(name = "daoReadExecutor")
+    private Executor readExecutor;
+    @Resource(name = "daoWriteExecutor")
+    private Executor writeExecutor;
+    @Value("${async.timeout:5000}")
+    private long timeout = 5000;
+
+    private static ResponseEntity serviceUnavailable(String message) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(Collections.singletonMap("status", message));
+    }
+
+    /**
+     * Run handler of {@link TransactionController} on the executor.
+     */
+    DeferredResult<ResponseEntity> submit(Executor executor, Supplier<ResponseEntity> handler) {
+        DeferredResult<ResponseEntity> result = new DeferredResult<>(timeout, serviceUnavailable("Timeout"));
+        try {
+            executor.execute(() -> {
+                if (result.isSetOrExpired()) {
+                    return;
+                }
+                try {
+                    result.setResult(handler.get());
+                } catch (RuntimeException e) {
+                    result.setErrorResult(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.setResult(serviceUnavailable("Too many requests in progress"));
+        }
+        return result;
+    }
+
+    @RequestMapping(value = "/transaction/{transactionId}", method = RequestMethod.PUT)
+    public DeferredResult<ResponseEntity> putTransaction(@PathVariable("transactionId") long transactionId,
+                                                         @RequestBody Transaction transaction) {
+        return submit(writeExecutor, () -> transactionController.putTransaction(transactionId, transaction));
+    }
+
+    @RequestMapping(value = "/transactions", method = RequestMethod.PUT)
+    public DeferredResult<ResponseEntity> putTransactions(@RequestBody List<TransactionBatchItem> items) {
+        return submit(writeExecutor, () -> transactionController.putTransactions(items));
+    }
+
+    @RequestMapping(value = "/transaction/{transactionId}", method = RequestMethod.GET)
+    public DeferredResult<ResponseEntity> getTransaction(@PathVariable("transactionId") long transactionId,
+                                                         @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return submit(readExecutor, () -> transactionController.getTransaction(transactionId, ifNoneMatch));
+    }
+
+    @RequestMapping(value = "/types/{type}", method = RequestMethod.GET)
+    public DeferredResult<ResponseEntity> getTransactionsByType(@PathVariable("type") String type,
+                                                                @RequestParam(value = "after", required = false) Long after,
+                                                                @RequestParam(value = "limit", required = false) Integer limit) {
+        return submit(readExecutor, () -> transactionController.getTransactionsByType(type, after, limit));
+    }
+
+    @RequestMapping(value = "/sum/{transactionId}", method = RequestMethod.GET)
+    public DeferredResult<ResponseEntity> getTransactionSum(@PathVariable("transactionId") Long transactionId,
+                                                            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return submit(readExecutor, () -> transactionController.getTransactionSum(transactionId, ifNoneMatch));
+    }
+}
@@ -1,16 +1,30 @@
 package eu.number26.codechallenge.rest.controller;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import eu.number26.codechallenge.dao.TransactionDao;
 import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.model.TypeStatistics;
+import eu.number26.codechallenge.rest.model.TransactionBatchItem;
+import eu.number26.codechallenge.rest.model.TransactionSum;
+import eu.number26.codechallenge.statistics.SlidingWindowStatistics;
+import eu.number26.codechallenge.statistics.TransactionStatistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.Collectors;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 /**
  * @author ikanievska
@@ -19,8 +33,23 @@ import java.util.stream.Collectors;
 @RequestMapping("/transactionservice")
 public class TransactionController {
 
+    static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    static final String NEXT_AFTER_HEADER = "X-Next-After";
+    static final int DEFAULT_PAGE_SIZE = 1000;
+
     @Resource(name = "${datasource}")
     private TransactionDao transactionDao;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private SlidingWindowStatistics statistics;
+    @Value("${transactions.stream.batchSize:1000}")
+    private int streamBatchSize = 1000;
+
+    /**
+     * Status of successful merge, shared by all responses
+     */
+    private static final Map<String, String> OK_STATUS = Collections.singletonMap("status", "ok");
 
     private static Map<String, String> status(String message) {
         Map<String, String> status = new HashMap<>();
@@ -35,38 +64,269 @@ public class TransactionController {
         if (mergedTransaction == null) {
             return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(status("Wrong parent transaction: " + transaction.getParentId()));
         }
-        return ResponseEntity.ok(status("ok"));//mergedTransaction);
+        statistics.record(mergedTransaction.getAmount());
+        return ResponseEntity.ok(OK_STATUS);//mergedTransaction);
+    }
+
+    /**
+     * Merge transactions in specified order, so transaction may refer to a parent from the same batch.
+     *
+     * @return statuses of transactions in the order of the batch
+     */
+    @RequestMapping(value = "/transactions", method = RequestMethod.PUT)
+    public ResponseEntity<List<Map<String, Object>>> putTransactions(@RequestBody List<TransactionBatchItem> items) {
+        return ResponseEntity.ok(mergeBatch(items));
     }
 
+    /**
+     * Merge newline delimited JSON transactions while reading them, without buffering the whole body.
+     * <p>
+     * Transactions are merged in micro-batches: a batch is merged when it is full or when no more input is available
+     * without blocking. Status of every line is written back in NDJSON as soon as its batch is merged.
+     */
+    @RequestMapping(value = "/transactions/stream", method = {RequestMethod.PUT, RequestMethod.POST})
+    public void streamTransactions(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        ObjectReader itemReader = objectMapper.readerFor(TransactionBatchItem.class);
+        ObjectWriter statusWriter = objectMapper.writer();
+        BufferedReader lines = new BufferedReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8));
+        OutputStream out = response.getOutputStream();
+        List<TransactionBatchItem> batch = new ArrayList<>(streamBatchSize);
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            if (!line.trim().isEmpty()) {
+                TransactionBatchItem item;
+                try {
+                    item = itemReader.readValue(line);
+                } catch (JsonProcessingException e) {
+                    item = null;
+                }
+                batch.add(item);
+            }
+            if (!batch.isEmpty() && (batch.size() >= streamBatchSize || !lines.ready())) {
+                writeStatuses(mergeBatch(batch), statusWriter, out);
+                batch.clear();
+            }
+        }
+        writeStatuses(mergeBatch(batch), statusWriter, out);
+    }
+
+    private static void writeStatuses(List<Map<String, Object>> statuses, ObjectWriter statusWriter, OutputStream out)
+            throws IOException {
+        for (Map<String, Object> status : statuses) {
+            out.write(statusWriter.writeValueAsBytes(status));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Merge transactions in specified order, so transaction may refer to a parent from the same batch.
+     *
+     * @param items transactions to merge, {@code null} for malformed ones
+     * @return statuses of transactions in the order of the batch
+     */
+    private List<Map<String, Object>> mergeBatch(List<TransactionBatchItem> items) {
+        List<Transaction> transactions = new ArrayList<>(items.size());
+        for (TransactionBatchItem item : items) {
+            if (item != null && item.getTransactionId() != null) {
+                transactions.add(item.toTransaction());
+            }
+        }
+        Iterator<Transaction> mergedTransactions = transactions.isEmpty()
+                ? Collections.emptyIterator()
+                : transactionDao.mergeAll(transactions).iterator();
+        List<Map<String, Object>> statuses = new ArrayList<>(items.size());
+        for (TransactionBatchItem item : items) {
+            String message;
+            if (item == null) {
+                message = "Malformed transaction";
+            } else if (item.getTransactionId() == null) {
+                message = "Transaction id is required";
+            } else {
+                Transaction mergedTransaction = mergedTransactions.next();
+                if (mergedTransaction == null) {
+                    message = "Wrong parent transaction: " + item.getParentId();
+                } else {
+                    statistics.record(mergedTransaction.getAmount());
+                    message = "ok";
+                }
+            }
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("transactionId", item == null ? null : item.getTransactionId());
+            status.put("status", message);
+            statuses.add(status);
+        }
+        return statuses;
+    }
+
+    /**
+     * Strong ETag of a transaction and of its total amount: version of its subtree.
+     */
+    private static String eTag(long version) {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * Check {@code If-None-Match} header against the ETag with weak comparison, as RFC 7232 requires.
+     */
+    static boolean matches(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Respond with the body and ETag of the version if the DAO tracks versions.
+     */
+    private static ResponseEntity okWithVersion(Long version, Object body) {
+        return version == null ? ResponseEntity.ok(body) : ResponseEntity.ok().eTag(eTag(version)).body(body);
+    }
+
+    /**
+     * Version is read before the transaction, so ETag is never newer than the body and a stale one causes
+     * a full response only.
+     */
     @RequestMapping(value = "/transaction/{transactionId}", method = RequestMethod.GET)
-    public ResponseEntity getTransaction(@PathVariable("transactionId") long transactionId) {
+    public ResponseEntity getTransaction(@PathVariable("transactionId") long transactionId,
+                                         @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        Long version = transactionDao.transactionVersion(transactionId);
+        if (version != null && matches(ifNoneMatch, eTag(version))) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag(version)).build();
+        }
         Transaction transaction = transactionDao.getById(transactionId);
         if (transaction == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body(status("Transaction not found: " + transactionId));
         }
-        return ResponseEntity.ok(transaction);
+        return okWithVersion(version, transaction);
+    }
+
+    /**
+     * Ids of parents of the transaction transitively, from its parent to the root.
+     */
+    @RequestMapping(value = "/transaction/{transactionId}/ancestors", method = RequestMethod.GET)
+    public ResponseEntity getAncestors(@PathVariable("transactionId") long transactionId) {
+        List<Long> ancestorIds = transactionDao.ancestorIds(transactionId);
+        if (ancestorIds == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(status("Transaction not found: " + transactionId));
+        }
+        return ResponseEntity.ok(ancestorIds);
     }
 
+    /**
+     * Lowest common ancestor of two transactions, {@code null} if they are in different trees. Existence of the
+     * transactions is checked only if there is no common ancestor.
+     */
+    @RequestMapping(value = "/transaction/{transactionId}/lca/{otherTransactionId}", method = RequestMethod.GET)
+    public ResponseEntity getLowestCommonAncestor(@PathVariable("transactionId") long transactionId,
+                                                  @PathVariable("otherTransactionId") long otherTransactionId) {
+        Long lowestCommonAncestor = transactionDao.lowestCommonAncestor(transactionId, otherTransactionId);
+        if (lowestCommonAncestor == null) {
+            for (long id : new long[]{transactionId, otherTransactionId}) {
+                if (transactionDao.getById(id) == null) {
+                    return ResponseEntity.status(HttpStatus.NOT_FOUND).body(status("Transaction not found: " + id));
+                }
+            }
+        }
+        return ResponseEntity.ok(Collections.singletonMap("lca", lowestCommonAncestor));
+    }
+
+    /**
+     * Find ids of transactions of specified type: all of them or a page in ascending order if {@code after} or
+     * {@code limit} is specified. {@value #NEXT_AFTER_HEADER} header of a full page holds {@code after} of the next one.
+     */
     @RequestMapping(value = "/types/{type}", method = RequestMethod.GET)
-    public ResponseEntity<Collection<Long>> getTransactionsByType(@PathVariable("type") String type) {
-        return ResponseEntity.ok(transactionDao.transactionsByType(type)
-                .stream()
-                .map(Transaction::getTransactionId)
-                .collect(Collectors.toList()));
+    public ResponseEntity getTransactionsByType(@PathVariable("type") String type,
+                                                @RequestParam(value = "after", required = false) Long after,
+                                                @RequestParam(value = "limit", required = false) Integer limit) {
+        if (after == null && limit == null) {
+            return ResponseEntity.ok(transactionDao.transactionIdsByType(type));
+        }
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (pageSize <= 0) {
+            return ResponseEntity.badRequest().body(status("Limit should be positive: " + pageSize));
+        }
+        List<Long> transactionIds = transactionDao.transactionIdsByType(type, after, pageSize);
+        if (transactionIds.size() < pageSize) {
+            return ResponseEntity.ok(transactionIds);
+        }
+        return ResponseEntity.ok()
+                .header(NEXT_AFTER_HEADER, String.valueOf(transactionIds.get(transactionIds.size() - 1)))
+                .body(transactionIds);
+    }
+
+    /**
+     * Write JSON array of ids of all transactions of specified type while reading them from the storage.
+     */
+    @RequestMapping(value = "/types/{type}", method = RequestMethod.GET, params = "stream=true")
+    public void streamTransactionsByType(@PathVariable("type") String type, HttpServletResponse response)
+            throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        Writer out = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+        out.write('[');
+        boolean[] first = {true};
+        try {
+            transactionDao.forEachTransactionIdByType(type, transactionId -> {
+                try {
+                    if (!first[0]) {
+                        out.write(',');
+                    }
+                    out.write(String.valueOf(transactionId));
+                    first[0] = false;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.write(']');
+        out.flush();
     }
 
+    /**
+     * Number, total, minimum and maximum of amounts of transactions of the type.
+     */
+    @RequestMapping(value = "/types/{type}/stats", method = RequestMethod.GET)
+    public ResponseEntity<TypeStatistics> getTypeStatistics(@PathVariable("type") String type) {
+        return ResponseEntity.ok(transactionDao.typeStatistics(type));
+    }
+
+    /**
+     * Total amount isn't calculated if {@code If-None-Match} matches the current version.
+     */
     @RequestMapping(value = "/sum/{transactionId}", method = RequestMethod.GET)
-    public ResponseEntity getTransactionSum(@PathVariable("transactionId") Long transactionId) {
+    public ResponseEntity getTransactionSum(@PathVariable("transactionId") Long transactionId,
+                                            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        Long version = transactionDao.transactionVersion(transactionId);
+        if (version != null && matches(ifNoneMatch, eTag(version))) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag(version)).build();
+        }
         Double transactionTotalAmount = transactionDao.transactionTotalAmount(transactionId);
         if (transactionTotalAmount == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body(status("Transaction not found: " + transactionId));
         } else {
-            return ResponseEntity.ok(new HashMap<String, Double>() {{
-                this.put("sum", transactionTotalAmount);
-            }});
+            return okWithVersion(version, new TransactionSum(transactionTotalAmount));
         }
     }
 
+    /**
+     * Statistics of amounts of transactions merged within the last {@code statistics.window.seconds} seconds.
+     */
+    @RequestMapping(value = "/statistics", method = RequestMethod.GET)
+    public ResponseEntity<TransactionStatistics> getStatistics() {
+        return ResponseEntity.ok(statistics.statistics());
+    }
+
     @RequestMapping(value = "/drop", method = RequestMethod.GET)
     public void drop() {
         transactionDao.clear();
@@ -0,0 +1,60 @@
+package eu.number26.codechallenge.rest.controller;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads of Java 21+, accessed with reflection, since the project is compiled for Java 8.
+ *
+ * @author ikanievska
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static void checkSupported() {
+        if (!isSupported()) {
+            throw new IllegalStateException("Virtual threads require Java 21+, running on "
+                    + System.getProperty("java.version"));
+        }
+    }
+
+    /**
+     * @return factory of virtual threads named with the prefix and a sequence number
+     */
+    static ThreadFactory factory(String namePrefix) {
+        checkSupported();
+        try {
+            // Methods of public interfaces, implementations are not accessible
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = Class.forName("java.lang.Thread$Builder$OfVirtual").getMethod("name", String.class, long.class)
+                    .invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are not available", e);
+        }
+    }
+
+    /**
+     * @return executor starting a new virtual thread for every task
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        checkSupported();
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are not available", e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package eu.number26.codechallenge.rest.controller;
+
+import org.apache.coyote.AbstractProtocol;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs requests on virtual threads (Java 21+) instead of Tomcat thread pool, if {@code threads.virtual} is set.
+ * Blocking DAO calls then park cheap virtual threads, so concurrency isn't limited by the pool size.
+ * Executors of {@link AsyncConfiguration} use virtual threads in this mode as well.
+ *
+ * @author ikanievska
+ */
+@Configuration
+@ConditionalOnProperty(name = "threads.virtual", havingValue = "true")
+public class VirtualThreadsConfiguration {
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService requestExecutor() {
+        return VirtualThreads.newThreadPerTaskExecutor();
+    }
+
+    @Bean
+    public EmbeddedServletContainerCustomizer virtualThreadsCustomizer(ExecutorService requestExecutor) {
+        return container -> {
+            if (container instanceof TomcatEmbeddedServletContainerFactory) {
+                ((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(connector -> {
+                    if (connector.getProtocolHandler() instanceof AbstractProtocol) {
+                        ((AbstractProtocol<?>) connector.getProtocolHandler()).setExecutor(requestExecutor);
+                    }
+                });
+            }
+        };
+    }
+}
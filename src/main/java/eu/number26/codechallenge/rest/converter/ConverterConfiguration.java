@@ -0,0 +1,25 @@
+package eu.number26.codechallenge.rest.converter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+import java.util.List;
+
+/**
+ * Puts {@link TransactionJsonHttpMessageConverter} before Jackson converter.
+ *
+ * @author ikanievska
+ */
+@Configuration
+public class ConverterConfiguration extends WebMvcConfigurerAdapter {
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(0, new TransactionJsonHttpMessageConverter(objectMapper));
+    }
+}
@@ -0,0 +1,246 @@
+package eu.number26.codechallenge.rest.converter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.rest.model.TransactionSum;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Writes JSON of hot responses straight to the output stream with pre-encoded field names, without reflection and
+ * intermediate objects: {@link Transaction}, {@link TransactionSum}, collections of ids and flat maps of statuses.
+ * Output is the same as of Jackson. Collections and maps of other values are written by Jackson.
+ *
+ * @author ikanievska
+ */
+public class TransactionJsonHttpMessageConverter extends AbstractHttpMessageConverter<Object> {
+    private static final byte[] PARENT_ID = ascii("{\"parentId\":");
+    private static final byte[] TYPE = ascii(",\"type\":");
+    private static final byte[] AMOUNT = ascii(",\"amount\":");
+    private static final byte[] SUM = ascii("{\"sum\":");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+    private final ObjectMapper objectMapper;
+
+    public TransactionJsonHttpMessageConverter(ObjectMapper objectMapper) {
+        super(new MediaType("application", "json", StandardCharsets.UTF_8),
+                new MediaType("application", "*+json", StandardCharsets.UTF_8));
+        this.objectMapper = objectMapper;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return Transaction.class.isAssignableFrom(clazz) || TransactionSum.class == clazz
+                || Collection.class.isAssignableFrom(clazz) || Map.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+        throw new UnsupportedOperationException("Request bodies are read by Jackson");
+    }
+
+    @Override
+    protected void writeInternal(Object value, HttpOutputMessage outputMessage) throws IOException {
+        OutputStream out = outputMessage.getBody();
+        if (value instanceof Transaction) {
+            writeTransaction((Transaction) value, out);
+        } else if (value instanceof TransactionSum) {
+            out.write(SUM);
+            writeDouble(((TransactionSum) value).getSum(), out);
+            out.write('}');
+        } else if (value instanceof Collection && isIds((Collection<?>) value)) {
+            writeIds((Collection<?>) value, out);
+        } else if (value instanceof Map && isFlat((Map<?, ?>) value)) {
+            writeFlatMap((Map<?, ?>) value, out);
+        } else {
+            objectMapper.writeValue(out, value);
+        }
+        out.flush();
+    }
+
+    private static boolean isIds(Collection<?> values) {
+        for (Object value : values) {
+            if (!(value instanceof Long)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFlat(Map<?, ?> map) {
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!(entry.getKey() instanceof String) || !(entry.getValue() == null
+                    || entry.getValue() instanceof String || entry.getValue() instanceof Long)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeTransaction(Transaction transaction, OutputStream out) throws IOException {
+        out.write(PARENT_ID);
+        if (transaction.getParentId() == null) {
+            out.write(NULL);
+        } else {
+            writeLong(transaction.getParentId(), out);
+        }
+        out.write(TYPE);
+        writeString(transaction.getType(), out);
+        out.write(AMOUNT);
+        writeDouble(transaction.getAmount(), out);
+        out.write('}');
+    }
+
+    private static void writeIds(Collection<?> ids, OutputStream out) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (Object id : ids) {
+            if (!first) {
+                out.write(',');
+            }
+            writeLong((Long) id, out);
+            first = false;
+        }
+        out.write(']');
+    }
+
+    private static void writeFlatMap(Map<?, ?> map, OutputStream out) throws IOException {
+        out.write('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!first) {
+                out.write(',');
+            }
+            writeString((String) entry.getKey(), out);
+            out.write(':');
+            if (entry.getValue() instanceof Long) {
+                writeLong((Long) entry.getValue(), out);
+            } else {
+                writeString((String) entry.getValue(), out);
+            }
+            first = false;
+        }
+        out.write('}');
+    }
+
+    /**
+     * Write digits of the number without creating a string.
+     */
+    static void writeLong(long value, OutputStream out) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            out.write(ascii(Long.toString(value)));
+            return;
+        }
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.write('0' + (int) (value / divisor % 10));
+        }
+    }
+
+    /**
+     * Write the number as Jackson does: {@link Double#toString(double)}, quoted if it isn't finite.
+     */
+    private static void writeDouble(double value, OutputStream out) throws IOException {
+        if (value == (long) value && Math.abs(value) < 1e7 && !(value == 0 && 1 / value < 0)) {
+            // The same as Double.toString for integral values below 10^7
+            writeLong((long) value, out);
+            out.write('.');
+            out.write('0');
+        } else if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.write('"');
+            out.write(ascii(Double.toString(value)));
+            out.write('"');
+        } else {
+            out.write(ascii(Double.toString(value)));
+        }
+    }
+
+    /**
+     * Write JSON string in UTF-8, escaping quotes, backslashes and control characters as Jackson does.
+     */
+    private static void writeString(String value, OutputStream out) throws IOException {
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                writeControlCharacter(c, out);
+            } else if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xC0 | c >> 6);
+                out.write(0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.write(0xF0 | codePoint >> 18);
+                out.write(0x80 | codePoint >> 12 & 0x3F);
+                out.write(0x80 | codePoint >> 6 & 0x3F);
+                out.write(0x80 | codePoint & 0x3F);
+            } else {
+                out.write(0xE0 | c >> 12);
+                out.write(0x80 | c >> 6 & 0x3F);
+                out.write(0x80 | c & 0x3F);
+            }
+        }
+        out.write('"');
+    }
+
+    private static void writeControlCharacter(char c, OutputStream out) throws IOException {
+        out.write('\\');
+        switch (c) {
+            case '\n':
+                out.write('n');
+                break;
+            case '\r':
+                out.write('r');
+                break;
+            case '\t':
+                out.write('t');
+                break;
+            case '\b':
+                out.write('b');
+                break;
+            case '\f':
+                out.write('f');
+                break;
+            default:
+                out.write('u');
+                out.write('0');
+                out.write('0');
+                out.write(HEX[c >> 4]);
+                out.write(HEX[c & 0xF]);
+        }
+    }
+}
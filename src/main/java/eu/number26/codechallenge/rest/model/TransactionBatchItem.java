@@ -0,0 +1,56 @@
+package eu.number26.codechallenge.rest.model;
+
+import eu.number26.codechallenge.model.Transaction;
+
+/**
+ * Transaction in a batch request, which carries its id in the body instead of the path.
+ *
+ * @author ikanievska
+ */
+public class TransactionBatchItem {
+    private Long transactionId;
+    private Long parentId;
+    private String type;
+    private Double amount;
+
+    public Long getTransactionId() {
+        return transactionId;
+    }
+
+    public void setTransactionId(Long transactionId) {
+        this.transactionId = transactionId;
+    }
+
+    public Long getParentId() {
+        return parentId;
+    }
+
+    public void setParentId(Long parentId) {
+        this.parentId = parentId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public Double getAmount() {
+        return amount;
+    }
+
+    public void setAmount(Double amount) {
+        this.amount = amount;
+    }
+
+    public Transaction toTransaction() {
+        Transaction transaction = new Transaction();
+        transaction.setTransactionId(transactionId);
+        transaction.setParentId(parentId);
+        transaction.setType(type);
+        transaction.setAmount(amount);
+        return transaction;
+    }
+}
@@ -0,0 +1,18 @@
+package eu.number26.codechallenge.rest.model;
+
+/**
+ * Response of total amount of a transaction: {@code {"sum":double}}.
+ *
+ * @author ikanievska
+ */
+public class TransactionSum {
+    private final double sum;
+
+    public TransactionSum(double sum) {
+        this.sum = sum;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+}
@@ -0,0 +1,81 @@
+package eu.number26.codechallenge.statistics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Statistics of amounts of transactions merged within the last {@code statistics.window.seconds} seconds: the
+ * current second and the previous full ones.
+ * <p>
+ * Ring buffer holds a bucket per second of the window, the bucket of a second is found by the second modulo window
+ * size. Buckets are immutable and are replaced with compare-and-set, so recording and reading take constant time
+ * and memory without locks. A bucket of a second, which has left the window, is replaced by the first record of
+ * the new second in its place.
+ *
+ * @author ikanievska
+ */
+@Component
+public class SlidingWindowStatistics {
+    private final int windowSeconds;
+    private final AtomicReferenceArray<TransactionStatistics> buckets;
+    private final LongSupplier clock;
+
+    @Autowired
+    public SlidingWindowStatistics(@Value("${statistics.window.seconds:60}") int windowSeconds) {
+        this(windowSeconds, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock current time in milliseconds
+     */
+    SlidingWindowStatistics(int windowSeconds, LongSupplier clock) {
+        this.windowSeconds = windowSeconds;
+        this.buckets = new AtomicReferenceArray<>(windowSeconds);
+        this.clock = clock;
+        for (int i = 0; i < windowSeconds; ++i) {
+            buckets.set(i, TransactionStatistics.EMPTY);
+        }
+    }
+
+    /**
+     * Add amount of a merged transaction to the bucket of the current second.
+     */
+    public void record(double amount) {
+        long second = Math.floorDiv(clock.getAsLong(), 1000);
+        int index = (int) Math.floorMod(second, (long) windowSeconds);
+        while (true) {
+            TransactionStatistics bucket = buckets.get(index);
+            TransactionStatistics updated;
+            if (bucket.getSecond() == second) {
+                updated = bucket.add(amount);
+            } else if (bucket.getSecond() < second) {
+                updated = new TransactionStatistics(second).add(amount);
+            } else {
+                // Thread was delayed for the whole window, its second has left it already
+                return;
+            }
+            if (buckets.compareAndSet(index, bucket, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Combine buckets of seconds within the window.
+     */
+    public TransactionStatistics statistics() {
+        long second = Math.floorDiv(clock.getAsLong(), 1000);
+        TransactionStatistics statistics = TransactionStatistics.EMPTY;
+        for (int i = 0; i < windowSeconds; ++i) {
+            TransactionStatistics bucket = buckets.get(i);
+            if (bucket.getSecond() > second - windowSeconds && bucket.getSecond() <= second) {
+                statistics = statistics.add(bucket);
+            }
+        }
+        return statistics;
+    }
+}
@@ -0,0 +1,70 @@
+package eu.number26.codechallenge.statistics;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * Immutable count, sum, minimum and maximum of amounts of transactions merged within a second (bucket of
+ * {@link SlidingWindowStatistics}) or within the whole window.
+ *
+ * @author ikanievska
+ */
+@JsonPropertyOrder({"sum", "avg", "max", "min", "count"})
+public final class TransactionStatistics {
+    static final TransactionStatistics EMPTY = new TransactionStatistics(Long.MIN_VALUE);
+
+    private final long second;
+    private final long count;
+    private final double sum;
+    private final double min;
+    private final double max;
+
+    TransactionStatistics(long second) {
+        this(second, 0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+    }
+
+    private TransactionStatistics(long second, long count, double sum, double min, double max) {
+        this.second = second;
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    TransactionStatistics add(double amount) {
+        return new TransactionStatistics(second, count + 1, sum + amount, Math.min(min, amount), Math.max(max, amount));
+    }
+
+    TransactionStatistics add(TransactionStatistics other) {
+        return new TransactionStatistics(Math.max(second, other.second), count + other.count, sum + other.sum,
+                Math.min(min, other.min), Math.max(max, other.max));
+    }
+
+    /**
+     * @return epoch second of the bucket or the latest bucket of the window
+     */
+    @JsonIgnore
+    long getSecond() {
+        return second;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getAvg() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    public double getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? 0 : max;
+    }
+}
@@ -0,0 +1,164 @@
+package eu.number26.codechallenge.dao;
+
+import eu.number26.codechallenge.metrics.MetricsRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static eu.number26.codechallenge.TestHelper.assertTransactionsEqual;
+import static eu.number26.codechallenge.TestHelper.createTransaction;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author ikanievska
+ */
+public class CachingTransactionDaoTest {
+    private TransactionNoDbDao delegate;
+    private CachingTransactionDao transactionDao;
+
+    @Before
+    public void setup() {
+        delegate = spy(new TransactionNoDbDao());
+        transactionDao = new CachingTransactionDao(delegate, 3);
+        // Chain 1 <- 2 <- 3 and separate root 4
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(3L, 2L, "car", 1.0));
+        transactionDao.merge(createTransaction(4L, null, "car", 1000.0));
+        reset(delegate);
+    }
+
+    @Test
+    public void cachedTransaction_GetById_ShouldNotReadDelegate() throws Exception {
+        transactionDao.getById(2L);
+
+        assertTransactionsEqual(createTransaction(2L, 1L, "car", 10.0), transactionDao.getById(2L));
+        verify(delegate, atMost(1)).getById(2L);
+    }
+
+    @Test
+    public void cachedTotalAmounts_MergeChild_ShouldInvalidateAllAncestors() throws Exception {
+        assertEquals(Double.valueOf(111.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Double.valueOf(1000.0), transactionDao.transactionTotalAmount(4L));
+
+        transactionDao.merge(createTransaction(3L, 2L, "car", 5.0));
+
+        assertEquals(Double.valueOf(115.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Double.valueOf(1000.0), transactionDao.transactionTotalAmount(4L));
+        verify(delegate, times(1)).transactionTotalAmount(4L);
+    }
+
+    @Test
+    public void cachedTotalAmounts_Reparent_ShouldInvalidateOldAndNewParents() throws Exception {
+        assertEquals(Double.valueOf(111.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Double.valueOf(11.0), transactionDao.transactionTotalAmount(2L));
+        assertEquals(Double.valueOf(1000.0), transactionDao.transactionTotalAmount(4L));
+
+        transactionDao.merge(createTransaction(3L, 4L, "car", 1.0));
+
+        assertEquals(Double.valueOf(110.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Double.valueOf(10.0), transactionDao.transactionTotalAmount(2L));
+        assertEquals(Double.valueOf(1001.0), transactionDao.transactionTotalAmount(4L));
+        assertEquals(Long.valueOf(4L), transactionDao.getById(3L).getParentId());
+    }
+
+    @Test
+    public void rejectedMerge_Merge_ShouldKeepCache() throws Exception {
+        transactionDao.transactionTotalAmount(1L);
+
+        assertNull(transactionDao.merge(createTransaction(1L, 3L, "car", 1.0)));
+
+        assertEquals(Double.valueOf(111.0), transactionDao.transactionTotalAmount(1L));
+        verify(delegate, times(1)).transactionTotalAmount(1L);
+    }
+
+    @Test
+    public void batch_MergeAll_ShouldInvalidateEveryMergedTransaction() throws Exception {
+        assertEquals(Double.valueOf(111.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Double.valueOf(1000.0), transactionDao.transactionTotalAmount(4L));
+
+        transactionDao.mergeAll(Arrays.asList(createTransaction(5L, 4L, "car", 1.0),
+                createTransaction(2L, 1L, "car", 20.0)));
+
+        assertEquals(Double.valueOf(121.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Double.valueOf(1001.0), transactionDao.transactionTotalAmount(4L));
+    }
+
+    @Test
+    public void moreTransactionsThanMaximumSize_GetById_ShouldEvictLeastRecentlyUsed() throws Exception {
+        MetricsRegistry metricsRegistry = new MetricsRegistry();
+        delegate.clear();
+        transactionDao = new CachingTransactionDao(delegate, 3);
+        transactionDao.setMetricsRegistry(metricsRegistry);
+        for (long transactionId = 1; transactionId <= 4; ++transactionId) {
+            delegate.merge(createTransaction(transactionId, null, "car", 1.0));
+            transactionDao.getById(transactionId);
+        }
+
+        transactionDao.getById(4L);
+        transactionDao.getById(1L);
+
+        StringWriter out = new StringWriter();
+        metricsRegistry.write(out);
+        assertTrue(out.toString().contains("transaction_cache_hits_total{cache=\"transaction\"} 1\n"));
+        assertTrue(out.toString().contains("transaction_cache_misses_total{cache=\"transaction\"} 5\n"));
+        assertTrue(out.toString().contains("transaction_cache_evictions_total{cache=\"transaction\"} 2\n"));
+    }
+
+    @Test
+    public void cachedTransactions_Clear_ShouldDropCaches() throws Exception {
+        transactionDao.getById(1L);
+        transactionDao.transactionTotalAmount(1L);
+
+        transactionDao.clear();
+
+        assertNull(transactionDao.getById(1L));
+        assertNull(transactionDao.transactionTotalAmount(1L));
+    }
+
+    @Test
+    public void cachedVersions_MergeChild_ShouldInvalidateVersionsOfParents() throws Exception {
+        long parentVersion = transactionDao.transactionVersion(1L);
+        long rootVersion = transactionDao.transactionVersion(4L);
+        assertEquals(Long.valueOf(parentVersion), transactionDao.transactionVersion(1L));
+        verify(delegate, times(1)).transactionVersion(1L);
+
+        transactionDao.merge(createTransaction(3L, 2L, "car", 5.0));
+
+        assertTrue(transactionDao.transactionVersion(1L) > parentVersion);
+        assertEquals(Long.valueOf(rootVersion), transactionDao.transactionVersion(4L));
+        verify(delegate, times(1)).transactionVersion(4L);
+    }
+
+    @Test
+    public void batchOfNewTransactions_MergeAll_ShouldReadCurrentParentsAtOnce() throws Exception {
+        transactionDao.getById(1L);
+        reset(delegate);
+
+        transactionDao.mergeAll(Arrays.asList(createTransaction(5L, 1L, "car", 1.0),
+                createTransaction(6L, 5L, "car", 1.0), createTransaction(7L, 1L, "car", 1.0)));
+
+        verify(delegate).getByIds(new HashSet<>(Arrays.asList(5L, 6L, 7L)));
+        // New ids are read by the default getByIds only, parents merged in the batch and cached parent aren't read
+        verify(delegate, times(3)).getById(anyLong());
+        verify(delegate, never()).getById(1L);
+        assertEquals(Double.valueOf(114.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Double.valueOf(2.0), transactionDao.transactionTotalAmount(5L));
+    }
+
+    @Test
+    public void uncachedTransaction_ReparentInBatch_ShouldInvalidateOldParents() throws Exception {
+        assertEquals(Double.valueOf(111.0), transactionDao.transactionTotalAmount(1L));
+
+        transactionDao.mergeAll(Arrays.asList(createTransaction(5L, 4L, "car", 1.0),
+                createTransaction(3L, 5L, "car", 1.0)));
+
+        assertEquals(Double.valueOf(110.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Double.valueOf(1002.0), transactionDao.transactionTotalAmount(4L));
+    }
+}
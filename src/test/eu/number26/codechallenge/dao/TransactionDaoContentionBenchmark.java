@@ -0,0 +1,71 @@
+package eu.number26.codechallenge.dao;
+
+import eu.number26.codechallenge.model.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static eu.number26.codechallenge.TestHelper.createTransaction;
+
+/**
+ * Measures merge throughput of {@link TransactionNoDbDao} depending on number of writer threads.
+ * <p>
+ * Every thread builds its own trees, so with per-tree locking throughput should grow with thread count
+ * up to number of available cores. Run it as a plain Java application:
+ * {@code java -cp <test classpath> eu.number26.codechallenge.dao.TransactionDaoContentionBenchmark [seconds]}
+ *
+ * @author ikanievska
+ */
+public class TransactionDaoContentionBenchmark {
+    private static final int TREE_SIZE = 1000;
+    private static final int TREES_PER_THREAD = 16;
+
+    public static void main(String... args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+        System.out.printf("%-8s %15s%n", "threads", "merges/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.out.printf("%-8d %15.0f%n", threads, throughput(new TransactionNoDbDao(), threads, seconds));
+        }
+    }
+
+    private static double throughput(TransactionDao transactionDao, int threads, long seconds) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<Long>> merges = new ArrayList<>();
+        for (int thread = 0; thread < threads; ++thread) {
+            long firstId = (long) thread * TREES_PER_THREAD * TREE_SIZE;
+            merges.add(executor.submit(() -> {
+                start.await();
+                long count = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < TREE_SIZE; ++i) {
+                        for (int tree = 0; tree < TREES_PER_THREAD; ++tree) {
+                            long treeRootId = firstId + (long) tree * TREE_SIZE;
+                            Long parentId = i == 0 ? null : treeRootId + (i - 1) / 4;
+                            Transaction transaction = createTransaction(treeRootId + i, parentId, "car", 1.0);
+                            transactionDao.merge(transaction);
+                            ++count;
+                        }
+                    }
+                }
+                return count;
+            }));
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        long total = 0;
+        for (Future<Long> future : merges) {
+            total += future.get();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        executor.shutdown();
+        return total * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,49 @@
+package eu.number26.codechallenge.dao;
+
+import java.util.function.Supplier;
+
+import static eu.number26.codechallenge.TestHelper.createTransaction;
+
+/**
+ * Measures retained heap per transaction of in-memory DAOs.
+ * <p>
+ * Every DAO is filled with trees of 1000 transactions of 10 types, heap used after full GC is compared with heap used
+ * by empty DAO. Run it as a plain Java application with a heap big enough for the largest DAO:
+ * {@code java -Xmx2g -cp <test classpath> eu.number26.codechallenge.dao.TransactionDaoMemoryBenchmark [transactions]}
+ *
+ * @author ikanievska
+ */
+public class TransactionDaoMemoryBenchmark {
+    private static final int TREE_SIZE = 1000;
+    private static final String[] TYPES = {"car", "shopping", "book", "food", "rent",
+            "salary", "travel", "health", "gift", "other"};
+
+    public static void main(String... args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.printf("%-28s %15s%n", "dao", "bytes/transaction");
+        print("TransactionNoDbDao", transactions, TransactionNoDbDao::new);
+        print("TransactionPrimitiveDao", transactions, TransactionPrimitiveDao::new);
+    }
+
+    private static void print(String name, int transactions, Supplier<TransactionDao> daoFactory) {
+        TransactionDao transactionDao = daoFactory.get();
+        long emptyHeap = usedHeap();
+        for (int i = 0; i < transactions; ++i) {
+            long treeRootId = i - i % TREE_SIZE;
+            Long parentId = i == treeRootId ? null : treeRootId + (i - treeRootId - 1) / 4;
+            transactionDao.merge(createTransaction((long) i, parentId, TYPES[i % TYPES.length], (double) i));
+        }
+        long filledHeap = usedHeap();
+        System.out.printf("%-28s %15.1f%n", name, (double) (filledHeap - emptyHeap) / transactions);
+        // Keep the DAO reachable until heap is measured
+        transactionDao.clear();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
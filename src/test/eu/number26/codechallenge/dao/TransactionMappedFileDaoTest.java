@@ -0,0 +1,125 @@
+package eu.number26.codechallenge.dao;
+
+import eu.number26.codechallenge.model.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import static eu.number26.codechallenge.TestHelper.assertTransactionsEqual;
+import static eu.number26.codechallenge.TestHelper.createTransaction;
+import static org.junit.Assert.*;
+
+/**
+ * @author ikanievska
+ */
+public class TransactionMappedFileDaoTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private TransactionMappedFileDao transactionDao;
+
+    @Before
+    public void setup() {
+        this.transactionDao = new TransactionMappedFileDao(folder.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        transactionDao.close();
+    }
+
+    private void reopen() {
+        transactionDao.close();
+        transactionDao = new TransactionMappedFileDao(folder.getRoot().getPath());
+    }
+
+    @Test
+    public void storedTransactions_Reopen_ShouldKeepTransactions() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "shopping", 10.0));
+
+        reopen();
+
+        assertEquals(2, transactionDao.size());
+        assertTransactionsEqual(createTransaction(2L, 1L, "shopping", 10.0), transactionDao.getById(2L));
+        assertEquals(Double.valueOf(110.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Collections.singletonList(1L), transactionDao.transactionIdsByType("car"));
+        assertEquals(Collections.singletonList(2L), transactionDao.transactionIdsByType("shopping"));
+    }
+
+    @Test
+    public void reopenedStorage_MergeTransactions_ShouldReuseTypesAndIndex() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        reopen();
+
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(1L, null, "car", 200.0));
+
+        assertEquals(2, transactionDao.size());
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L)),
+                new HashSet<>(transactionDao.transactionIdsByType("car")));
+        assertEquals(Double.valueOf(210.0), transactionDao.transactionTotalAmount(1L));
+    }
+
+    @Test
+    public void newTransactionWithInexistentParent_Merge_ShouldReturnNullWithoutStorageChanges() throws Exception {
+        assertNull(transactionDao.merge(createTransaction(2L, 1L, "car", 100.0)));
+
+        assertEquals(0, transactionDao.size());
+        assertNull(transactionDao.getById(2L));
+    }
+
+    @Test
+    public void storedTransactions_Clear_ShouldRemoveAllAfterReopen() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+
+        transactionDao.clear();
+        reopen();
+
+        assertEquals(0, transactionDao.size());
+        assertNull(transactionDao.getById(1L));
+        assertTrue(transactionDao.transactionIdsByType("car").isEmpty());
+    }
+
+    @Test
+    public void randomMergesWithReopens_AllQueries_ShouldMatchTransactionNoDbDao() throws Exception {
+        Random random = new Random(26);
+        String[] types = {"car", "shopping", "book", "\u0430\u0432\u0442\u043e", null};
+        TransactionNoDbDao expectedDao = new TransactionNoDbDao();
+        for (int i = 0; i < 30000; ++i) {
+            long transactionId = random.nextInt(5000);
+            Long parentId = random.nextInt(4) == 0 ? null : (long) random.nextInt(5000);
+            String type = types[random.nextInt(types.length)];
+            double amount = (double) (random.nextInt(200000) - 100000) / 100;
+            Transaction expected = expectedDao.merge(createTransaction(transactionId, parentId, type, amount));
+            Transaction actual = transactionDao.merge(createTransaction(transactionId, parentId, type, amount));
+            assertEquals(expected == null, actual == null);
+            if (i % 10000 == 0) {
+                reopen();
+            }
+        }
+        reopen();
+
+        assertEquals(expectedDao.size(), transactionDao.size());
+        for (long transactionId = 0; transactionId < 5000; ++transactionId) {
+            Transaction expected = expectedDao.getById(transactionId);
+            if (expected == null) {
+                assertNull(transactionDao.getById(transactionId));
+            } else {
+                assertTransactionsEqual(expected, transactionDao.getById(transactionId));
+                assertEquals(expectedDao.transactionTotalAmount(transactionId),
+                        transactionDao.transactionTotalAmount(transactionId), 1e-6);
+            }
+        }
+        for (String type : types) {
+            assertEquals(new HashSet<>(expectedDao.transactionIdsByType(type)),
+                    new HashSet<>(transactionDao.transactionIdsByType(type)));
+        }
+    }
+}
@@ -1,18 +1,33 @@
 package eu.number26.codechallenge.dao;
 
+import com.mongodb.*;
 import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.model.TypeStatistics;
 import eu.number26.codechallenge.repository.TransactionRepository;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-
-import java.util.List;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.*;
+import java.util.stream.Stream;
 
 import static eu.number26.codechallenge.TestHelper.*;
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
 /**
@@ -21,451 +36,631 @@ import static org.mockito.Mockito.*;
 public class TransactionMongoDaoTest {
     @Mock
     private TransactionRepository transactionRepository;
+    @Mock
+    private MongoOperations mongoOperations;
+    @Mock
+    private DBCollection collection;
+    @Mock
+    private BulkWriteOperation bulkWrite;
+    @Mock
+    private BulkWriteRequestBuilder bulkWriteRequest;
     @InjectMocks
     private TransactionMongoDao transactionDao;
 
+    private final Map<Long, Transaction> storedTransactions = new HashMap<>();
+
     @Before
     public void setupMock() {
         MockitoAnnotations.initMocks(this);
+        when(mongoOperations.find(any(Query.class), eq(Transaction.class))).thenAnswer(invocation -> {
+            Query query = (Query) invocation.getArguments()[0];
+            List<Transaction> found = new ArrayList<>();
+            for (Object transactionId : (Collection<?>) ((DBObject) query.getQueryObject().get("_id")).get("$in")) {
+                if (storedTransactions.containsKey(transactionId)) {
+                    found.add(storedTransactions.get(transactionId));
+                }
+            }
+            return found;
+        });
+        when(mongoOperations.findOne(any(Query.class), eq(Transaction.class))).thenAnswer(invocation -> {
+            Query query = (Query) invocation.getArguments()[0];
+            return storedTransactions.get(query.getQueryObject().get("_id"));
+        });
+        when(mongoOperations.getCollectionName(Transaction.class)).thenReturn("transaction");
+        when(mongoOperations.getCollection("transaction")).thenReturn(collection);
+        when(collection.initializeOrderedBulkOperation()).thenReturn(bulkWrite);
+        when(bulkWrite.find(any(DBObject.class))).thenReturn(bulkWriteRequest);
     }
 
-    @Test
-    public void newTransactionWithoutParent_Merge_ShouldStoreTransaction() throws Exception {
-        Transaction parent = createTransaction(1L, null, "car", 120000.75);
+    private Transaction store(Long transactionId, Double amount, Double subtreeSum, Long... ancestors) {
+        Long parentId = ancestors.length == 0 ? null : ancestors[ancestors.length - 1];
+        Transaction transaction = createTransaction(transactionId, parentId, "car", amount);
+        transaction.setAncestors(Arrays.asList(ancestors));
+        transaction.setSubtreeSum(subtreeSum);
+        storedTransactions.put(transactionId, transaction);
+        return transaction;
+    }
 
-        when(transactionRepository.findOne(parent.getParentId())).thenReturn(null);
-        when(transactionRepository.findOne(parent.getTransactionId())).thenReturn(null);
-        when(transactionRepository.save(parent)).thenReturn(parent);
+    private DBObject upsertedFields(Long transactionId) {
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        verify(mongoOperations).upsert(queryCaptor.capture(), updateCaptor.capture(), eq(Transaction.class));
+        assertEquals(transactionId, queryCaptor.getValue().getQueryObject().get("_id"));
+        return (DBObject) updateCaptor.getValue().getUpdateObject().get("$set");
+    }
 
-        Transaction actual = transactionDao.merge(parent);
+    private List<DBObject> updates(boolean multi, List<DBObject> queries) {
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        if (multi) {
+            verify(mongoOperations, atLeast(0)).updateMulti(queryCaptor.capture(), updateCaptor.capture(), eq(Transaction.class));
+        } else {
+            verify(mongoOperations, atLeast(0)).updateFirst(queryCaptor.capture(), updateCaptor.capture(), eq(Transaction.class));
+        }
+        for (Query query : queryCaptor.getAllValues()) {
+            queries.add(query.getQueryObject());
+        }
+        List<DBObject> updates = new ArrayList<>();
+        for (Update update : updateCaptor.getAllValues()) {
+            updates.add(update.getUpdateObject());
+        }
+        return updates;
+    }
 
-        ArgumentCaptor<Transaction> transactionCaptor = ArgumentCaptor.forClass(Transaction.class);
-        verify(transactionRepository).findOne(parent.getTransactionId());
-        verify(transactionRepository).save(transactionCaptor.capture());
-        verifyNoMoreInteractions(transactionRepository);
+    private static Object inIds(DBObject query) {
+        return ((DBObject) query.get("_id")).get("$in");
+    }
 
-        Transaction capturedTransaction = transactionCaptor.getValue();
+    private static Transaction addedChild(DBObject update) {
+        return (Transaction) ((DBObject) update.get("$addToSet")).get("childTransactions");
+    }
 
-        assertTransactionsEqual(parent, actual);
-        assertEquals(parent.getChildTransactions().size(), actual.getChildTransactions().size());
+    private static Transaction removedChild(DBObject update) {
+        return (Transaction) ((DBObject) update.get("$pull")).get("childTransactions");
+    }
 
-        assertTransactionsEqual(parent, capturedTransaction);
-        assertEquals(parent.getChildTransactions().size(), capturedTransaction.getChildTransactions().size());
+    private static Object inc(DBObject update) {
+        return ((DBObject) update.get("$inc")).get("subtreeSum");
     }
 
     @Test
-    public void existentTransactionWithoutParent_Merge_ShouldUpdateTransaction() throws Exception {
+    public void newTransactionWithoutParent_Merge_ShouldStoreTransaction() throws Exception {
         Transaction transaction = createTransaction(1L, null, "car", 120000.75);
 
-        Transaction transactionUpdate = createTransaction(transaction.getTransactionId(),
-                transaction.getParentId(),
-                transaction.getType() + " updated",
-                transaction.getAmount() + 1);
+        Transaction actual = transactionDao.merge(transaction);
 
-        when(transactionRepository.findOne(transaction.getTransactionId())).thenReturn(transaction);
-        when(transactionRepository.save(transactionUpdate)).thenReturn(transactionUpdate);
+        DBObject fields = upsertedFields(transaction.getTransactionId());
+        verify(mongoOperations, never()).updateFirst(any(Query.class), any(Update.class), eq(Transaction.class));
+        verify(mongoOperations, never()).updateMulti(any(Query.class), any(Update.class), eq(Transaction.class));
+        verifyZeroInteractions(transactionRepository);
 
-        Transaction updatedTransaction = transactionDao.merge(transactionUpdate);
+        assertTransactionsEqual(transaction, actual);
+        assertNull(fields.get("parentId"));
+        assertEquals(transaction.getType(), fields.get("type"));
+        assertEquals(transaction.getAmount(), fields.get("amount"));
+        assertEquals(Collections.emptyList(), fields.get("ancestors"));
+        assertEquals(transaction.getAmount(), fields.get("subtreeSum"));
+    }
 
-        ArgumentCaptor<Transaction> transactionCaptor = ArgumentCaptor.forClass(Transaction.class);
-        verify(transactionRepository).findOne(transaction.getTransactionId());
-        verify(transactionRepository).save(transactionCaptor.capture());
-        verifyNoMoreInteractions(transactionRepository);
+    @Test
+    public void existentTransactionWithoutParent_Merge_ShouldUpdateTransactionAndKeepChildrenSum() throws Exception {
+        store(1L, 100.0, 150.0);
+        Transaction transactionUpdate = createTransaction(1L, null, "car updated", 101.0);
 
-        Transaction capturedTransaction = transactionCaptor.getValue();
+        Transaction updatedTransaction = transactionDao.merge(transactionUpdate);
 
-        assertTransactionsEqual(capturedTransaction, updatedTransaction);
-        assertEquals(capturedTransaction.getChildTransactions().size(), updatedTransaction.getChildTransactions().size());
+        DBObject fields = upsertedFields(transactionUpdate.getTransactionId());
+        verify(mongoOperations, never()).updateFirst(any(Query.class), any(Update.class), eq(Transaction.class));
+        verify(mongoOperations, never()).updateMulti(any(Query.class), any(Update.class), eq(Transaction.class));
 
-        assertTransactionsEqual(transactionUpdate, capturedTransaction);
-        assertEquals(transactionUpdate.getChildTransactions().size(), capturedTransaction.getChildTransactions().size());
+        assertTransactionsEqual(transactionUpdate, updatedTransaction);
+        assertEquals("car updated", fields.get("type"));
+        assertEquals(151.0, fields.get("subtreeSum"));
     }
 
     @Test
-    public void newTransactionWithParent_Merge_ShouldStoreTransactionAndAddItToParentChildren() throws Exception {
-        Transaction parent = createTransaction(1L, null, "car", 120000.75);
-        Transaction child = createTransaction(2L, 1L, "shopping", 2700.0);
-
-        when(transactionRepository.findOne(parent.getTransactionId())).thenReturn(parent);
-        when(transactionRepository.findOne(child.getTransactionId())).thenReturn(null);
-        when(transactionRepository.save(child)).thenReturn(child);
+    public void newTransactionWithParent_Merge_ShouldStoreTransactionAndAddItToParents() throws Exception {
+        store(1L, 100.0, 100.0);
+        store(2L, 10.0, 10.0, 1L);
+        Transaction child = createTransaction(3L, 2L, "shopping", 2.0);
 
         Transaction actualChild = transactionDao.merge(child);
 
-        ArgumentCaptor<Transaction> transactionCaptor = ArgumentCaptor.forClass(Transaction.class);
-
-        verify(transactionRepository).findOne(child.getTransactionId());
-        verify(transactionRepository).findOne(parent.getTransactionId());
-        verify(transactionRepository, times(2)).save(transactionCaptor.capture());
-        verifyNoMoreInteractions(transactionRepository);
-
-        List<Transaction> capturedTransactions = transactionCaptor.getAllValues();
-        assertNotNull(capturedTransactions);
-        assertEquals(2, capturedTransactions.size());
-        Transaction capturedParent = capturedTransactions.get(0);
-        Transaction capturedChild = capturedTransactions.get(1);
-
+        DBObject fields = upsertedFields(child.getTransactionId());
+        assertEquals(Arrays.asList(1L, 2L), fields.get("ancestors"));
+        assertEquals(2.0, fields.get("subtreeSum"));
         assertTransactionsEqual(child, actualChild);
-        assertEquals(child.getChildTransactions().size(), actualChild.getChildTransactions().size());
-
-        assertTransactionsEqual(child, capturedChild);
-        assertEquals(child.getChildTransactions().size(), capturedChild.getChildTransactions().size());
 
-        assertTransactionsEqual(parent, capturedParent);
-        assertEquals(1, capturedParent.getChildTransactions().size());
-        assertTrue(capturedParent.getChildTransactions().contains(child));
+        List<DBObject> singleQueries = new ArrayList<>();
+        List<DBObject> singleUpdates = updates(false, singleQueries);
+        assertEquals(1, singleUpdates.size());
+        assertEquals(2L, singleQueries.get(0).get("_id"));
+        assertTrue(singleUpdates.get(0).containsField("$addToSet"));
+
+        List<DBObject> multiQueries = new ArrayList<>();
+        List<DBObject> multiUpdates = updates(true, multiQueries);
+        assertEquals(1, multiUpdates.size());
+        assertEquals(Arrays.asList(1L, 2L), inIds(multiQueries.get(0)));
+        assertEquals(2.0, inc(multiUpdates.get(0)));
     }
 
     @Test
     public void newTransactionWithInexistentParent_Merge_ShouldReturnNullWithoutStorageChanges() throws Exception {
-        Long inexistentParentId = 1L;
-        Transaction child = createTransaction(2L, inexistentParentId, "shopping", 2700.0);
-
-        when(transactionRepository.findOne(anyLong())).thenReturn(null);
+        Transaction child = createTransaction(2L, 1L, "shopping", 2700.0);
 
         Transaction actualChild = transactionDao.merge(child);
 
-        verify(transactionRepository).findOne(child.getTransactionId());
-        verify(transactionRepository).findOne(child.getParentId());
-        verifyNoMoreInteractions(transactionRepository);
-
         assertNull(actualChild);
+        verify(mongoOperations, atLeastOnce()).find(any(Query.class), eq(Transaction.class));
+        verifyNoMoreInteractions(mongoOperations);
+        verifyZeroInteractions(transactionRepository);
     }
 
     @Test
-    public void existentTransactionWithoutParent_AddParentAndMerge_ShouldUpdateTransactionAndAddItToParentChildren() throws Exception {
-        Transaction parent = createTransaction(1L, null, "car", 120000.75);
-
-        when(transactionRepository.findOne(parent.getTransactionId())).thenReturn(parent);
-
-        Transaction child = createTransaction(2L, null, "shopping", 2700.0);
-
-        when(transactionRepository.findOne(child.getTransactionId())).thenReturn(child);
-
-        Transaction childUpdate = createTransaction(child.getTransactionId(),
-                parent.getTransactionId(),
-                child.getType().concat(" updated"),
-                child.getAmount() + 1);
-
-        when(transactionRepository.save(childUpdate)).thenReturn(childUpdate);
-
-        Transaction updatedChild = transactionDao.merge(childUpdate);
-
-        ArgumentCaptor<Transaction> transactionCaptor = ArgumentCaptor.forClass(Transaction.class);
-
-        verify(transactionRepository).findOne(child.getTransactionId());
-        verify(transactionRepository).findOne(childUpdate.getParentId());
-        verify(transactionRepository, times(2)).save(transactionCaptor.capture());
-        verifyNoMoreInteractions(transactionRepository);
-
-        List<Transaction> capturedTransactions = transactionCaptor.getAllValues();
-        assertNotNull(capturedTransactions);
-        assertEquals(2, capturedTransactions.size());
-        Transaction capturedParent = capturedTransactions.get(0);
-        Transaction captredChild = capturedTransactions.get(1);
-
-        assertTransactionsEqual(childUpdate, updatedChild);
-        assertEquals(childUpdate.getChildTransactions().size(), updatedChild.getChildTransactions().size());
+    public void transactionWithParent_UpdateAmountAndMerge_ShouldIncrementParentsSums() throws Exception {
+        store(1L, 100.0, 117.0);
+        store(2L, 10.0, 17.0, 1L);
+        store(3L, 5.0, 7.0, 1L, 2L);
+        Transaction update = createTransaction(3L, 2L, "car", 8.0);
+
+        transactionDao.merge(update);
+
+        DBObject fields = upsertedFields(update.getTransactionId());
+        assertEquals(10.0, fields.get("subtreeSum"));
+        verify(mongoOperations, never()).updateFirst(any(Query.class), any(Update.class), eq(Transaction.class));
+
+        List<DBObject> multiQueries = new ArrayList<>();
+        List<DBObject> multiUpdates = updates(true, multiQueries);
+        assertEquals(1, multiUpdates.size());
+        assertEquals(Arrays.asList(1L, 2L), inIds(multiQueries.get(0)));
+        assertEquals(3.0, inc(multiUpdates.get(0)));
+    }
 
-        assertTransactionsEqual(childUpdate, captredChild);
-        assertEquals(childUpdate.getChildTransactions().size(), captredChild.getChildTransactions().size());
+    @Test
+    public void transactionWithChildren_ChangeParentAndMerge_ShouldMoveSubtreeSumAndAncestors() throws Exception {
+        store(1L, 100.0, 115.0);
+        store(2L, 10.0, 15.0, 1L);
+        store(4L, 1000.0, 1000.0);
+        Transaction update = createTransaction(2L, 4L, "car", 10.0);
+
+        transactionDao.merge(update);
+
+        DBObject fields = upsertedFields(update.getTransactionId());
+        assertEquals(Collections.singletonList(4L), fields.get("ancestors"));
+        assertEquals(15.0, fields.get("subtreeSum"));
+
+        List<DBObject> singleQueries = new ArrayList<>();
+        List<DBObject> singleUpdates = updates(false, singleQueries);
+        assertEquals(2, singleUpdates.size());
+        assertEquals(1L, singleQueries.get(0).get("_id"));
+        assertTrue(singleUpdates.get(0).containsField("$pull"));
+        assertEquals(4L, singleQueries.get(1).get("_id"));
+        assertTrue(singleUpdates.get(1).containsField("$addToSet"));
+
+        List<DBObject> multiQueries = new ArrayList<>();
+        List<DBObject> multiUpdates = updates(true, multiQueries);
+        assertEquals(4, multiUpdates.size());
+        assertEquals(Collections.singletonList(1L), inIds(multiQueries.get(0)));
+        assertEquals(-15.0, inc(multiUpdates.get(0)));
+        assertEquals(2L, multiQueries.get(1).get("ancestors"));
+        assertTrue(multiUpdates.get(1).containsField("$pullAll"));
+        assertEquals(2L, multiQueries.get(2).get("ancestors"));
+        assertTrue(multiUpdates.get(2).containsField("$push"));
+        assertEquals(Collections.singletonList(4L), inIds(multiQueries.get(3)));
+        assertEquals(15.0, inc(multiUpdates.get(3)));
+    }
 
-        assertTransactionsEqual(parent, capturedParent);
-        assertEquals(1, capturedParent.getChildTransactions().size());
-        assertTrue(capturedParent.getChildTransactions().contains(child));
+    @Test
+    public void existentTransactionWithoutParent_AddParentAndMerge_ShouldUpdateTransactionAndAddItToParentChildren() throws Exception {
+        store(1L, 100.0, 100.0);
+        store(2L, 10.0, 15.0);
+        Transaction childUpdate = createTransaction(2L, 1L, "car updated", 10.0);
+
+        assertTransactionsEqual(childUpdate, transactionDao.merge(childUpdate));
+
+        DBObject fields = upsertedFields(2L);
+        assertEquals(Collections.singletonList(1L), fields.get("ancestors"));
+        assertEquals(15.0, fields.get("subtreeSum"));
+
+        List<DBObject> singleQueries = new ArrayList<>();
+        List<DBObject> singleUpdates = updates(false, singleQueries);
+        assertEquals(1, singleUpdates.size());
+        assertEquals(1L, singleQueries.get(0).get("_id"));
+        assertEquals(2L, addedChild(singleUpdates.get(0)).getTransactionId().longValue());
+
+        // Root has no ancestors to pull from its subtree, parents are pushed only
+        List<DBObject> multiQueries = new ArrayList<>();
+        List<DBObject> multiUpdates = updates(true, multiQueries);
+        assertEquals(2, multiUpdates.size());
+        assertEquals(2L, multiQueries.get(0).get("ancestors"));
+        assertTrue(multiUpdates.get(0).containsField("$push"));
+        assertEquals(Collections.singletonList(1L), inIds(multiQueries.get(1)));
+        assertEquals(15.0, inc(multiUpdates.get(1)));
     }
 
     @Test
     public void parentWithOneChild_RemoveParentAndMerge_ShouldUpdateTransactionAndRemoveItFromParentChildren() throws Exception {
-        Transaction parent = createTransaction(1L, null, "car", 120000.75);
-
-        when(transactionRepository.findOne(parent.getTransactionId())).thenReturn(parent);
-
-        Transaction child = createTransaction(2L, parent.getTransactionId(), "shopping", 2700.0);
-
-        when(transactionRepository.findOne(child.getTransactionId())).thenReturn(child);
-
-        Transaction childUpdate = createTransaction(child.getTransactionId(),
-                null,
-                child.getType().concat(" updated"),
-                child.getAmount() + 1);
-
-        when(transactionRepository.save(childUpdate)).thenReturn(childUpdate);
-
-        Transaction updatedChild = transactionDao.merge(childUpdate);
-
-        ArgumentCaptor<Transaction> transactionCaptor = ArgumentCaptor.forClass(Transaction.class);
-
-        verify(transactionRepository).findOne(child.getTransactionId());
-        verify(transactionRepository).findOne(parent.getTransactionId());
-        verify(transactionRepository, times(2)).save(transactionCaptor.capture());
-        verifyNoMoreInteractions(transactionRepository);
-
-        List<Transaction> capturedTransactions = transactionCaptor.getAllValues();
-        assertNotNull(capturedTransactions);
-        assertEquals(2, capturedTransactions.size());
-        Transaction capturedParent = capturedTransactions.get(0);
-        Transaction capturedChild = capturedTransactions.get(1);
-
-        assertTransactionsEqual(childUpdate, updatedChild);
-        assertEquals(childUpdate.getChildTransactions().size(), updatedChild.getChildTransactions().size());
-
-        assertTransactionsEqual(childUpdate, capturedChild);
-        assertEquals(childUpdate.getChildTransactions().size(), capturedChild.getChildTransactions().size());
-
-        assertTransactionsEqual(parent, capturedParent);
-        assertTrue(capturedParent.getChildTransactions().isEmpty());
+        store(1L, 100.0, 110.0);
+        store(2L, 10.0, 10.0, 1L);
+        Transaction childUpdate = createTransaction(2L, null, "car updated", 11.0);
+
+        assertTransactionsEqual(childUpdate, transactionDao.merge(childUpdate));
+
+        DBObject fields = upsertedFields(2L);
+        assertNull(fields.get("parentId"));
+        assertEquals(Collections.emptyList(), fields.get("ancestors"));
+        assertEquals(11.0, fields.get("subtreeSum"));
+
+        List<DBObject> singleQueries = new ArrayList<>();
+        List<DBObject> singleUpdates = updates(false, singleQueries);
+        assertEquals(1, singleUpdates.size());
+        assertEquals(1L, singleQueries.get(0).get("_id"));
+        assertEquals(2L, removedChild(singleUpdates.get(0)).getTransactionId().longValue());
+
+        // Moved to root: old parents are pulled from the subtree and nothing is pushed
+        List<DBObject> multiQueries = new ArrayList<>();
+        List<DBObject> multiUpdates = updates(true, multiQueries);
+        assertEquals(2, multiUpdates.size());
+        assertEquals(Collections.singletonList(1L), inIds(multiQueries.get(0)));
+        assertEquals(-10.0, inc(multiUpdates.get(0)));
+        assertEquals(2L, multiQueries.get(1).get("ancestors"));
+        assertEquals(new BasicDBObject("ancestors", new Object[]{1L}).toString(),
+                multiUpdates.get(1).get("$pullAll").toString());
     }
 
     @Test
     public void transactionWithChildren_RemoveParentAndMerge_ShouldRemoveSingleChild() throws Exception {
-        Transaction parent = createTransaction(1L, null, "car", 120000.75);
-        Transaction firstChild = createTransaction(2L, parent.getTransactionId(), "shopping", 2700.0);
-        Transaction secondChild = createTransaction(3L, parent.getTransactionId(), "shopping", 2700.0);
-        parent.getChildTransactions().add(firstChild);
-        parent.getChildTransactions().add(secondChild);
-
-        when(transactionRepository.findOne(parent.getTransactionId())).thenReturn(parent);
-
-        when(transactionRepository.findOne(firstChild.getTransactionId())).thenReturn(firstChild);
-        when(transactionRepository.findOne(secondChild.getTransactionId())).thenReturn(secondChild);
-
-        Transaction firstChildUpdate = createTransaction(firstChild.getTransactionId(),
-                null,
-                firstChild.getType(),
-                firstChild.getAmount());
-
-        when(transactionRepository.save(firstChildUpdate)).thenReturn(firstChildUpdate);
+        store(1L, 100.0, 120.0);
+        store(2L, 10.0, 10.0, 1L);
+        store(3L, 10.0, 10.0, 1L);
+
+        transactionDao.merge(createTransaction(2L, null, "car", 10.0));
+
+        List<DBObject> singleQueries = new ArrayList<>();
+        List<DBObject> singleUpdates = updates(false, singleQueries);
+        assertEquals(1, singleUpdates.size());
+        assertEquals(2L, removedChild(singleUpdates.get(0)).getTransactionId().longValue());
+        List<DBObject> multiQueries = new ArrayList<>();
+        updates(true, multiQueries);
+        for (DBObject query : multiQueries) {
+            assertNotEquals(3L, query.get("_id"));
+        }
+    }
 
-        Transaction updatedChild = transactionDao.merge(firstChildUpdate);
+    @Test
+    public void transactionWithChild_AddAnotherChildAndMerge_ShouldAddNewChildWithoutAffectionOfExistent() throws Exception {
+        store(1L, 100.0, 110.0);
+        store(3L, 10.0, 10.0, 1L);
+        store(2L, 5.0, 5.0);
+
+        transactionDao.merge(createTransaction(2L, 1L, "car", 5.0));
+
+        List<DBObject> singleQueries = new ArrayList<>();
+        List<DBObject> singleUpdates = updates(false, singleQueries);
+        assertEquals(1, singleUpdates.size());
+        assertEquals(1L, singleQueries.get(0).get("_id"));
+        assertEquals(2L, addedChild(singleUpdates.get(0)).getTransactionId().longValue());
+        List<DBObject> multiQueries = new ArrayList<>();
+        List<DBObject> multiUpdates = updates(true, multiQueries);
+        assertEquals(2, multiUpdates.size());
+        assertEquals(2L, multiQueries.get(0).get("ancestors"));
+        assertEquals(Collections.singletonList(1L), inIds(multiQueries.get(1)));
+        assertEquals(5.0, inc(multiUpdates.get(1)));
+    }
 
-        ArgumentCaptor<Transaction> transactionCaptor = ArgumentCaptor.forClass(Transaction.class);
+    @Test
+    public void transactionWithChild_UpdateParentAndMerge_ShouldUpdateParentWithoutAffectionOfChildren() throws Exception {
+        store(1L, 100.0, 110.0);
+        store(2L, 10.0, 10.0, 1L);
+        Transaction parentUpdate = createTransaction(1L, null, "car", 100.0);
 
-        verify(transactionRepository).findOne(firstChild.getTransactionId());
-        verify(transactionRepository).findOne(parent.getTransactionId());
-        verify(transactionRepository, times(2)).save(transactionCaptor.capture());
-        verifyNoMoreInteractions(transactionRepository);
+        assertTransactionsEqual(parentUpdate, transactionDao.merge(parentUpdate));
 
-        List<Transaction> capturedTransactions = transactionCaptor.getAllValues();
-        assertNotNull(capturedTransactions);
-        assertEquals(2, capturedTransactions.size());
-        Transaction capturedParent = capturedTransactions.get(0);
-        Transaction capturedChild = capturedTransactions.get(1);
+        assertEquals(110.0, upsertedFields(1L).get("subtreeSum"));
+        verify(mongoOperations, never()).updateFirst(any(Query.class), any(Update.class), eq(Transaction.class));
+        verify(mongoOperations, never()).updateMulti(any(Query.class), any(Update.class), eq(Transaction.class));
+    }
 
-        assertTransactionsEqual(firstChildUpdate, updatedChild);
-        assertEquals(firstChildUpdate.getChildTransactions().size(), updatedChild.getChildTransactions().size());
+    @Test
+    public void twoTransactions_SetParentToEachOtherAndMerge_ShouldReturnNullWithoutStorageChanges() throws Exception {
+        store(0L, 2700.0, 5400.0);
+        store(1L, 2700.0, 2700.0, 0L);
 
-        assertTransactionsEqual(firstChildUpdate, capturedChild);
-        assertEquals(firstChildUpdate.getChildTransactions().size(), updatedChild.getChildTransactions().size());
+        assertNull(transactionDao.merge(createTransaction(0L, 1L, "car", 2700.0)));
 
-        assertTransactionsEqual(parent, capturedParent);
-        assertEquals(1, capturedParent.getChildTransactions().size());
-        assertFalse(capturedParent.getChildTransactions().contains(firstChild));
-        assertTrue(capturedParent.getChildTransactions().contains(secondChild));
+        verify(mongoOperations, atLeastOnce()).find(any(Query.class), eq(Transaction.class));
+        verifyNoMoreInteractions(mongoOperations);
     }
 
     @Test
-    public void transactionWithChild_AddAnotherChildAndMerge_ShouldAddNewChildWithoutAffectionOfExistent() throws Exception {
-        Transaction parent = createTransaction(1L, null, "car", 120000.75);
-
-        Transaction firstChild = createTransaction(2L, null, "shopping", 2700.0);
-        Transaction secondChild = createTransaction(3L, parent.getTransactionId(), "shopping", 2700.0);
-        parent.getChildTransactions().add(secondChild);
+    public void transactionWithGrandChild_SetGrandChildAsParentAndMerge_ShouldReturnNullWithoutStorageChanges() throws Exception {
+        store(1L, 100.0, 111.0);
+        store(2L, 10.0, 11.0, 1L);
+        store(3L, 1.0, 1.0, 1L, 2L);
 
-        when(transactionRepository.findOne(parent.getTransactionId())).thenReturn(parent);
-        when(transactionRepository.findOne(firstChild.getTransactionId())).thenReturn(firstChild);
-        when(transactionRepository.findOne(secondChild.getTransactionId())).thenReturn(secondChild);
+        Transaction updatedTransaction = transactionDao.merge(createTransaction(1L, 3L, "car", 100.0));
 
-        Transaction firstChildUpdate = createTransaction(firstChild.getTransactionId(),
-                parent.getTransactionId(),
-                firstChild.getType(),
-                firstChild.getAmount());
+        assertNull(updatedTransaction);
+        verify(mongoOperations, atLeastOnce()).find(any(Query.class), eq(Transaction.class));
+        verifyNoMoreInteractions(mongoOperations);
+    }
 
-        when(transactionRepository.save(firstChildUpdate)).thenReturn(firstChildUpdate);
+    @Test
+    public void batchOfNewTransactions_MergeAll_ShouldWriteThemWithSingleBulkWrite() throws Exception {
+        store(1L, 100.0, 100.0);
+        Transaction child = createTransaction(2L, 1L, "car", 10.0);
+        Transaction grandChild = createTransaction(3L, 2L, "car", 1.0);
+        Transaction orphan = createTransaction(4L, 9L, "car", 1000.0);
+
+        List<Transaction> merged = transactionDao.mergeAll(Arrays.asList(child, grandChild, orphan));
+
+        assertEquals(Arrays.asList(child, grandChild, null), merged);
+        ArgumentCaptor<DBObject> insertCaptor = ArgumentCaptor.forClass(DBObject.class);
+        verify(bulkWrite, times(2)).insert(insertCaptor.capture());
+        assertTrue((Long) insertCaptor.getAllValues().get(0).removeField("version") > 0);
+        assertEquals(new BasicDBObject("_id", 2L).append("parentId", 1L).append("type", "car").append("amount", 10.0)
+                        .append("ancestors", Collections.singletonList(1L)).append("subtreeSum", 10.0),
+                insertCaptor.getAllValues().get(0));
+        assertEquals(Arrays.asList(1L, 2L), insertCaptor.getAllValues().get(1).get("ancestors"));
+
+        ArgumentCaptor<DBObject> queryCaptor = ArgumentCaptor.forClass(DBObject.class);
+        ArgumentCaptor<DBObject> updateCaptor = ArgumentCaptor.forClass(DBObject.class);
+        verify(bulkWrite, times(4)).find(queryCaptor.capture());
+        verify(bulkWriteRequest, times(4)).updateOne(updateCaptor.capture());
+        List<DBObject> updates = updateCaptor.getAllValues();
+        assertEquals(Arrays.asList(1L, 2L, 1L, 2L),
+                Arrays.asList(queryCaptor.getAllValues().stream().map(query -> query.get("_id")).toArray()));
+        assertEquals(new DBRef("transaction", 2L), ((DBObject) updates.get(0).get("$addToSet")).get("childTransactions"));
+        assertEquals(new DBRef("transaction", 3L), ((DBObject) updates.get(1).get("$addToSet")).get("childTransactions"));
+        assertEquals(11.0, inc(updates.get(2)));
+        assertEquals(1.0, inc(updates.get(3)));
+        verify(bulkWrite).execute();
+        verify(mongoOperations, never()).upsert(any(Query.class), any(Update.class), eq(Transaction.class));
+        verify(mongoOperations, never()).updateMulti(any(Query.class), any(Update.class), eq(Transaction.class));
+    }
 
-        Transaction updatedChild = transactionDao.merge(firstChildUpdate);
+    @Test
+    public void batchWithStoredTransaction_MergeAll_ShouldWriteNewTransactionsBeforeMergingStoredOne() throws Exception {
+        store(1L, 100.0, 100.0);
+        Transaction child = createTransaction(2L, 1L, "car", 10.0);
+        Transaction rootUpdate = createTransaction(1L, null, "car", 50.0);
+
+        List<Transaction> merged = transactionDao.mergeAll(Arrays.asList(child, rootUpdate));
+
+        assertEquals(Arrays.asList(child, rootUpdate), merged);
+        InOrder inOrder = inOrder(bulkWrite, mongoOperations);
+        inOrder.verify(bulkWrite).execute();
+        inOrder.verify(mongoOperations).upsert(any(Query.class), any(Update.class), eq(Transaction.class));
+        assertEquals(50.0, upsertedFields(1L).get("amount"));
+    }
 
-        ArgumentCaptor<Transaction> transactionCaptor = ArgumentCaptor.forClass(Transaction.class);
+    @Test
+    public void transaction_SetItselfAsParentAndMerge_ShouldReturnNullWithoutStorageInteractions() throws Exception {
+        assertNull(transactionDao.merge(createTransaction(1L, 1L, "car", 100.0)));
+        verifyZeroInteractions(mongoOperations);
+        verifyZeroInteractions(transactionRepository);
+    }
 
-        verify(transactionRepository).findOne(firstChild.getTransactionId());
-        verify(transactionRepository).findOne(parent.getTransactionId());
-        verify(transactionRepository, times(2)).save(transactionCaptor.capture());
-        verifyNoMoreInteractions(transactionRepository);
+    @Test
+    public void transactionId_GetById_ShouldLoadOnlyTransactionFields() {
+        Transaction transaction = store(1L, 100.0, 117.0);
 
-        List<Transaction> capturedTransactions = transactionCaptor.getAllValues();
-        assertNotNull(capturedTransactions);
-        assertEquals(2, capturedTransactions.size());
-        Transaction capturedParent = capturedTransactions.get(0);
-        Transaction capturedChild = capturedTransactions.get(1);
+        assertSame(transaction, transactionDao.getById(1L));
 
-        assertTransactionsEqual(firstChildUpdate, updatedChild);
-        assertEquals(firstChildUpdate.getChildTransactions().size(), updatedChild.getChildTransactions().size());
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        verify(mongoOperations).findOne(queryCaptor.capture(), eq(Transaction.class));
+        assertEquals(1L, queryCaptor.getValue().getQueryObject().get("_id"));
+        assertEquals(new HashSet<>(Arrays.asList("parentId", "type", "amount")),
+                queryCaptor.getValue().getFieldsObject().keySet());
+        verifyZeroInteractions(transactionRepository);
+    }
 
-        assertTransactionsEqual(firstChildUpdate, capturedChild);
-        assertEquals(firstChildUpdate.getChildTransactions().size(), capturedChild.getChildTransactions().size());
+    @Test
+    public void transactionIds_GetByIds_ShouldLoadFoundTransactionsWithSingleQuery() {
+        Transaction first = store(1L, 100.0, 110.0);
+        Transaction second = store(2L, 10.0, 10.0, 1L);
+
+        Map<Long, Transaction> found = transactionDao.getByIds(Arrays.asList(1L, 2L, 3L));
+
+        assertEquals(2, found.size());
+        assertSame(first, found.get(1L));
+        assertSame(second, found.get(2L));
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        verify(mongoOperations).find(queryCaptor.capture(), eq(Transaction.class));
+        assertEquals(new HashSet<>(Arrays.asList("parentId", "type", "amount")),
+                queryCaptor.getValue().getFieldsObject().keySet());
+    }
 
-        assertTransactionsEqual(parent, capturedParent);
-        assertEquals(2, capturedParent.getChildTransactions().size());
-        assertTrue(capturedParent.getChildTransactions().contains(firstChild));
-        assertTrue(capturedParent.getChildTransactions().contains(secondChild));
+    @Test
+    public void inexistentTransactionId_GetById_ShouldReturnNull() {
+        assertNull(transactionDao.getById(0L));
     }
 
     @Test
-    public void transactionWithChildren_ChangeParentAndMerge_ShouldUpdateParents() throws Exception {
-        Transaction parent = createTransaction(1L, null, "car", 120000.75);
-        Transaction firstChild = createTransaction(2L, parent.getTransactionId(), "shopping", 2700.0);
-        Transaction secondChild = createTransaction(3L, parent.getTransactionId(), "shopping", 2700.0);
-        parent.getChildTransactions().add(firstChild);
-        parent.getChildTransactions().add(secondChild);
+    public void storedTransaction_AncestorIds_ShouldReturnStoredPathFromParent() throws Exception {
+        store(3L, 1.0, 1.0, 1L, 2L);
 
-        when(transactionRepository.findOne(parent.getTransactionId())).thenReturn(parent);
-        when(transactionRepository.findOne(firstChild.getTransactionId())).thenReturn(firstChild);
-        when(transactionRepository.findOne(secondChild.getTransactionId())).thenReturn(secondChild);
+        assertEquals(Arrays.asList(2L, 1L), transactionDao.ancestorIds(3L));
+        assertNull(transactionDao.ancestorIds(4L));
+        verify(mongoOperations, times(2)).findOne(any(Query.class), eq(Transaction.class));
+    }
 
-        Transaction firstChildUpdate = createTransaction(firstChild.getTransactionId(),
-                secondChild.getTransactionId(),
-                firstChild.getType(),
-                firstChild.getAmount());
+    @Test
+    public void storedTransactions_LowestCommonAncestor_ShouldCompareStoredPathsWithSingleQuery() throws Exception {
+        store(4L, 1.0, 1.0, 1L, 2L, 3L);
+        store(6L, 1.0, 1.0, 1L, 2L, 5L);
+        store(3L, 1.0, 1.0, 1L, 2L);
+        store(8L, 1.0, 1.0, 7L);
+
+        assertEquals(Long.valueOf(2L), transactionDao.lowestCommonAncestor(4L, 6L));
+        verify(mongoOperations).find(any(Query.class), eq(Transaction.class));
+        assertEquals(Long.valueOf(3L), transactionDao.lowestCommonAncestor(4L, 3L));
+        assertEquals(Long.valueOf(3L), transactionDao.lowestCommonAncestor(3L, 4L));
+        assertEquals(Long.valueOf(4L), transactionDao.lowestCommonAncestor(4L, 4L));
+        assertNull(transactionDao.lowestCommonAncestor(4L, 8L));
+        assertNull(transactionDao.lowestCommonAncestor(4L, 9L));
+    }
 
-        when(transactionRepository.save(firstChildUpdate)).thenReturn(firstChildUpdate);
+    @Test
+    public void existentTransactions_TransactionsByType_ShouldReturnSpecifiedTransactions() throws Exception {
+        String carType = "car";
+        Transaction transaction = createTransaction(1L, null, carType, 127000.0);
+        when(transactionRepository.findIdsByType(carType)).thenReturn(Collections.singletonList(transaction));
+        Collection<Long> transactionIds = transactionDao.transactionIdsByType(carType);
+        verify(transactionRepository).findIdsByType(carType);
+        verifyNoMoreInteractions(transactionRepository);
+        assertEquals(Collections.singletonList(transaction.getTransactionId()), transactionIds);
+    }
 
-        Transaction updatedFirstChild = transactionDao.merge(firstChildUpdate);
+    @Test
+    public void existentTransactions_TransactionIdsByTypePage_ShouldQueryIdsAfterSpecifiedOneSortedById() throws Exception {
+        when(transactionRepository.findIdsByTypeAfter(eq("car"), eq(Long.MIN_VALUE), any(Pageable.class)))
+                .thenReturn(Collections.singletonList(createTransaction(3L, null, null, null)));
 
-        ArgumentCaptor<Transaction> transactionCaptor = ArgumentCaptor.forClass(Transaction.class);
+        assertEquals(Collections.singletonList(3L), transactionDao.transactionIdsByType("car", null, 10));
 
-        verify(transactionRepository).findOne(firstChild.getTransactionId());
-        verify(transactionRepository).findOne(parent.getTransactionId());
-        verify(transactionRepository).findOne(secondChild.getTransactionId());
-        verify(transactionRepository, times(3)).save(transactionCaptor.capture());
+        ArgumentCaptor<Pageable> pageableCaptor = ArgumentCaptor.forClass(Pageable.class);
+        verify(transactionRepository).findIdsByTypeAfter(eq("car"), eq(Long.MIN_VALUE), pageableCaptor.capture());
+        assertEquals(new PageRequest(0, 10, Sort.Direction.ASC, "_id"), pageableCaptor.getValue());
         verifyNoMoreInteractions(transactionRepository);
+    }
 
-        List<Transaction> capturedTransactions = transactionCaptor.getAllValues();
-        assertNotNull(capturedTransactions);
-        assertEquals(3, capturedTransactions.size());
-        Transaction capturedSecondChild = capturedTransactions.get(0);
-        Transaction capturedParent = capturedTransactions.get(1);
-        Transaction capturedFirstChild = capturedTransactions.get(2);
-
-        assertTransactionsEqual(firstChildUpdate, updatedFirstChild);
-        assertEquals(firstChildUpdate.getChildTransactions().size(), updatedFirstChild.getChildTransactions().size());
-
-        assertTransactionsEqual(firstChildUpdate, capturedFirstChild);
-        assertEquals(firstChildUpdate.getChildTransactions().size(), capturedFirstChild.getChildTransactions().size());
+    @Test
+    public void existentTransactions_ForEachTransactionIdByType_ShouldPassIdsAndCloseStream() throws Exception {
+        boolean[] closed = {false};
+        when(transactionRepository.streamIdsByType("car")).thenReturn(
+                Stream.of(createTransaction(1L, null, null, null), createTransaction(2L, null, null, null))
+                        .onClose(() -> closed[0] = true));
 
-        assertTransactionsEqual(parent, capturedParent);
-        assertEquals(1, capturedParent.getChildTransactions().size());
-        assertFalse(capturedParent.getChildTransactions().contains(firstChild));
-        assertTrue(capturedParent.getChildTransactions().contains(secondChild));
+        List<Long> transactionIds = new ArrayList<>();
+        transactionDao.forEachTransactionIdByType("car", transactionIds::add);
 
-        assertTransactionsEqual(secondChild, capturedSecondChild);
-        assertEquals(1, capturedSecondChild.getChildTransactions().size());
-        assertTrue(capturedSecondChild.getChildTransactions().contains(updatedFirstChild));
+        assertEquals(Arrays.asList(1L, 2L), transactionIds);
+        assertTrue(closed[0]);
     }
 
     @Test
-    public void twoTransactions_SetParentToEachOtherAndMerge_ShouldReturnNullWithoutStorageChanges() throws Exception {
-        Transaction firstTransaction = createTransaction(0L, null, "shopping", 2700.0);
-        Transaction secondTransaction = createTransaction(1L, firstTransaction.getTransactionId(), "shopping", 2700.0);
-        firstTransaction.getChildTransactions().add(secondTransaction);
-
-        when(transactionRepository.findOne(firstTransaction.getTransactionId())).thenReturn(firstTransaction);
-        when(transactionRepository.findOne(secondTransaction.getTransactionId())).thenReturn(secondTransaction);
+    public void inexistentTransaction_TransactionTotalAmount_ShouldReturnNull() throws Exception {
+        assertNull(transactionDao.transactionTotalAmount(0L));
+    }
 
-        Transaction firstTransactionUpdate = createTransaction(firstTransaction.getTransactionId(),
-                secondTransaction.getTransactionId(),
-                firstTransaction.getType(),
-                firstTransaction.getAmount());
+    @Test
+    public void transaction_TransactionTotalAmount_ShouldReturnStoredSubtreeSum() throws Exception {
+        store(1L, 100.0, 117.0);
 
-        Transaction updatedFirstTransaction = transactionDao.merge(firstTransactionUpdate);
+        assertEquals(Double.valueOf(117.0), transactionDao.transactionTotalAmount(1L));
 
-        assertNull(updatedFirstTransaction);
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        verify(mongoOperations).findOne(queryCaptor.capture(), eq(Transaction.class));
+        assertEquals(1L, queryCaptor.getValue().getQueryObject().get("_id"));
+        assertEquals(Collections.singleton("subtreeSum"), queryCaptor.getValue().getFieldsObject().keySet());
+        verifyZeroInteractions(transactionRepository);
+    }
 
-        verify(transactionRepository).findOne(firstTransaction.getTransactionId());
-        verify(transactionRepository).findOne(secondTransaction.getTransactionId());
+    @Test
+    public void any_Size_ShouldInvokeCount() {
+        transactionDao.size();
+        verify(transactionRepository).count();
         verifyNoMoreInteractions(transactionRepository);
     }
 
     @Test
-    public void transactionWithChild_UpdateParentAndMerge_ShouldUpdateParentdWithoutAffectionOfChildren() throws Exception {
-        Transaction parent = createTransaction(1L, null, "car", 120000.75);
-        Transaction child = spy(createTransaction(2L, parent.getTransactionId(), "shopping", 2700.0));
-        parent.getChildTransactions().add(child);
-
-        when(transactionRepository.findOne(parent.getTransactionId())).thenReturn(parent);
-        when(transactionRepository.findOne(child.getTransactionId())).thenReturn(child);
-
-        Transaction parentUpdate = createTransaction(parent.getTransactionId(),
-                parent.getParentId(),
-                parent.getType(),
-                parent.getAmount());
-
-        when(transactionRepository.save(parentUpdate)).thenReturn(parentUpdate);
-
-        Transaction updatedParent = transactionDao.merge(parentUpdate);
-
-        ArgumentCaptor<Transaction> transactionCaptor = ArgumentCaptor.forClass(Transaction.class);
-
-        verify(transactionRepository).findOne(parent.getTransactionId());
-        verify(transactionRepository).save(transactionCaptor.capture());
+    public void any_Clear_ShouldDeleteAll() {
+        transactionDao.clear();
+        verify(transactionRepository).deleteAll();
         verifyNoMoreInteractions(transactionRepository);
-
-        Transaction capturedParent = transactionCaptor.getValue();
-
-        assertTransactionsEqual(parentUpdate, updatedParent);
-        assertEquals(1, updatedParent.getChildTransactions().size());
-        assertTrue(updatedParent.getChildTransactions().contains(child));
-
-        assertTransactionsEqual(parentUpdate, capturedParent);
-        assertEquals(1, capturedParent.getChildTransactions().size());
-        assertTrue(capturedParent.getChildTransactions().contains(child));
-
-        verifyNoModifications(child);
     }
 
     @Test
-    public void transactionId_GetById_ShouldInvokeTransactionSearching() {
-        Long transactionId = 0L;
-        transactionDao.getById(transactionId);
-        verify(transactionRepository).findOne(transactionId);
-        verifyNoMoreInteractions(transactionRepository);
+    public void storedChild_MergeWithSameAmount_ShouldIncrementVersionsOfItselfAndParents() throws Exception {
+        store(1L, 100.0, 110.0);
+        store(2L, 10.0, 10.0, 1L);
+
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        verify(mongoOperations).upsert(any(Query.class), updateCaptor.capture(), eq(Transaction.class));
+        assertEquals(1, ((DBObject) updateCaptor.getValue().getUpdateObject().get("$inc")).get("version"));
+        List<DBObject> queries = new ArrayList<>();
+        List<DBObject> updates = updates(true, queries);
+        assertEquals(1, updates.size());
+        assertEquals(Collections.singletonList(1L), inIds(queries.get(0)));
+        assertEquals(1, ((DBObject) updates.get(0).get("$inc")).get("version"));
+        assertNull(inc(updates.get(0)));
     }
 
     @Test
-    public void existentTransactions_TransactionsByType_ShouldReturnSpecifiedTransactions() throws Exception {
-        String carType = "car";
-        transactionDao.transactionsByType(carType);
-        verify(transactionRepository).findByType(carType);
-        verifyNoMoreInteractions(transactionRepository);
+    public void storedTransaction_GetVersion_ShouldReadVersionOnly() throws Exception {
+        store(1L, 100.0, 100.0).setVersion(7L);
+
+        assertEquals(Long.valueOf(7L), transactionDao.transactionVersion(1L));
+        assertNull(transactionDao.transactionVersion(2L));
+    }
+
+    private List<DBObject> typeStatisticsUpserts() {
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        verify(mongoOperations, atLeast(0)).upsert(any(Query.class), updateCaptor.capture(), eq(TypeStatistics.class));
+        List<DBObject> updates = new ArrayList<>();
+        for (Update update : updateCaptor.getAllValues()) {
+            updates.add(update.getUpdateObject());
+        }
+        return updates;
     }
 
     @Test
-    public void inexistentTransaction_TransactionTotalAmount_ShouldReturnNull() throws Exception {
-        assertNull(transactionDao.transactionTotalAmount(0L));
+    public void batchOfNewTransactions_MergeAll_ShouldIncrementStatisticsOncePerType() throws Exception {
+        transactionDao.mergeAll(Arrays.asList(createTransaction(1L, null, "car", 10.0),
+                createTransaction(2L, 1L, "car", -5.0), createTransaction(3L, null, null, 1.0)));
+
+        List<DBObject> updates = typeStatisticsUpserts();
+        assertEquals(1, updates.size());
+        assertEquals(new BasicDBObject("$inc", new BasicDBObject("count", 2L).append("sum", 5.0))
+                        .append("$min", new BasicDBObject("min", -5.0))
+                        .append("$max", new BasicDBObject("max", 10.0)),
+                updates.get(0));
     }
 
     @Test
-    public void transaction_TransactionTotalAmount_ShouldInvokeTransactionTotalAmount() throws Exception {
-        Long transactionId = 0L;
-        Transaction parent = spy(createTransaction(transactionId, null, "car", 120000.75));
-        when(transactionRepository.findOne(transactionId)).thenReturn(parent);
-        transactionDao.transactionTotalAmount(transactionId);
-        verify(transactionRepository).findOne(transactionId);
-        verifyNoMoreInteractions(transactionRepository);
-        verify(parent).getTotalAmount();
-        verifyNoMoreInteractions(parent);
+    public void storedTransaction_ChangeType_ShouldMoveAmountBetweenTypeStatistics() throws Exception {
+        store(1L, 100.0, 100.0);
+        when(mongoOperations.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(TypeStatistics.class))).thenReturn(new TypeStatistics("car", 1, 50.0, 50.0, 100.0));
+        when(mongoOperations.aggregate(any(Aggregation.class), eq(Transaction.class), eq(DBObject.class)))
+                .thenReturn(new AggregationResults<>(Collections.singletonList(
+                        new BasicDBObject("min", 50.0).append("max", 50.0)), new BasicDBObject()));
+
+        transactionDao.merge(createTransaction(1L, null, "shopping", 100.0));
+
+        assertEquals(new BasicDBObject("count", 1L).append("sum", 100.0), typeStatisticsUpserts().get(0).get("$inc"));
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        InOrder inOrder = inOrder(mongoOperations);
+        inOrder.verify(mongoOperations).upsert(any(Query.class), any(Update.class), eq(TypeStatistics.class));
+        inOrder.verify(mongoOperations).findAndModify(queryCaptor.capture(), updateCaptor.capture(),
+                any(FindAndModifyOptions.class), eq(TypeStatistics.class));
+        assertEquals("car", queryCaptor.getValue().getQueryObject().get("_id"));
+        assertEquals(new BasicDBObject("count", -1).append("sum", -100.0), updateCaptor.getValue().getUpdateObject().get("$inc"));
+        // Removed amount was the maximum, so it is recalculated
+        inOrder.verify(mongoOperations).updateFirst(any(Query.class), updateCaptor.capture(), eq(TypeStatistics.class));
+        assertEquals(new BasicDBObject("min", 50.0).append("max", 50.0), updateCaptor.getValue().getUpdateObject().get("$set"));
     }
 
     @Test
-    public void any_Size_ShouldInvokeCount() {
-        transactionDao.size();
-        verify(transactionRepository).count();
-        verifyNoMoreInteractions(transactionRepository);
+    public void storedTransaction_MergeSameTypeAndAmount_ShouldNotChangeTypeStatistics() throws Exception {
+        store(1L, 100.0, 100.0);
+
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+
+        verify(mongoOperations, never()).upsert(any(Query.class), any(Update.class), eq(TypeStatistics.class));
+        verify(mongoOperations, never()).findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(TypeStatistics.class));
     }
 
     @Test
-    public void any_Clear_ShouldDeleteAll() {
-        transactionDao.clear();
-        verify(transactionRepository).deleteAll();
-        verifyNoMoreInteractions(transactionRepository);
+    public void typeWithoutStatistics_TypeStatistics_ShouldReturnZeros() throws Exception {
+        TypeStatistics actual = transactionDao.typeStatistics("car");
+
+        assertEquals("car", actual.getType());
+        assertEquals(0, actual.getCount());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,243 @@
+package eu.number26.codechallenge.dao;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.repository.TransactionRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static eu.number26.codechallenge.TestHelper.createTransaction;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author ikanievska
+ */
+public class TransactionMongoParentIdDaoTest {
+    private static final String COLLECTION = "transaction";
+
+    @Mock
+    private TransactionRepository transactionRepository;
+    @Mock
+    private MongoOperations mongoOperations;
+    @InjectMocks
+    private TransactionMongoParentIdDao transactionDao;
+
+    @Before
+    public void setupMock() {
+        MockitoAnnotations.initMocks(this);
+        when(mongoOperations.getCollectionName(Transaction.class)).thenReturn(COLLECTION);
+    }
+
+    private void aggregationReturns(DBObject... results) {
+        when(mongoOperations.aggregate(any(Aggregation.class), eq(COLLECTION), eq(DBObject.class)))
+                .thenReturn(new AggregationResults<>(Arrays.asList(results), new BasicDBObject()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<DBObject> aggregationPipeline() {
+        ArgumentCaptor<Aggregation> aggregationCaptor = ArgumentCaptor.forClass(Aggregation.class);
+        verify(mongoOperations).aggregate(aggregationCaptor.capture(), eq(COLLECTION), eq(DBObject.class));
+        return (List<DBObject>) aggregationCaptor.getValue()
+                .toDbObject(COLLECTION, Aggregation.DEFAULT_CONTEXT)
+                .get("pipeline");
+    }
+
+    private void storedTransaction(Long transactionId, Long parentId) {
+        Transaction stored = createTransaction(transactionId, parentId, null, null);
+        when(mongoOperations.findOne(any(Query.class), eq(Transaction.class))).thenReturn(stored);
+    }
+
+    @Test
+    public void newTransactionWithoutParent_Merge_ShouldUpsertOnlyTransactionDocument() throws Exception {
+        Transaction transaction = createTransaction(1L, null, "car", 120000.75);
+
+        assertSame(transaction, transactionDao.merge(transaction));
+
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        verify(mongoOperations).upsert(any(Query.class), updateCaptor.capture(), eq(Transaction.class));
+        DBObject fields = (DBObject) updateCaptor.getValue().getUpdateObject().get("$set");
+        assertEquals(new BasicDBObject("parentId", null).append("type", "car").append("amount", 120000.75), fields);
+    }
+
+    @Test
+    public void newTransactionWithInexistentParent_Merge_ShouldReturnNullWithoutStorageChanges() throws Exception {
+        when(mongoOperations.exists(any(Query.class), eq(Transaction.class))).thenReturn(false);
+
+        assertNull(transactionDao.merge(createTransaction(2L, 1L, "shopping", 2700.0)));
+
+        verify(mongoOperations, never()).upsert(any(Query.class), any(Update.class), eq(Transaction.class));
+    }
+
+    @Test
+    public void newTransactionWithParent_Merge_ShouldNotLoadParentAncestors() throws Exception {
+        when(mongoOperations.exists(any(Query.class), eq(Transaction.class))).thenReturn(true);
+
+        assertNotNull(transactionDao.merge(createTransaction(2L, 1L, "shopping", 2700.0)));
+
+        verify(mongoOperations).upsert(any(Query.class), any(Update.class), eq(Transaction.class));
+        verify(mongoOperations, never()).aggregate(any(Aggregation.class), eq(COLLECTION), eq(DBObject.class));
+    }
+
+    @Test
+    public void existentTransaction_SetDescendantAsParentAndMerge_ShouldReturnNullWithoutStorageChanges() throws Exception {
+        storedTransaction(1L, null);
+        aggregationReturns(new BasicDBObject("ancestors", Arrays.asList(
+                new BasicDBObject("_id", 2L).append("depth", 0L), new BasicDBObject("_id", 1L).append("depth", 1L))));
+
+        assertNull(transactionDao.merge(createTransaction(1L, 3L, "car", 100.0)));
+
+        List<DBObject> pipeline = aggregationPipeline();
+        assertEquals(new BasicDBObject("_id", 3L), pipeline.get(0).get("$match"));
+        DBObject graphLookup = (DBObject) pipeline.get(1).get("$graphLookup");
+        assertEquals("$parentId", graphLookup.get("startWith"));
+        assertEquals("parentId", graphLookup.get("connectFromField"));
+        assertEquals("_id", graphLookup.get("connectToField"));
+        verify(mongoOperations, never()).upsert(any(Query.class), any(Update.class), eq(Transaction.class));
+    }
+
+    @Test
+    public void existentTransaction_ChangeParentAndMerge_ShouldUpsertTransaction() throws Exception {
+        storedTransaction(1L, null);
+        aggregationReturns(new BasicDBObject("ancestors",
+                Collections.singletonList(new BasicDBObject("_id", 4L).append("depth", 0L))));
+
+        assertNotNull(transactionDao.merge(createTransaction(1L, 3L, "car", 100.0)));
+
+        verify(mongoOperations).upsert(any(Query.class), any(Update.class), eq(Transaction.class));
+    }
+
+    @Test
+    public void existentTransaction_UpdateWithSameParentAndMerge_ShouldNotCheckParents() throws Exception {
+        storedTransaction(1L, 3L);
+
+        assertNotNull(transactionDao.merge(createTransaction(1L, 3L, "car", 100.0)));
+
+        verify(mongoOperations).upsert(any(Query.class), any(Update.class), eq(Transaction.class));
+        verify(mongoOperations, never()).exists(any(Query.class), eq(Transaction.class));
+        verify(mongoOperations, never()).aggregate(any(Aggregation.class), eq(COLLECTION), eq(DBObject.class));
+    }
+
+    @Test
+    public void storedTransaction_AncestorIds_ShouldReturnAncestorsOrderedByDepth() throws Exception {
+        aggregationReturns(new BasicDBObject("ancestors", Arrays.asList(
+                new BasicDBObject("_id", 1L).append("depth", 1L),
+                new BasicDBObject("_id", 7L).append("depth", 2L),
+                new BasicDBObject("_id", 2L).append("depth", 0L))));
+
+        assertEquals(Arrays.asList(2L, 1L, 7L), transactionDao.ancestorIds(3L));
+
+        DBObject graphLookup = (DBObject) aggregationPipeline().get(1).get("$graphLookup");
+        assertEquals("depth", graphLookup.get("depthField"));
+    }
+
+    @Test
+    public void inexistentTransaction_TransactionTotalAmount_ShouldReturnNull() throws Exception {
+        aggregationReturns();
+        assertNull(transactionDao.transactionTotalAmount(0L));
+    }
+
+    @Test
+    public void transaction_TransactionTotalAmount_ShouldSumSubtreeWithGraphLookup() throws Exception {
+        aggregationReturns(new BasicDBObject("sum", 117.5));
+
+        assertEquals(Double.valueOf(117.5), transactionDao.transactionTotalAmount(1L));
+
+        List<DBObject> pipeline = aggregationPipeline();
+        assertEquals(3, pipeline.size());
+        assertEquals(new BasicDBObject("_id", 1L), pipeline.get(0).get("$match"));
+        DBObject graphLookup = (DBObject) pipeline.get(1).get("$graphLookup");
+        assertEquals(COLLECTION, graphLookup.get("from"));
+        assertEquals("$_id", graphLookup.get("startWith"));
+        assertEquals("_id", graphLookup.get("connectFromField"));
+        assertEquals("parentId", graphLookup.get("connectToField"));
+        verifyZeroInteractions(transactionRepository);
+    }
+
+    private void aggregationFails() {
+        when(mongoOperations.aggregate(any(Aggregation.class), eq(COLLECTION), eq(DBObject.class)))
+                .thenThrow(new InvalidDataAccessApiUsageException("exceeded memory limit for $graphLookup"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void subtreeExceedingAggregationLimits_TransactionTotalAmount_ShouldWalkChildrenByLevels() throws Exception {
+        aggregationFails();
+        when(transactionRepository.findOne(1L)).thenReturn(createTransaction(1L, null, null, 100.0));
+        List<Transaction> secondLevel = new ArrayList<>();
+        for (long i = 2; i < 1502; ++i) {
+            secondLevel.add(createTransaction(i, 1L, null, 1.0));
+        }
+        when(transactionRepository.findAmountsByParentIdIn(anyCollection())).thenAnswer(invocation -> {
+            Collection<Long> parentIds = (Collection<Long>) invocation.getArguments()[0];
+            if (parentIds.contains(1L)) {
+                return secondLevel;
+            }
+            return parentIds.contains(2L) ? Collections.singletonList(createTransaction(1502L, 2L, null, 0.5))
+                    : Collections.emptyList();
+        });
+
+        assertEquals(Double.valueOf(1600.5), transactionDao.transactionTotalAmount(1L));
+
+        ArgumentCaptor<Collection> parentIdsCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(transactionRepository, times(4)).findAmountsByParentIdIn(parentIdsCaptor.capture());
+        assertEquals(Arrays.asList(1, 1000, 500, 1), parentIdsCaptor.getAllValues().stream()
+                .map(Collection::size)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void inexistentTransactionExceedingAggregationLimits_TransactionTotalAmount_ShouldReturnNull() throws Exception {
+        aggregationFails();
+        assertNull(transactionDao.transactionTotalAmount(1L));
+        verify(transactionRepository, never()).findAmountsByParentIdIn(anyCollection());
+    }
+
+    @Test
+    public void pathExceedingAggregationLimits_AncestorIds_ShouldWalkParents() throws Exception {
+        aggregationFails();
+        when(mongoOperations.findOne(any(Query.class), eq(Transaction.class))).thenAnswer(invocation -> {
+            Long transactionId = (Long) ((Query) invocation.getArguments()[0]).getQueryObject().get("_id");
+            return transactionId > 3L ? null : createTransaction(transactionId,
+                    transactionId == 1L ? null : transactionId - 1, null, null);
+        });
+
+        assertEquals(Arrays.asList(2L, 1L), transactionDao.ancestorIds(3L));
+        assertNull(transactionDao.ancestorIds(4L));
+    }
+
+    @Test
+    public void transactionId_GetById_ShouldInvokeTransactionSearching() {
+        transactionDao.getById(0L);
+        verify(transactionRepository).findOne(0L);
+        verifyNoMoreInteractions(transactionRepository);
+    }
+
+    @Test
+    public void any_Clear_ShouldDeleteAll() {
+        transactionDao.clear();
+        verify(transactionRepository).deleteAll();
+        verifyNoMoreInteractions(transactionRepository);
+    }
+}
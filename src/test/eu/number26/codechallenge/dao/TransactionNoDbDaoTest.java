@@ -1,12 +1,15 @@
 package eu.number26.codechallenge.dao;
 
 import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.model.TypeStatistics;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
 
-import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static eu.number26.codechallenge.TestHelper.assertTransactionsEqual;
 import static eu.number26.codechallenge.TestHelper.createTransaction;
@@ -353,32 +356,83 @@ public class TransactionNoDbDaoTest {
             shoppingTransactions.add(transaction);
         }
 
-        Collection<Transaction> foundCarTransactions = transactionDao.transactionsByType(carType);
-        Collection<Transaction> foundShoppingTransactions = transactionDao.transactionsByType(shoppingType);
+        Collection<Long> foundCarTransactions = transactionDao.transactionIdsByType(carType);
+        Collection<Long> foundShoppingTransactions = transactionDao.transactionIdsByType(shoppingType);
 
         assertNotNull(foundCarTransactions);
         assertEquals(carTransactions.size(), foundCarTransactions.size());
         for (Transaction carTransaction : carTransactions) {
-            assertTrue(foundCarTransactions.contains(carTransaction));
+            assertTrue(foundCarTransactions.contains(carTransaction.getTransactionId()));
         }
 
         assertNotNull(foundShoppingTransactions);
         assertEquals(shoppingTransactions.size(), foundShoppingTransactions.size());
         for (Transaction shoppingTransaction : shoppingTransactions) {
-            assertTrue(foundShoppingTransactions.contains(shoppingTransaction));
+            assertTrue(foundShoppingTransactions.contains(shoppingTransaction.getTransactionId()));
         }
     }
 
+    @Test
+    public void existentTransaction_ChangeTypeAndMerge_ShouldMoveTransactionToNewType() throws Exception {
+        Transaction transaction = createTransaction(1L, null, "car", 127000.0);
+        transactionDao.merge(transaction);
+
+        Transaction transactionUpdate = createTransaction(transaction.getTransactionId(),
+                transaction.getParentId(),
+                "shopping",
+                transaction.getAmount());
+        transactionDao.merge(transactionUpdate);
+
+        assertTrue(transactionDao.transactionIdsByType("car").isEmpty());
+        assertEquals(Collections.singletonList(transaction.getTransactionId()),
+                transactionDao.transactionIdsByType("shopping"));
+    }
+
+    @Test
+    public void storedTransaction_ChangeTypeInPlace_TransactionIdsByTypeShouldNotReturnIt() throws Exception {
+        Transaction transaction = transactionDao.merge(createTransaction(1L, null, "car", 127000.0));
+        transaction.setType("shopping");
+
+        assertTrue(transactionDao.transactionIdsByType("car").isEmpty());
+    }
+
+    @Test
+    public void transactionsWithType_TransactionIdsByTypePage_ShouldReturnSortedIdsAfterSpecifiedOne() throws Exception {
+        for (long transactionId : new long[]{5L, 1L, 4L, 2L, 3L}) {
+            transactionDao.merge(createTransaction(transactionId, null, "car", 1.0));
+        }
+        transactionDao.merge(createTransaction(6L, null, "shopping", 1.0));
+
+        assertEquals(Arrays.asList(1L, 2L), transactionDao.transactionIdsByType("car", null, 2));
+        assertEquals(Arrays.asList(3L, 4L), transactionDao.transactionIdsByType("car", 2L, 2));
+        assertEquals(Collections.singletonList(5L), transactionDao.transactionIdsByType("car", 4L, 2));
+        assertEquals(Collections.emptyList(), transactionDao.transactionIdsByType("car", 5L, 2));
+        assertEquals(Collections.emptyList(), transactionDao.transactionIdsByType("book", null, 2));
+    }
+
+    @Test
+    public void transactionsWithType_ForEachTransactionIdByType_ShouldPassIdsOfTypeOnly() throws Exception {
+        transactionDao.merge(createTransaction(2L, null, "car", 1.0));
+        transactionDao.merge(createTransaction(1L, null, "car", 1.0));
+        transactionDao.merge(createTransaction(3L, null, "shopping", 1.0));
+        transactionDao.getById(2L).setType("shopping");
+
+        List<Long> transactionIds = new ArrayList<>();
+        transactionDao.forEachTransactionIdByType("car", transactionIds::add);
+
+        assertEquals(Collections.singletonList(1L), transactionIds);
+    }
+
     @Test
     public void noTransactions_TransactionsByType_ShouldReturnEmptyCollection() {
-        Collection<Transaction> foundTransactions = transactionDao.transactionsByType("inexistent type");
+        Collection<Long> foundTransactions = transactionDao.transactionIdsByType("inexistent type");
         assertNotNull(foundTransactions);
         assertTrue(foundTransactions.isEmpty());
     }
 
     @Test
     public void nullAsType_TransactionsByType_ShouldReturnEmptyCollection() {
-        Collection<Transaction> foundTransactions = transactionDao.transactionsByType(null);
+        Collection<Long> foundTransactions = transactionDao.transactionIdsByType(null);
         assertNotNull(foundTransactions);
         assertTrue(foundTransactions.isEmpty());
     }
@@ -409,6 +463,171 @@ public class TransactionNoDbDaoTest {
         assertEquals(expectedSum, transactionDao.transactionTotalAmount(parent.getTransactionId()));
     }
 
+    @Test
+    public void transactionWithGrandChild_SetGrandChildAsParentAndMerge_ShouldReturnNullWithoutStorageChanges() throws Exception {
+        Transaction parent = createTransaction(1L, null, "car", 120000.75);
+        Transaction child = createTransaction(2L, parent.getTransactionId(), "shopping", 2745.7);
+        Transaction grandChild = createTransaction(3L, child.getTransactionId(), "blazer", 77.99);
+        transactionDao.merge(parent);
+        transactionDao.merge(child);
+        transactionDao.merge(grandChild);
+
+        Transaction cycledParent = createTransaction(parent.getTransactionId(),
+                grandChild.getTransactionId(),
+                parent.getType(),
+                parent.getAmount());
+
+        assertNull(transactionDao.merge(cycledParent));
+        assertNull(transactionDao.getById(parent.getTransactionId()).getParentId());
+        Double expectedSum = parent.getAmount() + child.getAmount() + grandChild.getAmount();
+        assertEquals(expectedSum, transactionDao.transactionTotalAmount(parent.getTransactionId()));
+    }
+
+    @Test
+    public void transactionWithChild_UpdateChildAmountAndMerge_ShouldUpdateParentTotalAmount() throws Exception {
+        Transaction parent = createTransaction(1L, null, "car", 120000.75);
+        Transaction child = createTransaction(2L, parent.getTransactionId(), "shopping", 2745.7);
+        transactionDao.merge(parent);
+        transactionDao.merge(child);
+
+        Transaction childUpdate = createTransaction(child.getTransactionId(),
+                child.getParentId(),
+                child.getType(),
+                child.getAmount() + 1);
+        transactionDao.merge(childUpdate);
+
+        Double expectedSum = parent.getAmount() + childUpdate.getAmount();
+        assertEquals(expectedSum, transactionDao.transactionTotalAmount(parent.getTransactionId()));
+        assertEquals(1, transactionDao.getById(parent.getTransactionId()).getChildTransactions().size());
+    }
+
+    @Test
+    public void transactionWithChildren_ChangeParentAndMerge_ShouldMoveSubtreeTotalAmount() throws Exception {
+        Transaction firstRoot = createTransaction(1L, null, "car", 100.0);
+        Transaction secondRoot = createTransaction(2L, null, "car", 200.0);
+        Transaction child = createTransaction(3L, firstRoot.getTransactionId(), "shopping", 10.0);
+        Transaction grandChild = createTransaction(4L, child.getTransactionId(), "blazer", 1.0);
+        transactionDao.merge(firstRoot);
+        transactionDao.merge(secondRoot);
+        transactionDao.merge(child);
+        transactionDao.merge(grandChild);
+
+        transactionDao.merge(createTransaction(child.getTransactionId(),
+                secondRoot.getTransactionId(),
+                child.getType(),
+                child.getAmount()));
+
+        assertEquals(Double.valueOf(100.0), transactionDao.transactionTotalAmount(firstRoot.getTransactionId()));
+        assertEquals(Double.valueOf(211.0), transactionDao.transactionTotalAmount(secondRoot.getTransactionId()));
+        assertEquals(Double.valueOf(11.0), transactionDao.transactionTotalAmount(child.getTransactionId()));
+    }
+
+    @Test
+    public void randomMerges_TransactionTotalAmount_ShouldMatchRecalculatedTotalAmount() throws Exception {
+        Random random = new Random(26);
+        String[] types = {"car", "shopping", "book"};
+        for (int run = 0; run < 20; ++run) {
+            transactionDao.clear();
+            for (int i = 0; i < 2000; ++i) {
+                long transactionId = random.nextInt(200);
+                Long parentId = random.nextInt(4) == 0 ? null : (long) random.nextInt(200);
+                transactionDao.merge(createTransaction(transactionId,
+                        parentId,
+                        types[random.nextInt(types.length)],
+                        (double) (random.nextInt(200000) - 100000) / 100));
+            }
+            assertTotalAmountsConsistent();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentRandomMerges_TransactionTotalAmount_ShouldMatchRecalculatedTotalAmount() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new LinkedList<>();
+        for (int thread = 0; thread < 8; ++thread) {
+            Random random = new Random(thread);
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 20000; ++i) {
+                    long transactionId = random.nextInt(200);
+                    Long parentId = random.nextInt(4) == 0 ? null : (long) random.nextInt(200);
+                    transactionDao.merge(createTransaction(transactionId,
+                            parentId,
+                            "car",
+                            (double) random.nextInt(1000)));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertTotalAmountsConsistent();
+    }
+
+    @Test
+    public void batchWithParentsInside_MergeAll_ShouldMergeInOrderAndReturnResultPerTransaction() throws Exception {
+        Transaction root = createTransaction(1L, null, "car", 100.0);
+        Transaction child = createTransaction(2L, 1L, "car", 10.0);
+        Transaction orphan = createTransaction(3L, 4L, "car", 1.0);
+        Transaction laterParent = createTransaction(4L, null, "car", 1000.0);
+        Transaction cycledRoot = createTransaction(1L, 2L, "car", 100.0);
+
+        List<Transaction> merged = transactionDao.mergeAll(Arrays.asList(root, child, orphan, laterParent, cycledRoot));
+
+        assertEquals(Arrays.asList(root, child, null, laterParent, null), merged);
+        assertEquals(3, transactionDao.size());
+        assertNull(transactionDao.getById(1L).getParentId());
+        assertEquals(Double.valueOf(110.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Double.valueOf(1000.0), transactionDao.transactionTotalAmount(4L));
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentRandomBatches_TransactionTotalAmount_ShouldMatchRecalculatedTotalAmount() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new LinkedList<>();
+        for (int thread = 0; thread < 8; ++thread) {
+            Random random = new Random(thread);
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 400; ++i) {
+                    List<Transaction> batch = new ArrayList<>();
+                    for (int j = 0; j < 50; ++j) {
+                        long transactionId = random.nextInt(200);
+                        Long parentId = random.nextInt(4) == 0 ? null : (long) random.nextInt(200);
+                        batch.add(createTransaction(transactionId, parentId, "car", (double) random.nextInt(1000)));
+                    }
+                    assertEquals(batch.size(), transactionDao.mergeAll(batch).size());
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertTotalAmountsConsistent();
+    }
+
+    /**
+     * Compare cached totals with totals recalculated both from parent ids and from children of stored transactions.
+     */
+    private void assertTotalAmountsConsistent() {
+        Map<Long, Double> expectedSums = new HashMap<>();
+        for (long transactionId = 0; transactionId < 200; ++transactionId) {
+            Transaction transaction = transactionDao.getById(transactionId);
+            for (Transaction current = transaction;
+                 current != null;
+                 current = current.getParentId() == null ? null : transactionDao.getById(current.getParentId())) {
+                expectedSums.merge(current.getTransactionId(), transaction.getAmount(), Double::sum);
+            }
+        }
+        assertEquals(expectedSums.size(), transactionDao.size());
+        for (Map.Entry<Long, Double> expectedSum : expectedSums.entrySet()) {
+            Long transactionId = expectedSum.getKey();
+            assertEquals(expectedSum.getValue(), transactionDao.transactionTotalAmount(transactionId), 1e-6);
+            assertEquals(transactionDao.getById(transactionId).getTotalAmount(),
+                    transactionDao.transactionTotalAmount(transactionId), 1e-6);
+        }
+    }
+
     @Test
     public void noTransactions_Size_ShouldReturnZero() {
         assertEquals(0, transactionDao.size());
@@ -448,4 +667,237 @@ public class TransactionNoDbDaoTest {
         transactionDao.clear();
         assertEquals(0, transactionDao.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void chainOfMillionTransactions_TransactionTotalAmount_ShouldSumWholeChain() {
+        int transactionsNumber = 1000000;
+        for (long i = 0; i < transactionsNumber; ++i) {
+            transactionDao.merge(createTransaction(i, null, null, 1.0));
+        }
+        // Link chain bottom-up, so every parent is a root when it gets a child
+        for (long i = transactionsNumber - 1; i > 0; --i) {
+            transactionDao.merge(createTransaction(i, i - 1, null, 1.0));
+        }
+
+        assertEquals(Double.valueOf(transactionsNumber), transactionDao.transactionTotalAmount(0L));
+        assertEquals(transactionsNumber, transactionDao.getById(0L).getTotalAmount(), 0);
+    }
+
+    @Test
+    public void transactionTree_MergeChild_ShouldChangeVersionsOfChildAndItsParentsOnly() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(3L, 2L, "car", 1.0));
+        transactionDao.merge(createTransaction(4L, 1L, "car", 1.0));
+        long[] versions = new long[5];
+        for (int i = 1; i <= 4; ++i) {
+            versions[i] = transactionDao.transactionVersion((long) i);
+        }
+
+        transactionDao.merge(createTransaction(3L, 2L, "car", 1.0));
+
+        assertTrue(transactionDao.transactionVersion(1L) > versions[1]);
+        assertTrue(transactionDao.transactionVersion(2L) > versions[2]);
+        assertTrue(transactionDao.transactionVersion(3L) > versions[3]);
+        assertEquals(Long.valueOf(versions[4]), transactionDao.transactionVersion(4L));
+        assertNull(transactionDao.transactionVersion(5L));
+    }
+
+    @Test
+    public void transactionWithParent_MoveToOtherParent_ShouldChangeVersionsOfBothParents() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, null, "car", 10.0));
+        transactionDao.merge(createTransaction(3L, 1L, "car", 1.0));
+        long firstParentVersion = transactionDao.transactionVersion(1L);
+        long secondParentVersion = transactionDao.transactionVersion(2L);
+
+        transactionDao.merge(createTransaction(3L, 2L, "car", 1.0));
+
+        assertTrue(transactionDao.transactionVersion(1L) > firstParentVersion);
+        assertTrue(transactionDao.transactionVersion(2L) > secondParentVersion);
+    }
+
+    @Test
+    public void clearedStorage_MergeTransactionAgain_ShouldNotRepeatVersion() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        long version = transactionDao.transactionVersion(1L);
+
+        transactionDao.clear();
+        Thread.sleep(2);
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+
+        assertTrue(transactionDao.transactionVersion(1L) > version);
+    }
+
+    private static void assertTypeStatistics(long count, double sum, double min, double max, TypeStatistics actual) {
+        assertEquals(count, actual.getCount());
+        assertEquals(sum, actual.getSum(), 1e-9);
+        assertEquals(min, actual.getMin(), 0);
+        assertEquals(max, actual.getMax(), 0);
+    }
+
+    @Test
+    public void transactionsOfType_ChangeAmountsAndTypes_ShouldMaintainTypeStatistics() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(3L, 1L, "car", 1.0));
+        assertTypeStatistics(3, 111.0, 1.0, 100.0, transactionDao.typeStatistics("car"));
+
+        // Minimum is raised, maximum is moved to another type
+        transactionDao.merge(createTransaction(3L, 1L, "car", 50.0));
+        transactionDao.merge(createTransaction(1L, null, "shopping", 100.0));
+
+        assertTypeStatistics(2, 60.0, 10.0, 50.0, transactionDao.typeStatistics("car"));
+        assertTypeStatistics(1, 100.0, 100.0, 100.0, transactionDao.typeStatistics("shopping"));
+
+        transactionDao.merge(createTransaction(2L, 1L, "shopping", 10.0));
+        transactionDao.merge(createTransaction(3L, 1L, null, 50.0));
+
+        assertTypeStatistics(0, 0, 0, 0, transactionDao.typeStatistics("car"));
+        assertTypeStatistics(2, 110.0, 10.0, 100.0, transactionDao.typeStatistics("shopping"));
+        assertTypeStatistics(0, 0, 0, 0, transactionDao.typeStatistics(null));
+    }
+
+    @Test
+    public void randomMerges_TypeStatistics_ShouldMatchCalculatedFromTransactions() throws Exception {
+        Random random = new Random(24);
+        String[] types = {"car", "shopping", "book", null};
+        for (int i = 0; i < 5000; ++i) {
+            transactionDao.merge(createTransaction((long) random.nextInt(300), null,
+                    types[random.nextInt(types.length)], (double) (random.nextInt(2000) - 1000)));
+        }
+
+        for (String type : types) {
+            TypeStatistics expected = new TypeStatistics(type);
+            for (long transactionId = 0; transactionId < 300; ++transactionId) {
+                Transaction transaction = transactionDao.getById(transactionId);
+                if (transaction != null && type != null && type.equals(transaction.getType())) {
+                    expected.add(transaction.getAmount());
+                }
+            }
+            assertTypeStatistics(expected.getCount(), expected.getSum(), expected.getMin(), expected.getMax(),
+                    transactionDao.typeStatistics(type));
+        }
+    }
+
+    @Test
+    public void transactionsOfType_Clear_ShouldResetTypeStatistics() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+
+        transactionDao.clear();
+
+        assertTypeStatistics(0, 0, 0, 0, transactionDao.typeStatistics("car"));
+    }
+
+    @Test
+    public void transactionTree_AncestorIdsAndLowestCommonAncestor_ShouldFollowParents() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(3L, 2L, "car", 10.0));
+        transactionDao.merge(createTransaction(4L, 2L, "car", 10.0));
+        transactionDao.merge(createTransaction(5L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(6L, null, "car", 10.0));
+
+        assertEquals(Arrays.asList(2L, 1L), transactionDao.ancestorIds(3L));
+        assertEquals(Collections.emptyList(), transactionDao.ancestorIds(1L));
+        assertNull(transactionDao.ancestorIds(7L));
+        assertEquals(Long.valueOf(2L), transactionDao.lowestCommonAncestor(3L, 4L));
+        assertEquals(Long.valueOf(1L), transactionDao.lowestCommonAncestor(3L, 5L));
+        assertEquals(Long.valueOf(2L), transactionDao.lowestCommonAncestor(2L, 4L));
+        assertEquals(Long.valueOf(3L), transactionDao.lowestCommonAncestor(3L, 3L));
+        assertNull(transactionDao.lowestCommonAncestor(3L, 6L));
+        assertNull(transactionDao.lowestCommonAncestor(3L, 7L));
+    }
+
+    @Test
+    public void indexedTransactions_MoveSubtree_ShouldReturnNewAncestors() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(3L, 2L, "car", 10.0));
+        transactionDao.merge(createTransaction(4L, null, "car", 10.0));
+        assertEquals(Arrays.asList(2L, 1L), transactionDao.ancestorIds(3L));
+
+        transactionDao.merge(createTransaction(2L, 4L, "car", 10.0));
+
+        assertEquals(Arrays.asList(2L, 4L), transactionDao.ancestorIds(3L));
+        assertNull(transactionDao.lowestCommonAncestor(3L, 1L));
+        assertEquals(Long.valueOf(4L), transactionDao.lowestCommonAncestor(3L, 4L));
+    }
+
+    @Test
+    public void indexedTransactions_MoveSubtree_ShouldDropIndexOfSubtreeOnly() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(3L, 2L, "car", 10.0));
+        transactionDao.merge(createTransaction(4L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(5L, 4L, "car", 10.0));
+        assertEquals(Long.valueOf(1L), transactionDao.lowestCommonAncestor(3L, 5L));
+
+        transactionDao.merge(createTransaction(2L, 4L, "car", 10.0));
+
+        Map<?, ?> jumps = (Map<?, ?>) ReflectionTestUtils.getField(
+                ReflectionTestUtils.getField(transactionDao, "ancestorIndex"), "jumps");
+        assertEquals(new HashSet<>(Arrays.asList(1L, 4L, 5L)), jumps.keySet());
+        assertEquals(Long.valueOf(4L), transactionDao.lowestCommonAncestor(3L, 5L));
+        assertEquals(Arrays.asList(2L, 4L, 1L), transactionDao.ancestorIds(3L));
+    }
+
+    @Test
+    public void randomMerges_AncestorQueries_ShouldMatchParentWalk() throws Exception {
+        Random random = new Random(25);
+        for (int i = 0; i < 20000; ++i) {
+            long transactionId = random.nextInt(2000);
+            Long parentId = random.nextInt(10) == 0 ? null : (long) random.nextInt(2000);
+            transactionDao.merge(createTransaction(transactionId, parentId, "car", 1.0));
+            if (i % 1000 == 0) {
+                long first = random.nextInt(2000);
+                long second = random.nextInt(2000);
+                assertEquals(walkAncestorIds(first), transactionDao.ancestorIds(first));
+                assertEquals(walkLowestCommonAncestor(first, second),
+                        transactionDao.lowestCommonAncestor(first, second));
+            }
+        }
+        for (long first = 0; first < 2000; ++first) {
+            long second = random.nextInt(2000);
+            assertEquals(walkAncestorIds(first), transactionDao.ancestorIds(first));
+            assertEquals(walkLowestCommonAncestor(first, second), transactionDao.lowestCommonAncestor(first, second));
+        }
+    }
+
+    private List<Long> walkAncestorIds(Long transactionId) {
+        Transaction transaction = transactionDao.getById(transactionId);
+        if (transaction == null) {
+            return null;
+        }
+        List<Long> ancestorIds = new ArrayList<>();
+        for (Long parentId = transaction.getParentId(); parentId != null;
+             parentId = transactionDao.getById(parentId).getParentId()) {
+            ancestorIds.add(parentId);
+        }
+        return ancestorIds;
+    }
+
+    private Long walkLowestCommonAncestor(Long transactionId, Long otherTransactionId) {
+        List<Long> path = walkAncestorIds(transactionId);
+        List<Long> otherPath = walkAncestorIds(otherTransactionId);
+        if (path == null || otherPath == null) {
+            return null;
+        }
+        path.add(0, transactionId);
+        otherPath.add(0, otherTransactionId);
+        return otherPath.stream().filter(path::contains).findFirst().orElse(null);
+    }
+
+    @Test
+    public void indexedTransactions_Clear_ShouldForgetAncestors() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        assertEquals(Collections.singletonList(1L), transactionDao.ancestorIds(2L));
+
+        transactionDao.clear();
+        transactionDao.merge(createTransaction(2L, null, "car", 10.0));
+
+        assertEquals(Collections.emptyList(), transactionDao.ancestorIds(2L));
+        assertNull(transactionDao.lowestCommonAncestor(1L, 2L));
+    }
+}
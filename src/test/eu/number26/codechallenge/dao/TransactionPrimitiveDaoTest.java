@@ -0,0 +1,238 @@
+package eu.number26.codechallenge.dao;
+
+import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.model.TypeStatistics;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static eu.number26.codechallenge.TestHelper.assertTransactionsEqual;
+import static eu.number26.codechallenge.TestHelper.createTransaction;
+import static org.junit.Assert.*;
+
+/**
+ * @author ikanievska
+ */
+public class TransactionPrimitiveDaoTest {
+    private TransactionPrimitiveDao transactionDao;
+
+    @Before
+    public void setup() {
+        this.transactionDao = new TransactionPrimitiveDao();
+    }
+
+    @Test
+    public void newTransactionWithoutParent_Merge_ShouldStoreTransaction() throws Exception {
+        Transaction transaction = createTransaction(1L, null, "car", 120000.75);
+
+        assertSame(transaction, transactionDao.merge(transaction));
+
+        assertEquals(1, transactionDao.size());
+        assertTransactionsEqual(transaction, transactionDao.getById(1L));
+    }
+
+    @Test
+    public void storedTransaction_ChangeReturnedEntity_ShouldNotChangeStorage() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+
+        transactionDao.getById(1L).setAmount(1.0);
+
+        assertEquals(Double.valueOf(100.0), transactionDao.transactionTotalAmount(1L));
+    }
+
+    @Test
+    public void newTransactionWithInexistentParent_Merge_ShouldReturnNullWithoutStorageChanges() throws Exception {
+        assertNull(transactionDao.merge(createTransaction(2L, 1L, "car", 100.0)));
+
+        assertEquals(0, transactionDao.size());
+        assertNull(transactionDao.getById(2L));
+    }
+
+    @Test
+    public void transaction_SetItselfAsParentAndMerge_ShouldReturnNull() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+
+        assertNull(transactionDao.merge(createTransaction(1L, 1L, "car", 100.0)));
+
+        assertNull(transactionDao.getById(1L).getParentId());
+    }
+
+    @Test
+    public void transactionWithGrandChild_SetGrandChildAsParentAndMerge_ShouldReturnNullWithoutStorageChanges() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(3L, 2L, "car", 1.0));
+
+        assertNull(transactionDao.merge(createTransaction(1L, 3L, "car", 100.0)));
+
+        assertNull(transactionDao.getById(1L).getParentId());
+        assertEquals(Double.valueOf(111.0), transactionDao.transactionTotalAmount(1L));
+    }
+
+    @Test
+    public void transactionWithChildren_ChangeParentAndMerge_ShouldMoveSubtreeTotalAmount() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, null, "car", 200.0));
+        transactionDao.merge(createTransaction(3L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(4L, 3L, "car", 1.0));
+        transactionDao.merge(createTransaction(5L, 1L, "car", 1000.0));
+
+        transactionDao.merge(createTransaction(3L, 2L, "car", 20.0));
+
+        assertEquals(Long.valueOf(2L), transactionDao.getById(3L).getParentId());
+        assertEquals(Double.valueOf(1100.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Double.valueOf(221.0), transactionDao.transactionTotalAmount(2L));
+        assertEquals(Double.valueOf(21.0), transactionDao.transactionTotalAmount(3L));
+    }
+
+    @Test
+    public void existentTransaction_ChangeTypeAndMerge_ShouldMoveTransactionToNewType() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, null, "car", 100.0));
+
+        transactionDao.merge(createTransaction(1L, null, "shopping", 100.0));
+
+        assertEquals(Collections.singletonList(2L), transactionDao.transactionIdsByType("car"));
+        assertEquals(Collections.singletonList(1L), transactionDao.transactionIdsByType("shopping"));
+        assertTrue(transactionDao.transactionIdsByType("book").isEmpty());
+        assertTrue(transactionDao.transactionIdsByType(null).isEmpty());
+    }
+
+    @Test
+    public void inexistentTransaction_TransactionTotalAmount_ShouldReturnNull() throws Exception {
+        assertNull(transactionDao.transactionTotalAmount(0L));
+    }
+
+    @Test
+    public void storedTransactions_Clear_ShouldRemoveAll() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+
+        transactionDao.clear();
+
+        assertEquals(0, transactionDao.size());
+        assertNull(transactionDao.getById(1L));
+        assertTrue(transactionDao.transactionIdsByType("car").isEmpty());
+    }
+
+    @Test
+    public void randomMerges_AllQueries_ShouldMatchTransactionNoDbDao() throws Exception {
+        Random random = new Random(26);
+        String[] types = {"car", "shopping", "book", null};
+        TransactionNoDbDao expectedDao = new TransactionNoDbDao();
+        for (int i = 0; i < 50000; ++i) {
+            long transactionId = random.nextInt(5000);
+            Long parentId = random.nextInt(4) == 0 ? null : (long) random.nextInt(5000);
+            String type = types[random.nextInt(types.length)];
+            double amount = (double) (random.nextInt(200000) - 100000) / 100;
+            Transaction expected = expectedDao.merge(createTransaction(transactionId, parentId, type, amount));
+            Transaction actual = transactionDao.merge(createTransaction(transactionId, parentId, type, amount));
+            assertEquals(expected == null, actual == null);
+        }
+
+        assertEquals(expectedDao.size(), transactionDao.size());
+        for (long transactionId = 0; transactionId < 5000; ++transactionId) {
+            Transaction expected = expectedDao.getById(transactionId);
+            if (expected == null) {
+                assertNull(transactionDao.getById(transactionId));
+            } else {
+                assertTransactionsEqual(expected, transactionDao.getById(transactionId));
+                assertEquals(expectedDao.transactionTotalAmount(transactionId),
+                        transactionDao.transactionTotalAmount(transactionId), 1e-6);
+            }
+        }
+        for (String type : types) {
+            assertEquals(new HashSet<>(expectedDao.transactionIdsByType(type)),
+                    new HashSet<>(transactionDao.transactionIdsByType(type)));
+        }
+    }
+
+    @Test
+    public void randomMergesWithQueries_AncestorQueries_ShouldMatchTransactionNoDbDao() throws Exception {
+        Random random = new Random(25);
+        TransactionNoDbDao expectedDao = new TransactionNoDbDao();
+        for (int i = 0; i < 20000; ++i) {
+            long transactionId = random.nextInt(2000);
+            Long parentId = random.nextInt(10) == 0 ? null : (long) random.nextInt(2000);
+            expectedDao.merge(createTransaction(transactionId, parentId, "car", 1.0));
+            transactionDao.merge(createTransaction(transactionId, parentId, "car", 1.0));
+            long first = random.nextInt(2000);
+            long second = random.nextInt(2000);
+            assertEquals(expectedDao.ancestorIds(first), transactionDao.ancestorIds(first));
+            assertEquals(expectedDao.lowestCommonAncestor(first, second),
+                    transactionDao.lowestCommonAncestor(first, second));
+        }
+    }
+
+    @Test
+    public void longChain_LowestCommonAncestor_ShouldBeFoundInBranches() throws Exception {
+        int depth = 1000000;
+        transactionDao.merge(createTransaction(0L, null, "car", 1.0));
+        for (long transactionId = 1; transactionId < depth; ++transactionId) {
+            transactionDao.merge(createTransaction(transactionId, transactionId - 1, "car", 1.0));
+        }
+        transactionDao.merge(createTransaction(-1L, 777L, "car", 1.0));
+
+        assertEquals(Long.valueOf(777L), transactionDao.lowestCommonAncestor((long) depth - 1, -1L));
+        assertEquals(depth - 1, transactionDao.ancestorIds((long) depth - 1).size());
+    }
+
+    @Test
+    public void chainOfMillionTransactions_TransactionTotalAmount_ShouldSumWholeChain() throws Exception {
+        int transactionsNumber = 1000000;
+        transactionDao.merge(createTransaction(0L, null, "car", 1.0));
+        for (long i = 1; i < transactionsNumber; ++i) {
+            transactionDao.merge(createTransaction(i, i - 1, "car", 1.0));
+        }
+
+        assertEquals(Double.valueOf(transactionsNumber), transactionDao.transactionTotalAmount(0L));
+        assertEquals(Double.valueOf(1.0), transactionDao.transactionTotalAmount(transactionsNumber - 1L));
+    }
+
+    @Test
+    public void largeSubtrees_ParallelTransactionTotalAmount_ShouldMatchSequentialSum() throws Exception {
+        Random random = new Random(26);
+        TransactionPrimitiveDao sequentialDao = new TransactionPrimitiveDao();
+        sequentialDao.setParallelThreshold(Long.MAX_VALUE);
+        transactionDao.setParallelThreshold(10);
+        transactionDao.setSumParallelism(4);
+        for (long i = 0; i < 200000; ++i) {
+            Long parentId = i == 0 || random.nextInt(1000) == 0 ? null : (long) random.nextInt((int) i);
+            double amount = random.nextInt(2000) - 1000;
+            sequentialDao.merge(createTransaction(i, parentId, null, amount));
+            transactionDao.merge(createTransaction(i, parentId, null, amount));
+        }
+
+        for (long i = 0; i < 200000; i += 997) {
+            assertEquals(sequentialDao.transactionTotalAmount(i), transactionDao.transactionTotalAmount(i));
+        }
+    }
+
+    @Test
+    public void storedTransactions_MergeAny_ShouldChangeVersionOfAll() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, null, "car", 10.0));
+        long version = transactionDao.transactionVersion(1L);
+        assertEquals(Long.valueOf(version), transactionDao.transactionVersion(2L));
+
+        transactionDao.merge(createTransaction(2L, null, "car", 20.0));
+
+        assertTrue(transactionDao.transactionVersion(1L) > version);
+        assertNull(transactionDao.transactionVersion(3L));
+    }
+
+    @Test
+    public void transactionsOfType_TypeStatistics_ShouldCalculateThemFromTransactions() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", -10.0));
+        transactionDao.merge(createTransaction(3L, 1L, "shopping", 1.0));
+
+        TypeStatistics actual = transactionDao.typeStatistics("car");
+
+        assertEquals(2, actual.getCount());
+        assertEquals(90.0, actual.getSum(), 0);
+        assertEquals(-10.0, actual.getMin(), 0);
+        assertEquals(100.0, actual.getMax(), 0);
+        assertEquals(0, transactionDao.typeStatistics("book").getCount());
+    }
+}
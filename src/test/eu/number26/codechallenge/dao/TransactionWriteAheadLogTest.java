@@ -0,0 +1,246 @@
+package eu.number26.codechallenge.dao;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static eu.number26.codechallenge.TestHelper.assertTransactionsEqual;
+import static eu.number26.codechallenge.TestHelper.createTransaction;
+import static org.junit.Assert.*;
+
+/**
+ * @author ikanievska
+ */
+public class TransactionWriteAheadLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private TransactionNoDbDao transactionDao;
+
+    @Before
+    public void setup() {
+        this.transactionDao = open(100000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transactionDao.close();
+    }
+
+    private TransactionNoDbDao open(int snapshotInterval) {
+        return new TransactionNoDbDao(folder.getRoot().getPath(), snapshotInterval);
+    }
+
+    private void reopen(int snapshotInterval) throws Exception {
+        transactionDao.close();
+        transactionDao = open(snapshotInterval);
+    }
+
+    private List<String> files(String prefix) throws Exception {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void storedTransactions_Reopen_ShouldReplayLog() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "shopping", 10.0));
+        transactionDao.merge(createTransaction(2L, 1L, "\u0430\u0432\u0442\u043e", 20.0));
+        transactionDao.merge(createTransaction(3L, 4L, "car", 10.0));
+
+        reopen(100000);
+
+        assertEquals(2, transactionDao.size());
+        assertTransactionsEqual(createTransaction(2L, 1L, "\u0430\u0432\u0442\u043e", 20.0),
+                transactionDao.getById(2L));
+        assertEquals(Double.valueOf(120.0), transactionDao.transactionTotalAmount(1L));
+        assertEquals(Collections.singletonList(1L), transactionDao.transactionIdsByType("car"));
+        assertTrue(transactionDao.transactionIdsByType("shopping").isEmpty());
+    }
+
+    @Test
+    public void clearedStorage_Reopen_ShouldReplayOnlyMergesAfterClear() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.clear();
+        transactionDao.merge(createTransaction(2L, null, "car", 10.0));
+
+        reopen(100000);
+
+        assertNull(transactionDao.getById(1L));
+        assertEquals(Collections.singletonList(2L), transactionDao.transactionIdsByType("car"));
+    }
+
+    @Test
+    public void manyMerges_Snapshot_ShouldReplaceOldSegmentsAndKeepTransactions() throws Exception {
+        reopen(100);
+        TransactionNoDbDao expectedDao = new TransactionNoDbDao();
+        for (long i = 0; i < 1050; ++i) {
+            Long parentId = i == 0 ? null : i / 2;
+            transactionDao.merge(createTransaction(i, parentId, i % 3 == 0 ? "car" : null, (double) i));
+            expectedDao.merge(createTransaction(i, parentId, i % 3 == 0 ? "car" : null, (double) i));
+        }
+        // Reparent a subtree, so its root is stored after its new parent
+        transactionDao.merge(createTransaction(1L, 1000L, null, 1.0));
+        expectedDao.merge(createTransaction(1L, 1000L, null, 1.0));
+
+        reopen(100);
+
+        assertEquals(1, files("snapshot-").size());
+        assertEquals(files("snapshot-").get(0).substring("snapshot-".length(), 29),
+                files("wal-").get(0).substring("wal-".length(), 24));
+        assertEquals(expectedDao.size(), transactionDao.size());
+        for (long i = 0; i < 1050; ++i) {
+            assertTransactionsEqual(expectedDao.getById(i), transactionDao.getById(i));
+        }
+        assertEquals(expectedDao.transactionTotalAmount(0L), transactionDao.transactionTotalAmount(0L));
+        assertEquals(new ArrayList<>(expectedDao.transactionIdsByType("car")),
+                new ArrayList<>(transactionDao.transactionIdsByType("car")));
+    }
+
+    @Test
+    public void failedSnapshot_Merge_ShouldSucceedAndSnapshotAfterNextInterval() throws Exception {
+        reopen(10);
+        // Directory in place of the temporary snapshot file fails its writes
+        Path temporary = folder.newFolder("snapshot.tmp").toPath();
+        for (long i = 0; i < 25; ++i) {
+            assertNotNull(transactionDao.merge(createTransaction(i, null, "car", 1.0)));
+        }
+
+        reopen(10);
+
+        assertTrue(files("snapshot-").isEmpty());
+        assertEquals(25, transactionDao.size());
+        Files.delete(temporary);
+        for (long i = 25; i < 40; ++i) {
+            assertNotNull(transactionDao.merge(createTransaction(i, null, "car", 1.0)));
+        }
+
+        reopen(10);
+
+        assertEquals(1, files("snapshot-").size());
+        assertEquals(40, transactionDao.size());
+    }
+
+    @Test
+    public void tornRecordAtTail_Reopen_ShouldDropIt() throws Exception {
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        transactionDao.close();
+        Path segment = folder.getRoot().toPath().resolve(files("wal-").get(files("wal-").size() - 1));
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        transactionDao = open(100000);
+
+        assertNotNull(transactionDao.getById(1L));
+        assertNull(transactionDao.getById(2L));
+        assertEquals(Double.valueOf(100.0), transactionDao.transactionTotalAmount(1L));
+    }
+
+    @Test
+    public void concurrentMerges_Reopen_ShouldKeepAllTransactions() throws Exception {
+        transactionDao.merge(createTransaction(0L, null, "car", 0.0));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; ++thread) {
+                long first = thread * 1000 + 1;
+                futures.add(executor.submit(() -> {
+                    for (long i = first; i < first + 1000; ++i) {
+                        transactionDao.merge(createTransaction(i, 0L, "car", 1.0));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        reopen(100000);
+
+        assertEquals(8001, transactionDao.size());
+        assertEquals(Double.valueOf(8000.0), transactionDao.transactionTotalAmount(0L));
+    }
+
+    @Test
+    public void failedWrite_SyncLostRecordsAfterNextWrite_ShouldThrow() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        TransactionWriteAheadLog log = new TransactionWriteAheadLog(directory);
+        log.recover(transaction -> fail(), () -> fail());
+        FileChannel segment = (FileChannel) ReflectionTestUtils.getField(log, "segment");
+        long lost = log.appendMerge(createTransaction(1L, null, "car", 100.0));
+        segment.close();
+        try {
+            log.sync(lost);
+            fail();
+        } catch (UncheckedIOException expected) {
+        }
+
+        // Writable segment lets the next leader write only its own batch
+        ReflectionTestUtils.setField(log, "segment", FileChannel.open(directory.resolve("other.log"),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+        long next = log.appendMerge(createTransaction(2L, null, "car", 10.0));
+
+        for (long sequence : new long[]{next, lost}) {
+            try {
+                log.sync(sequence);
+                fail("Record " + sequence + " isn't durable");
+            } catch (UncheckedIOException expected) {
+            }
+        }
+        log.close();
+    }
+
+    @Test
+    public void failedRollWrite_Sync_ShouldThrow() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        TransactionWriteAheadLog log = new TransactionWriteAheadLog(directory);
+        log.recover(transaction -> fail(), () -> fail());
+        FileChannel segment = (FileChannel) ReflectionTestUtils.getField(log, "segment");
+        long lost = log.appendMerge(createTransaction(1L, null, "car", 100.0));
+        segment.close();
+        try {
+            log.roll();
+            fail();
+        } catch (UncheckedIOException expected) {
+        }
+
+        ReflectionTestUtils.setField(log, "segment", FileChannel.open(directory.resolve("other.log"),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+        long next = log.appendMerge(createTransaction(2L, null, "car", 10.0));
+
+        for (long sequence : new long[]{next, lost}) {
+            try {
+                log.sync(sequence);
+                fail("Record " + sequence + " isn't durable");
+            } catch (UncheckedIOException expected) {
+            }
+        }
+        log.close();
+        assertEquals(0, Files.size(directory.resolve("other.log")));
+    }
+}
@@ -0,0 +1,100 @@
+package eu.number26.codechallenge.metrics;
+
+import eu.number26.codechallenge.dao.TransactionDao;
+import eu.number26.codechallenge.dao.TransactionMongoDao;
+import eu.number26.codechallenge.dao.TransactionNoDbDao;
+import eu.number26.codechallenge.dao.TransactionPrimitiveDao;
+import eu.number26.codechallenge.model.Transaction;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.StringWriter;
+import java.util.Collections;
+
+import static eu.number26.codechallenge.TestHelper.createTransaction;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author ikanievska
+ */
+public class MetricsBeanPostProcessorTest {
+    private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+    private final MetricsBeanPostProcessor postProcessor = new MetricsBeanPostProcessor(metricsRegistry);
+
+    @Test
+    public void transactionDao_PostProcess_ShouldRecordOperationLatency() throws Exception {
+        TransactionDao transactionDao = (TransactionDao) postProcessor.postProcessAfterInitialization(
+                new TransactionNoDbDao(), "transactionNoDbDao");
+
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        assertEquals(Double.valueOf(110.0), transactionDao.transactionTotalAmount(1L));
+
+        assertEquals(2, metricsRegistry.histogram("transaction_dao_operation_seconds", "",
+                MetricsRegistry.LATENCY_BUCKETS, "dao", "transactionNoDbDao", "operation", "merge").count());
+        assertEquals(1, metricsRegistry.histogram("transaction_dao_operation_seconds", "",
+                MetricsRegistry.LATENCY_BUCKETS, "dao", "transactionNoDbDao", "operation", "transactionTotalAmount")
+                .count());
+    }
+
+    @Test
+    public void otherBean_PostProcess_ShouldReturnItAsIs() throws Exception {
+        Object bean = new Object();
+
+        assertSame(bean, postProcessor.postProcessAfterInitialization(bean, "bean"));
+    }
+
+    @Test
+    public void slotDaoWithRegistry_TransactionTotalAmount_ShouldRecordVisitedNodesAndLockWait() throws Exception {
+        TransactionPrimitiveDao transactionDao = new TransactionPrimitiveDao();
+        transactionDao.setMetricsRegistry(metricsRegistry);
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+        transactionDao.merge(createTransaction(2L, 1L, "car", 10.0));
+        transactionDao.merge(createTransaction(3L, 2L, "car", 10.0));
+
+        transactionDao.transactionTotalAmount(2L);
+
+        StringWriter out = new StringWriter();
+        metricsRegistry.write(out);
+        assertTrue(out.toString().contains(
+                "transaction_dao_sum_nodes_visited_sum{dao=\"transactionPrimitiveDao\"} 2.0\n"));
+        assertTrue(out.toString().contains(
+                "transaction_dao_merge_lock_wait_seconds_count{dao=\"transactionPrimitiveDao\"} 3\n"));
+    }
+
+    @Test
+    public void transactionDaoProxy_RepeatedCalls_ShouldLookUpHistogramOnce() throws Exception {
+        MetricsRegistry registry = spy(new MetricsRegistry());
+        TransactionDao transactionDao = (TransactionDao) new MetricsBeanPostProcessor(registry)
+                .postProcessAfterInitialization(new TransactionNoDbDao(), "transactionNoDbDao");
+
+        for (long transactionId = 0; transactionId < 10; ++transactionId) {
+            transactionDao.getById(transactionId);
+        }
+
+        verify(registry, times(1)).histogram(eq("transaction_dao_operation_seconds"), anyString(),
+                any(double[].class), eq("dao"), eq("transactionNoDbDao"), eq("operation"), eq("getById"));
+    }
+
+    @Test
+    public void mongoDaoWithRegistry_Merge_ShouldRecordStripeLockWait() throws Exception {
+        TransactionMongoDao transactionDao = new TransactionMongoDao();
+        MongoOperations mongoOperations = mock(MongoOperations.class);
+        when(mongoOperations.find(any(Query.class), eq(Transaction.class))).thenReturn(Collections.emptyList());
+        ReflectionTestUtils.setField(transactionDao, "mongoOperations", mongoOperations);
+        transactionDao.setMetricsRegistry(metricsRegistry);
+
+        transactionDao.merge(createTransaction(1L, null, "car", 100.0));
+
+        StringWriter out = new StringWriter();
+        metricsRegistry.write(out);
+        assertTrue(out.toString().contains(
+                "transaction_dao_merge_lock_wait_seconds_count{dao=\"transactionMongoDao\"} 1\n"));
+    }
+}
@@ -0,0 +1,61 @@
+package eu.number26.codechallenge.metrics;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.HandlerMapping;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author ikanievska
+ */
+public class MetricsInterceptorTest {
+    private final MetricsRegistry metricsRegistry = spy(new MetricsRegistry());
+    private final MetricsInterceptor interceptor = new MetricsInterceptor();
+
+    @Before
+    public void setup() {
+        ReflectionTestUtils.setField(interceptor, "metricsRegistry", metricsRegistry);
+    }
+
+    private void request(String pattern, int status) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/transactionservice/transaction/1");
+        request.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, pattern);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setStatus(status);
+        interceptor.preHandle(request, response, null);
+        interceptor.afterCompletion(request, response, null, null);
+    }
+
+    @Test
+    public void repeatedRequests_AfterCompletion_ShouldLookUpHistogramsOncePerEndpointAndStatus() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            request("/transactionservice/transaction/{transactionId}", 200);
+        }
+        request("/transactionservice/transaction/{transactionId}", 404);
+
+        verify(metricsRegistry, times(2)).histogram(eq("http_request_seconds"), anyString(), any(double[].class),
+                anyVararg());
+        verify(metricsRegistry, times(1)).histogram(eq("http_request_mongo_calls"), anyString(), any(double[].class),
+                anyVararg());
+        assertEquals(3, metricsRegistry.histogram("http_request_seconds", "", MetricsRegistry.LATENCY_BUCKETS,
+                "endpoint", "GET /transactionservice/transaction/{transactionId}", "status", "200").count());
+        assertEquals(4, metricsRegistry.histogram("http_request_mongo_calls", "", MetricsRegistry.COUNT_BUCKETS,
+                "endpoint", "GET /transactionservice/transaction/{transactionId}").count());
+    }
+
+    @Test
+    public void unmappedRequest_AfterCompletion_ShouldRecordUnmappedEndpoint() throws Exception {
+        request(null, 404);
+
+        assertEquals(1, metricsRegistry.histogram("http_request_seconds", "", MetricsRegistry.LATENCY_BUCKETS,
+                "endpoint", "GET unmapped", "status", "404").count());
+    }
+}
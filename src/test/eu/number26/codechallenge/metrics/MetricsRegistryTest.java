@@ -0,0 +1,73 @@
+package eu.number26.codechallenge.metrics;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author ikanievska
+ */
+public class MetricsRegistryTest {
+    private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+    private String write() throws Exception {
+        StringWriter out = new StringWriter();
+        metricsRegistry.write(out);
+        return out.toString();
+    }
+
+    @Test
+    public void observedValues_Write_ShouldWriteCumulativeBuckets() throws Exception {
+        Histogram histogram = metricsRegistry.histogram("calls", "Calls", new double[]{1, 10}, "endpoint", "GET /a");
+        histogram.observe(1);
+        histogram.observe(5);
+        histogram.observe(50);
+
+        assertEquals("# HELP calls Calls\n"
+                + "# TYPE calls histogram\n"
+                + "calls_bucket{endpoint=\"GET /a\",le=\"1.0\"} 1\n"
+                + "calls_bucket{endpoint=\"GET /a\",le=\"10.0\"} 2\n"
+                + "calls_bucket{endpoint=\"GET /a\",le=\"+Inf\"} 3\n"
+                + "calls_sum{endpoint=\"GET /a\"} 56.0\n"
+                + "calls_count{endpoint=\"GET /a\"} 3\n", write());
+    }
+
+    @Test
+    public void sameLabels_Histogram_ShouldReturnTheSameHistogram() throws Exception {
+        metricsRegistry.histogram("calls", "Calls", new double[]{1}, "dao", "a").observe(1);
+        metricsRegistry.histogram("calls", "Calls", new double[]{1}, "dao", "a").observe(1);
+        metricsRegistry.histogram("calls", "Calls", new double[]{1}, "dao", "b").observe(1);
+
+        assertEquals(2, metricsRegistry.histogram("calls", "Calls", new double[]{1}, "dao", "a").count());
+        String metrics = write();
+        assertEquals(1, metrics.split("# TYPE calls").length - 1);
+        assertTrue(metrics.contains("calls_count{dao=\"b\"} 1\n"));
+    }
+
+    @Test
+    public void labelWithQuotes_Write_ShouldEscapeIt() throws Exception {
+        metricsRegistry.histogram("calls", "Calls", new double[]{}, "type", "a\"b\\c").observe(1);
+
+        assertTrue(write().contains("calls_count{type=\"a\\\"b\\\\c\"} 1\n"));
+    }
+
+    @Test
+    public void histogramWithoutLabels_Write_ShouldOmitBraces() throws Exception {
+        metricsRegistry.histogram("calls", "Calls", new double[]{}).observe(2);
+
+        assertTrue(write().contains("calls_bucket{le=\"+Inf\"} 1\ncalls_sum 2.0\ncalls_count 1\n"));
+    }
+
+    @Test
+    public void mongoCallsInRequest_FinishRequest_ShouldReturnNumberOfCalls() throws Exception {
+        metricsRegistry.countMongoCall();
+        metricsRegistry.startRequest();
+        metricsRegistry.countMongoCall();
+        metricsRegistry.countMongoCall();
+
+        assertEquals(2, metricsRegistry.finishRequest());
+        assertEquals(0, metricsRegistry.finishRequest());
+    }
+}
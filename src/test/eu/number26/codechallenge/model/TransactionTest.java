@@ -1,6 +1,7 @@
 package eu.number26.codechallenge.model;
 
 import org.junit.Test;
+import org.springframework.aop.framework.ProxyFactory;
 
 import static eu.number26.codechallenge.TestHelper.createTransaction;
 import static org.junit.Assert.assertEquals;
@@ -27,4 +28,29 @@ public class TransactionTest {
         Double expectedSum = parent.getAmount() + firstChild.getAmount() + secondChild.getAmount() + grandChild.getAmount();
         assertEquals(expectedSum, Double.valueOf(parent.getTotalAmount()));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void chainOfMillionTransactions_getTotalAmount_ShouldNotOverflowStack() throws Exception {
+        Transaction root = createTransaction(0L, null, "car", 1.0);
+        Transaction current = root;
+        for (long transactionId = 1; transactionId < 1000000; ++transactionId) {
+            Transaction child = createTransaction(transactionId, current.getTransactionId(), "car", 1.0);
+            current.getChildTransactions().add(child);
+            current = child;
+        }
+        assertEquals(Double.valueOf(1000000.0), Double.valueOf(root.getTotalAmount()));
+    }
+
+    @Test
+    public void transactionWithLazyProxyChild_getTotalAmount_ShouldResolveProxy() throws Exception {
+        Transaction parent = createTransaction(1L, null, "car", 100.0);
+        Transaction child = createTransaction(2L, 1L, "car", 10.0);
+        child.getChildTransactions().add(createTransaction(3L, 2L, "car", 1.0));
+        // Class proxy like lazy @DBRef: its own fields are empty, accessors delegate to the loaded target
+        ProxyFactory proxyFactory = new ProxyFactory(child);
+        proxyFactory.setProxyTargetClass(true);
+        parent.getChildTransactions().add((Transaction) proxyFactory.getProxy());
+
+        assertEquals(Double.valueOf(111.0), Double.valueOf(parent.getTotalAmount()));
+    }
+}
@@ -0,0 +1,133 @@
+package eu.number26.codechallenge.rest.controller;
+
+import eu.number26.codechallenge.rest.model.TransactionSum;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author ikanievska
+ */
+public class AsyncTransactionControllerTest {
+    @InjectMocks
+    private AsyncTransactionController asyncTransactionController;
+    @Mock
+    private TransactionController transactionController;
+    private ThreadPoolExecutor readExecutor = AsyncConfiguration.boundedExecutor(
+            AsyncConfiguration.daemonThreadFactory("test-read-"), 1, 1);
+    private ThreadPoolExecutor writeExecutor = AsyncConfiguration.boundedExecutor(
+            AsyncConfiguration.daemonThreadFactory("test-write-"), 1, 1);
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(asyncTransactionController, "readExecutor", readExecutor);
+        ReflectionTestUtils.setField(asyncTransactionController, "writeExecutor", writeExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    private static Object await(DeferredResult<ResponseEntity> result) throws InterruptedException {
+        for (int i = 0; i < 500 && !result.hasResult(); ++i) {
+            Thread.sleep(10);
+        }
+        return result.getResult();
+    }
+
+    @Test
+    public void transaction_GetTransactionSum_ShouldReturnResultOfReadExecutor() throws Exception {
+        ResponseEntity expected = ResponseEntity.ok(new TransactionSum(1.0));
+        when(transactionController.getTransactionSum(1L, null)).thenReturn(expected);
+
+        assertSame(expected, await(asyncTransactionController.getTransactionSum(1L, null)));
+    }
+
+    @Test
+    public void fullQueue_GetTransaction_ShouldReturnServiceUnavailable() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        readExecutor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+        readExecutor.execute(() -> {
+        });
+
+        ResponseEntity response = (ResponseEntity) await(asyncTransactionController.getTransaction(1L, null));
+        release.countDown();
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        verifyZeroInteractions(transactionController);
+    }
+
+    @Test
+    public void busyReadExecutor_PutTransaction_ShouldRunOnWriteExecutor() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        readExecutor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        ResponseEntity expected = ResponseEntity.ok(Collections.singletonMap("status", "ok"));
+        when(transactionController.putTransaction(eq(1L), any())).thenReturn(expected);
+
+        Object result = await(asyncTransactionController.putTransaction(1L, null));
+        release.countDown();
+
+        assertSame(expected, result);
+    }
+
+    @Test
+    public void failingHandler_GetTransaction_ShouldSetErrorResult() throws Exception {
+        IllegalStateException exception = new IllegalStateException("Storage failure");
+        when(transactionController.getTransaction(1L, null)).thenThrow(exception);
+
+        assertSame(exception, await(asyncTransactionController.getTransaction(1L, null)));
+    }
+
+    @Test
+    public void expiredRequest_Execute_ShouldSkipHandler() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        readExecutor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        DeferredResult<ResponseEntity> result = asyncTransactionController.getTransaction(1L, null);
+        result.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build());
+
+        release.countDown();
+        readExecutor.shutdown();
+        assertTrue(readExecutor.awaitTermination(5, TimeUnit.SECONDS));
+
+        verifyZeroInteractions(transactionController);
+    }
+}
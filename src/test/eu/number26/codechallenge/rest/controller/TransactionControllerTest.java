@@ -1,22 +1,36 @@
 package eu.number26.codechallenge.rest.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.number26.codechallenge.dao.TransactionDao;
 import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.model.TypeStatistics;
+import eu.number26.codechallenge.rest.model.TransactionBatchItem;
+import eu.number26.codechallenge.rest.model.TransactionSum;
+import eu.number26.codechallenge.statistics.SlidingWindowStatistics;
+import eu.number26.codechallenge.statistics.TransactionStatistics;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 import static eu.number26.codechallenge.TestHelper.assertTransactionsEqual;
 import static eu.number26.codechallenge.TestHelper.createTransaction;
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
 /**
@@ -27,8 +41,11 @@ public class TransactionControllerTest {
     private TransactionController transactionController;
     @Mock
     private TransactionDao transactionDao;
+    @Spy
+    private ObjectMapper objectMapper = new ObjectMapper();
+    @Spy
+    private SlidingWindowStatistics statistics = new SlidingWindowStatistics(60);
     private Map<String, String> expectedStatus = new HashMap<>();
-    private Map<String, Double> expectedSum = new HashMap<>();
 
     @Before
     public void setUp() throws Exception {
@@ -40,8 +57,9 @@ public class TransactionControllerTest {
         Transaction transaction = createTransaction(1L, null, "cars", 666.0);
         when(transactionDao.getById(transaction.getTransactionId())).thenReturn(transaction);
 
-        ResponseEntity<Transaction> responseEntity = transactionController.getTransaction(transaction.getTransactionId());
+        ResponseEntity<Transaction> responseEntity = transactionController.getTransaction(transaction.getTransactionId(), null);
 
+        verify(transactionDao).transactionVersion(transaction.getTransactionId());
         verify(transactionDao).getById(transaction.getTransactionId());
         verifyNoMoreInteractions(transactionDao);
 
@@ -55,8 +73,9 @@ public class TransactionControllerTest {
         when(transactionDao.getById(anyLong())).thenReturn(null);
 
         Long inexistentTransactionId = 0L;
-        ResponseEntity<Map> responseEntity = transactionController.getTransaction(inexistentTransactionId);
+        ResponseEntity<Map> responseEntity = transactionController.getTransaction(inexistentTransactionId, null);
 
+        verify(transactionDao).transactionVersion(inexistentTransactionId);
         verify(transactionDao).getById(inexistentTransactionId);
         verifyNoMoreInteractions(transactionDao);
 
@@ -82,6 +101,7 @@ public class TransactionControllerTest {
         expectedStatus.put("status", "ok");
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
         assertEquals(expectedStatus, responseEntity.getBody());
+        verify(statistics).record(666.0);
     }
 
     @Test
@@ -99,28 +119,133 @@ public class TransactionControllerTest {
         expectedStatus.put("status", "Wrong parent transaction: " + transaction.getParentId());
         assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, responseEntity.getStatusCode());
         assertEquals(expectedStatus, responseEntity.getBody());
+        verify(statistics, never()).record(anyDouble());
+    }
+
+    private static TransactionBatchItem batchItem(Long transactionId, Long parentId) {
+        TransactionBatchItem item = new TransactionBatchItem();
+        item.setTransactionId(transactionId);
+        item.setParentId(parentId);
+        item.setType("car");
+        item.setAmount(666.0);
+        return item;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void batch_PutTransactions_ShouldMergeAllAndReturnStatusPerTransaction() {
+        Transaction transaction = createTransaction(1L, null, "car", 666.0);
+        when(transactionDao.mergeAll(any())).thenReturn(Arrays.asList(transaction, null));
+
+        ResponseEntity<List<Map<String, Object>>> responseEntity = transactionController.putTransactions(
+                Arrays.asList(batchItem(1L, null), batchItem(null, 1L), batchItem(2L, 3L)));
+
+        ArgumentCaptor<List> batchCaptor = ArgumentCaptor.forClass(List.class);
+        verify(transactionDao).mergeAll(batchCaptor.capture());
+        verifyNoMoreInteractions(transactionDao);
+        List<Transaction> batch = batchCaptor.getValue();
+        assertEquals(2, batch.size());
+        assertTransactionsEqual(createTransaction(1L, null, "car", 666.0), batch.get(0));
+        assertTransactionsEqual(createTransaction(2L, 3L, "car", 666.0), batch.get(1));
+
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        List<Map<String, Object>> statuses = responseEntity.getBody();
+        assertEquals(3, statuses.size());
+        assertEquals(1L, statuses.get(0).get("transactionId"));
+        assertEquals("ok", statuses.get(0).get("status"));
+        assertNull(statuses.get(1).get("transactionId"));
+        assertEquals("Transaction id is required", statuses.get(1).get("status"));
+        assertEquals(2L, statuses.get(2).get("transactionId"));
+        assertEquals("Wrong parent transaction: 3", statuses.get(2).get("status"));
+        verify(statistics, times(1)).record(anyDouble());
+    }
+
+    @Test
+    public void mergedTransactions_GetStatistics_ShouldReturnStatisticsOfMergedAmounts() {
+        when(transactionDao.mergeAll(any())).thenAnswer(invocation -> invocation.getArguments()[0]);
+        TransactionBatchItem first = batchItem(1L, null);
+        TransactionBatchItem second = batchItem(2L, 1L);
+        second.setAmount(334.0);
+        transactionController.putTransactions(Arrays.asList(first, second));
+
+        ResponseEntity<TransactionStatistics> responseEntity = transactionController.getStatistics();
+
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        TransactionStatistics statistics = responseEntity.getBody();
+        assertEquals(2, statistics.getCount());
+        assertEquals(1000.0, statistics.getSum(), 0);
+        assertEquals(500.0, statistics.getAvg(), 0);
+        assertEquals(334.0, statistics.getMin(), 0);
+        assertEquals(666.0, statistics.getMax(), 0);
+    }
+
+    private static MockHttpServletRequest ndjsonRequest(String... lines) {
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/transactionservice/transactions/stream");
+        request.setContent(String.join("\n", lines).getBytes());
+        return request;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void ndjsonLines_StreamTransactions_ShouldMergeThemAndWriteStatusPerLine() throws Exception {
+        when(transactionDao.mergeAll(any())).thenAnswer(invocation -> invocation.getArguments()[0]);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        transactionController.streamTransactions(ndjsonRequest(
+                "{\"transactionId\":1,\"type\":\"car\",\"amount\":666.0}",
+                "",
+                "{\"transactionId\":",
+                "{\"transactionId\":2,\"parentId\":1,\"type\":\"car\",\"amount\":1.0}"), response);
+
+        ArgumentCaptor<List> batchCaptor = ArgumentCaptor.forClass(List.class);
+        verify(transactionDao).mergeAll(batchCaptor.capture());
+        verifyNoMoreInteractions(transactionDao);
+        List<Transaction> batch = batchCaptor.getValue();
+        assertTransactionsEqual(createTransaction(1L, null, "car", 666.0), batch.get(0));
+        assertTransactionsEqual(createTransaction(2L, 1L, "car", 1.0), batch.get(1));
+
+        assertEquals(TransactionController.NDJSON_CONTENT_TYPE, response.getContentType());
+        assertEquals("{\"transactionId\":1,\"status\":\"ok\"}\n"
+                        + "{\"transactionId\":null,\"status\":\"Malformed transaction\"}\n"
+                        + "{\"transactionId\":2,\"status\":\"ok\"}\n",
+                response.getContentAsString());
+    }
+
+    @Test
+    public void linesMoreThanBatchSize_StreamTransactions_ShouldMergeThemInMicroBatches() throws Exception {
+        ReflectionTestUtils.setField(transactionController, "streamBatchSize", 2);
+        when(transactionDao.mergeAll(any())).thenAnswer(invocation -> invocation.getArguments()[0]);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        transactionController.streamTransactions(ndjsonRequest(
+                "{\"transactionId\":1,\"amount\":1.0}",
+                "{\"transactionId\":2,\"amount\":1.0}",
+                "{\"transactionId\":3,\"amount\":1.0}"), response);
+
+        verify(transactionDao, times(2)).mergeAll(any());
+        assertEquals(3, response.getContentAsString().split("\n").length);
     }
 
     @Test
     public void transactionsWithType_GetTransactionsByType_ShouldReturnTransactionsIdst() {
         String type = "car";
         Transaction transaction = createTransaction(1L, null, type, 666.0);
-        Collection<Transaction> transactions = new LinkedList<>();
-        transactions.add(transaction);
+        Collection<Long> transactions = new LinkedList<>();
+        transactions.add(transaction.getTransactionId());
 
-        when(transactionDao.transactionsByType(type)).thenReturn(transactions);
+        when(transactionDao.transactionIdsByType(type)).thenReturn(transactions);
 
-        ResponseEntity<Collection<Long>> responseEntity = transactionController.getTransactionsByType(type);
+        ResponseEntity<Collection<Long>> responseEntity = transactionController.getTransactionsByType(type, null, null);
 
-        verify(transactionDao).transactionsByType(type);
+        verify(transactionDao).transactionIdsByType(type);
         verifyNoMoreInteractions(transactionDao);
 
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
         assertTrue(responseEntity.hasBody());
         assertEquals(transactions.size(), responseEntity.getBody().size());
-        for (Transaction transacton : transactions) {
-            assertTrue(responseEntity.getBody().contains(transaction.getTransactionId()));
+        for (Long transactionId : transactions) {
+            assertTrue(responseEntity.getBody().contains(transactionId));
         }
     }
 
@@ -128,11 +253,11 @@ public class TransactionControllerTest {
     public void noTransactionsWithType_GetTransactionsByType_ShouldReturnEmptyCollection() {
         String type = "type";
 
-        when(transactionDao.transactionsByType(type)).thenReturn(Collections.emptyList());
+        when(transactionDao.transactionIdsByType(type)).thenReturn(Collections.emptyList());
 
-        ResponseEntity<Collection<Long>> responseEntity = transactionController.getTransactionsByType(type);
+        ResponseEntity<Collection<Long>> responseEntity = transactionController.getTransactionsByType(type, null, null);
 
-        verify(transactionDao).transactionsByType(type);
+        verify(transactionDao).transactionIdsByType(type);
         verifyNoMoreInteractions(transactionDao);
 
         assertNotNull(responseEntity);
@@ -141,14 +266,75 @@ public class TransactionControllerTest {
         assertTrue(responseEntity.getBody().isEmpty());
     }
 
+    @Test
+    public void fullPage_GetTransactionsByType_ShouldReturnPageWithNextAfterHeader() {
+        when(transactionDao.transactionIdsByType("car", 1L, 2)).thenReturn(Arrays.asList(2L, 5L));
+
+        ResponseEntity<List<Long>> responseEntity = transactionController.getTransactionsByType("car", 1L, 2);
+
+        verify(transactionDao).transactionIdsByType("car", 1L, 2);
+        verifyNoMoreInteractions(transactionDao);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals(Arrays.asList(2L, 5L), responseEntity.getBody());
+        assertEquals("5", responseEntity.getHeaders().getFirst(TransactionController.NEXT_AFTER_HEADER));
+    }
+
+    @Test
+    public void lastPage_GetTransactionsByType_ShouldReturnPageWithoutNextAfterHeader() {
+        when(transactionDao.transactionIdsByType("car", 5L, TransactionController.DEFAULT_PAGE_SIZE))
+                .thenReturn(Collections.singletonList(7L));
+
+        ResponseEntity<List<Long>> responseEntity = transactionController.getTransactionsByType("car", 5L, null);
+
+        assertEquals(Collections.singletonList(7L), responseEntity.getBody());
+        assertFalse(responseEntity.getHeaders().containsKey(TransactionController.NEXT_AFTER_HEADER));
+    }
+
+    @Test
+    public void nonPositiveLimit_GetTransactionsByType_ShouldReturnBadRequest() {
+        ResponseEntity<Map> responseEntity = transactionController.getTransactionsByType("car", null, 0);
+
+        verifyZeroInteractions(transactionDao);
+        assertEquals(HttpStatus.BAD_REQUEST, responseEntity.getStatusCode());
+        expectedStatus.put("status", "Limit should be positive: 0");
+        assertEquals(expectedStatus, responseEntity.getBody());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void transactionsWithType_StreamTransactionsByType_ShouldWriteJsonArrayOfIds() throws Exception {
+        doAnswer(invocation -> {
+            Consumer<Long> action = (Consumer<Long>) invocation.getArguments()[1];
+            action.accept(1L);
+            action.accept(3L);
+            return null;
+        }).when(transactionDao).forEachTransactionIdByType(eq("car"), any());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        transactionController.streamTransactionsByType("car", response);
+
+        assertEquals("[1,3]", response.getContentAsString());
+        assertEquals("application/json", response.getContentType());
+    }
+
+    @Test
+    public void noTransactionsWithType_StreamTransactionsByType_ShouldWriteEmptyJsonArray() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        transactionController.streamTransactionsByType("car", response);
+
+        assertEquals("[]", response.getContentAsString());
+    }
+
     @Test
     public void inexistentTransaction_GetTotalAmount_ShouldReturnNotFoundStatus() {
         Long inexistentTransactionId = 0L;
 
         when(transactionDao.transactionTotalAmount(anyLong())).thenReturn(null);
 
-        ResponseEntity<Map> responseEntity = transactionController.getTransactionSum(inexistentTransactionId);
+        ResponseEntity<Map> responseEntity = transactionController.getTransactionSum(inexistentTransactionId, null);
 
+        verify(transactionDao).transactionVersion(inexistentTransactionId);
         verify(transactionDao).transactionTotalAmount(inexistentTransactionId);
         verifyNoMoreInteractions(transactionDao);
 
@@ -166,15 +352,131 @@ public class TransactionControllerTest {
 
         when(transactionDao.transactionTotalAmount(transactionId)).thenReturn(sum);
 
-        ResponseEntity<Map> responseEntity = transactionController.getTransactionSum(transactionId);
+        ResponseEntity<TransactionSum> responseEntity = transactionController.getTransactionSum(transactionId, null);
 
+        verify(transactionDao).transactionVersion(transactionId);
         verify(transactionDao).transactionTotalAmount(transactionId);
         verifyNoMoreInteractions(transactionDao);
 
         assertNotNull(responseEntity);
         assertTrue(responseEntity.hasBody());
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
-        expectedSum.put("sum", sum);
-        assertEquals(expectedSum, responseEntity.getBody());
+        assertEquals(sum, responseEntity.getBody().getSum(), 0);
+    }
+
+    @Test
+    public void transactionWithVersion_GetTotalAmount_ShouldReturnETag() {
+        when(transactionDao.transactionVersion(7L)).thenReturn(3L);
+        when(transactionDao.transactionTotalAmount(7L)).thenReturn(10.0);
+
+        ResponseEntity<TransactionSum> responseEntity = transactionController.getTransactionSum(7L, "\"2\"");
+
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals("\"3\"", responseEntity.getHeaders().getETag());
+        assertEquals(10.0, responseEntity.getBody().getSum(), 0);
+    }
+
+    @Test
+    public void matchingETag_GetTotalAmount_ShouldReturnNotModifiedWithoutSum() {
+        when(transactionDao.transactionVersion(7L)).thenReturn(3L);
+
+        ResponseEntity responseEntity = transactionController.getTransactionSum(7L, "\"1\", W/\"3\"");
+
+        verify(transactionDao).transactionVersion(7L);
+        verifyNoMoreInteractions(transactionDao);
+        assertEquals(HttpStatus.NOT_MODIFIED, responseEntity.getStatusCode());
+        assertEquals("\"3\"", responseEntity.getHeaders().getETag());
+        assertFalse(responseEntity.hasBody());
+    }
+
+    @Test
+    public void matchingETag_GetTransaction_ShouldReturnNotModifiedWithoutTransaction() {
+        when(transactionDao.transactionVersion(1L)).thenReturn(5L);
+
+        ResponseEntity responseEntity = transactionController.getTransaction(1L, "\"5\"");
+
+        verify(transactionDao).transactionVersion(1L);
+        verifyNoMoreInteractions(transactionDao);
+        assertEquals(HttpStatus.NOT_MODIFIED, responseEntity.getStatusCode());
+        assertFalse(responseEntity.hasBody());
+    }
+
+    @Test
+    public void daoWithoutVersions_GetTransaction_ShouldIgnoreIfNoneMatch() {
+        Transaction transaction = createTransaction(1L, null, "cars", 666.0);
+        when(transactionDao.getById(1L)).thenReturn(transaction);
+        when(transactionDao.transactionVersion(1L)).thenReturn(null);
+
+        ResponseEntity<Transaction> responseEntity = transactionController.getTransaction(1L, "*");
+
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertNull(responseEntity.getHeaders().getETag());
+        assertTransactionsEqual(transaction, responseEntity.getBody());
+    }
+
+    @Test
+    public void type_GetTypeStatistics_ShouldReturnStatisticsOfDao() {
+        TypeStatistics statistics = new TypeStatistics("car", 2, 110.0, 10.0, 100.0);
+        when(transactionDao.typeStatistics("car")).thenReturn(statistics);
+
+        ResponseEntity<TypeStatistics> responseEntity = transactionController.getTypeStatistics("car");
+
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertSame(statistics, responseEntity.getBody());
+    }
+
+    @Test
+    public void transaction_GetAncestors_ShouldReturnAncestorIds() {
+        when(transactionDao.ancestorIds(3L)).thenReturn(Arrays.asList(2L, 1L));
+
+        ResponseEntity responseEntity = transactionController.getAncestors(3L);
+
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals(Arrays.asList(2L, 1L), responseEntity.getBody());
+    }
+
+    @Test
+    public void inexistentTransaction_GetAncestors_ShouldReturnNotFoundStatus() {
+        when(transactionDao.ancestorIds(3L)).thenReturn(null);
+
+        ResponseEntity responseEntity = transactionController.getAncestors(3L);
+
+        assertEquals(HttpStatus.NOT_FOUND, responseEntity.getStatusCode());
+        expectedStatus.put("status", "Transaction not found: 3");
+        assertEquals(expectedStatus, responseEntity.getBody());
+    }
+
+    @Test
+    public void transactionsOfTree_GetLowestCommonAncestor_ShouldNotCheckExistence() {
+        when(transactionDao.lowestCommonAncestor(3L, 4L)).thenReturn(2L);
+
+        ResponseEntity responseEntity = transactionController.getLowestCommonAncestor(3L, 4L);
+
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals(Collections.singletonMap("lca", 2L), responseEntity.getBody());
+        verify(transactionDao, never()).getById(anyLong());
+    }
+
+    @Test
+    public void transactionsOfDifferentTrees_GetLowestCommonAncestor_ShouldReturnNull() {
+        when(transactionDao.lowestCommonAncestor(3L, 4L)).thenReturn(null);
+        when(transactionDao.getById(anyLong())).thenReturn(new Transaction());
+
+        ResponseEntity responseEntity = transactionController.getLowestCommonAncestor(3L, 4L);
+
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals(Collections.singletonMap("lca", null), responseEntity.getBody());
+    }
+
+    @Test
+    public void inexistentTransaction_GetLowestCommonAncestor_ShouldReturnNotFoundStatus() {
+        when(transactionDao.lowestCommonAncestor(3L, 4L)).thenReturn(null);
+        when(transactionDao.getById(3L)).thenReturn(new Transaction());
+
+        ResponseEntity responseEntity = transactionController.getLowestCommonAncestor(3L, 4L);
+
+        assertEquals(HttpStatus.NOT_FOUND, responseEntity.getStatusCode());
+        expectedStatus.put("status", "Transaction not found: 4");
+        assertEquals(expectedStatus, responseEntity.getBody());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,49 @@
+package eu.number26.codechallenge.rest.controller;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author ikanievska
+ */
+public class VirtualThreadsTest {
+
+    private static boolean isVirtual(Thread thread) throws Exception {
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+
+    @Test
+    public void java21_Factory_ShouldCreateNamedVirtualThreads() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+
+        Thread thread = VirtualThreads.factory("dao-read-").newThread(() -> {
+        });
+
+        assertTrue(isVirtual(thread));
+        assertEquals("dao-read-0", thread.getName());
+    }
+
+    @Test
+    public void java21_NewThreadPerTaskExecutor_ShouldRunTasksOnVirtualThreads() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor();
+
+        boolean virtual = executor.submit(() -> isVirtual(Thread.currentThread())).get(5, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertTrue(virtual);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void beforeJava21_Factory_ShouldFail() throws Exception {
+        assumeFalse(VirtualThreads.isSupported());
+
+        VirtualThreads.factory("dao-read-");
+    }
+}
@@ -0,0 +1,93 @@
+package eu.number26.codechallenge.rest.converter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.number26.codechallenge.model.Transaction;
+import eu.number26.codechallenge.rest.model.TransactionSum;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static eu.number26.codechallenge.TestHelper.createTransaction;
+import static org.junit.Assert.*;
+
+/**
+ * @author ikanievska
+ */
+public class TransactionJsonHttpMessageConverterTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final TransactionJsonHttpMessageConverter converter = new TransactionJsonHttpMessageConverter(objectMapper);
+
+    private String write(Object value) throws IOException {
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        converter.write(value, MediaType.APPLICATION_JSON, outputMessage);
+        return outputMessage.getBodyAsString(StandardCharsets.UTF_8);
+    }
+
+    private void assertWrittenAsByJackson(Object value) throws IOException {
+        assertEquals(objectMapper.writeValueAsString(value), write(value));
+    }
+
+    @Test
+    public void transactions_Write_ShouldMatchJackson() throws Exception {
+        double[] amounts = {0.0, -0.0, 1.0, -15000.0, 0.1, 1e7, 1.0E20, 777777777.7, 1e-5, Double.MAX_VALUE,
+                Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (double amount : amounts) {
+            assertWrittenAsByJackson(createTransaction(1L, 5L, "car", amount));
+        }
+        assertWrittenAsByJackson(createTransaction(1L, null, null, 1.0));
+        assertWrittenAsByJackson(createTransaction(1L, Long.MIN_VALUE, "car", 1.0));
+        assertWrittenAsByJackson(createTransaction(1L, Long.MAX_VALUE, "car", 1.0));
+    }
+
+    @Test
+    public void typesWithSpecialCharacters_Write_ShouldMatchJackson() throws Exception {
+        String[] types = {"", "\"quoted\\\"", "line\nbreak\ttab\r\b\f", "\u0001\u001f\u007f",
+                "\u0430\u0432\u0442\u043e", "\u20ac", "\ud83d\ude97"};
+        for (String type : types) {
+            assertWrittenAsByJackson(createTransaction(1L, null, type, 1.0));
+        }
+    }
+
+    @Test
+    public void sums_Write_ShouldMatchJackson() throws Exception {
+        for (double sum : new double[]{0.30000000000000004, 15000.0, -1e-10, Double.NaN}) {
+            assertWrittenAsByJackson(new TransactionSum(sum));
+        }
+    }
+
+    @Test
+    public void ids_Write_ShouldMatchJackson() throws Exception {
+        assertWrittenAsByJackson(Collections.emptyList());
+        assertWrittenAsByJackson(Arrays.asList(0L, 7L, -10L, 1234567890123L, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertWrittenAsByJackson(new LinkedHashSet<>(Arrays.asList(3L, 1L, 2L)));
+    }
+
+    @Test
+    public void statuses_Write_ShouldMatchJackson() throws Exception {
+        assertWrittenAsByJackson(Collections.singletonMap("status", "ok"));
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("transactionId", 10L);
+        status.put("status", "Transaction not found: \"10\"");
+        status.put("reason", null);
+        assertWrittenAsByJackson(status);
+    }
+
+    @Test
+    public void otherValues_Write_ShouldBeWrittenByJackson() throws Exception {
+        Transaction transaction = createTransaction(1L, null, "car", 1.0);
+        assertWrittenAsByJackson(Collections.singletonList(transaction));
+        assertWrittenAsByJackson(Collections.singletonMap("sum", 1.0));
+        assertWrittenAsByJackson(Collections.singletonMap("statuses", Collections.singletonList("ok")));
+    }
+
+    @Test
+    public void anyClass_CanRead_ShouldReturnFalse() {
+        assertFalse(converter.canRead(Transaction.class, MediaType.APPLICATION_JSON));
+        assertTrue(converter.canWrite(Transaction.class, MediaType.APPLICATION_JSON));
+        assertFalse(converter.canWrite(String.class, MediaType.APPLICATION_JSON));
+    }
+}
@@ -0,0 +1,93 @@
+package eu.number26.codechallenge.statistics;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author ikanievska
+ */
+public class SlidingWindowStatisticsTest {
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+    private final SlidingWindowStatistics statistics = new SlidingWindowStatistics(60, now::get);
+
+    @Test
+    public void noTransactions_Statistics_ShouldReturnZeros() throws Exception {
+        TransactionStatistics actual = statistics.statistics();
+
+        assertEquals("{\"sum\":0.0,\"avg\":0.0,\"max\":0.0,\"min\":0.0,\"count\":0}",
+                new ObjectMapper().writeValueAsString(actual));
+    }
+
+    @Test
+    public void transactionsWithinWindow_Statistics_ShouldCombineAllSeconds() throws Exception {
+        statistics.record(10.0);
+        now.addAndGet(500);
+        statistics.record(-5.0);
+        now.addAndGet(59_000);
+        statistics.record(25.0);
+
+        TransactionStatistics actual = statistics.statistics();
+
+        assertEquals(3, actual.getCount());
+        assertEquals(30.0, actual.getSum(), 0);
+        assertEquals(10.0, actual.getAvg(), 0);
+        assertEquals(-5.0, actual.getMin(), 0);
+        assertEquals(25.0, actual.getMax(), 0);
+    }
+
+    @Test
+    public void oldTransactions_Statistics_ShouldSkipSecondsOutOfWindow() throws Exception {
+        statistics.record(10.0);
+        now.addAndGet(1000);
+        statistics.record(20.0);
+        now.addAndGet(59_000);
+
+        TransactionStatistics actual = statistics.statistics();
+
+        assertEquals(1, actual.getCount());
+        assertEquals(20.0, actual.getSum(), 0);
+    }
+
+    @Test
+    public void bucketOfOldSecond_Record_ShouldReplaceIt() throws Exception {
+        statistics.record(10.0);
+        now.addAndGet(60_000);
+        statistics.record(1.0);
+
+        TransactionStatistics actual = statistics.statistics();
+
+        assertEquals(1, actual.getCount());
+        assertEquals(1.0, actual.getMax(), 0);
+    }
+
+    @Test
+    public void concurrentRecords_Statistics_ShouldCountAll() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 10000; ++j) {
+                    statistics.record(j % 2 == 0 ? 1.0 : 2.0);
+                    if (j % 1000 == 0) {
+                        now.addAndGet(100);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        TransactionStatistics actual = statistics.statistics();
+
+        assertEquals(40000, actual.getCount());
+        assertEquals(60000.0, actual.getSum(), 0);
+    }
+}